@@ -34,6 +34,7 @@ import com.sun.source.tree.MemberSelectTree;
 import com.sun.source.tree.MethodTree;
 import com.sun.source.tree.ParameterizedTypeTree;
 import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
 import com.sun.source.util.JavacTask;
 import com.sun.tools.javac.api.JavacTool;
 import org.junit.Assert;
@@ -143,8 +144,12 @@ public class ProtoServiceHandlerTest {
       if (Tree.Kind.METHOD == member.getKind()) {
         MethodTree method = (MethodTree) member;
         methods.put(method.getName().toString(), method);
-      } else if (Tree.Kind.INTERFACE == member.getKind()) {
+      } else if (Tree.Kind.INTERFACE == member.getKind()
+          && ((ClassTree) member).getSimpleName().contentEquals("Interface")) {
         interfaceClass = (ClassTree) member;
+      } else if (Tree.Kind.INTERFACE == member.getKind()) {
+        String name = ((ClassTree) member).getSimpleName().toString();
+        Assert.assertTrue(name.equals("BlockingInterface") || name.equals("CallbackInterface"));
       }
     }
 
@@ -254,8 +259,12 @@ public class ProtoServiceHandlerTest {
       if (Tree.Kind.METHOD == member.getKind()) {
         MethodTree method = (MethodTree) member;
         methods.put(method.getName().toString(), method);
-      } else if (Tree.Kind.INTERFACE == member.getKind()) {
+      } else if (Tree.Kind.INTERFACE == member.getKind()
+          && ((ClassTree) member).getSimpleName().contentEquals("Interface")) {
         interfaceClass = (ClassTree) member;
+      } else if (Tree.Kind.INTERFACE == member.getKind()) {
+        String name = ((ClassTree) member).getSimpleName().toString();
+        Assert.assertTrue(name.equals("BlockingInterface") || name.equals("CallbackInterface"));
       }
     }
 
@@ -301,4 +310,110 @@ public class ProtoServiceHandlerTest {
     Assert.assertTrue(((MemberSelectTree) returnTypeTree.getTypeArguments().get(0)).getIdentifier()
         .toString().contains("PhoneNumber"));
   }
+
+  @Test
+  public void testBlockingInterface() throws Exception {
+    ClassTree rootClass = generateSearchEngine();
+
+    // Checking blocking interface methods
+    ClassTree blockingInterface = findInterface(rootClass, "BlockingInterface");
+    Assert.assertNotNull(blockingInterface);
+    MethodTree search = findMethods(blockingInterface, "search").get(0);
+    Assert.assertTrue(search.getReturnType().toString().endsWith("SearchResult"));
+    Assert.assertEquals(1, search.getParameters().size());
+    Assert.assertEquals(1, search.getThrows().size());
+    Assert.assertEquals("Exception", search.getThrows().get(0).toString());
+
+    // Checking the overloads of newService
+    List<MethodTree> newServices = findMethods(rootClass, "newService");
+    Assert.assertEquals(3, newServices.size());
+    boolean withDefaultExecutor = false;
+    boolean withExecutor = false;
+    for (MethodTree newService : newServices) {
+      List<? extends VariableTree> parameters = newService.getParameters();
+      if (!parameters.get(0).getType().toString().equals("BlockingInterface")) {
+        continue;
+      }
+      if (parameters.size() == 1) {
+        withDefaultExecutor = true;
+      } else {
+        Assert.assertEquals(2, parameters.size());
+        Assert.assertEquals("com.google.common.util.concurrent.ListeningExecutorService",
+            parameters.get(1).getType().toString());
+        withExecutor = true;
+      }
+    }
+    Assert.assertTrue(withDefaultExecutor);
+    Assert.assertTrue(withExecutor);
+  }
+
+  @Test
+  public void testCallbackInterface() throws Exception {
+    ClassTree rootClass = generateSearchEngine();
+
+    // Checking callback interface methods
+    ClassTree callbackInterface = findInterface(rootClass, "CallbackInterface");
+    Assert.assertNotNull(callbackInterface);
+    MethodTree search = findMethods(callbackInterface, "search").get(0);
+    Assert.assertEquals("void", search.getReturnType().toString());
+    Assert.assertEquals(2, search.getParameters().size());
+    Tree callbackType = search.getParameters().get(1).getType();
+    Assert.assertEquals(Tree.Kind.PARAMETERIZED_TYPE, callbackType.getKind());
+    Assert.assertEquals("com.google.common.util.concurrent.FutureCallback",
+        ((ParameterizedTypeTree) callbackType).getType().toString());
+
+    // Checking the callback stub factory
+    List<MethodTree> newCallbackStubs = findMethods(rootClass, "newCallbackStub");
+    Assert.assertEquals(1, newCallbackStubs.size());
+    MethodTree newCallbackStub = newCallbackStubs.get(0);
+    Assert.assertEquals("CallbackInterface", newCallbackStub.getReturnType().toString());
+    Assert.assertEquals(1, newCallbackStub.getParameters().size());
+    Assert.assertEquals("io.soliton.protobuf.Client",
+        newCallbackStub.getParameters().get(0).getType().toString());
+  }
+
+  /**
+   * Generates the service of the multiple-files testing proto and returns
+   * its parsed root class.
+   */
+  private static ClassTree generateSearchEngine() throws Exception {
+    DescriptorProtos.FileDescriptorProto protoFile =
+        SearchRequest.getDescriptor().getFile().toProto();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ProtoServiceHandler serviceHandler = new ProtoServiceHandler(
+        "io.soliton.protobuf.plugin.testing", TypeMap.of(protoFile), true, null, null, output);
+    serviceHandler.handle(protoFile.getServiceList().get(0));
+    PluginProtos.CodeGeneratorResponse response = PluginProtos.CodeGeneratorResponse.parseFrom(
+        output.toByteArray());
+
+    JavaFileObject file = new JavaSourceFromString(
+        "io.soliton.protobuf.plugin.testing.SearchEngine", response.getFile(0).getContent());
+    JavacTool compiler = JavacTool.create();
+    JavaFileManager fileManager = compiler.getStandardFileManager(null, null, Charsets.UTF_8);
+    JavacTask compilationTask = compiler.getTask(new StringWriter(), fileManager,
+        new DiagnosticCollector<JavaFileObject>(), null, null, Lists.newArrayList(file));
+    CompilationUnitTree compiledUnit = Iterables.getOnlyElement(compilationTask.parse());
+    return (ClassTree) Iterables.getOnlyElement(compiledUnit.getTypeDecls());
+  }
+
+  private static ClassTree findInterface(ClassTree rootClass, String name) {
+    for (Tree member : rootClass.getMembers()) {
+      if (Tree.Kind.INTERFACE == member.getKind()
+          && ((ClassTree) member).getSimpleName().contentEquals(name)) {
+        return (ClassTree) member;
+      }
+    }
+    return null;
+  }
+
+  private static List<MethodTree> findMethods(ClassTree type, String name) {
+    List<MethodTree> methods = Lists.newArrayList();
+    for (Tree member : type.getMembers()) {
+      if (Tree.Kind.METHOD == member.getKind()
+          && ((MethodTree) member).getName().contentEquals(name)) {
+        methods.add((MethodTree) member);
+      }
+    }
+    return methods;
+  }
 }
@@ -16,21 +16,33 @@
 
 package io.soliton.protobuf;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.*;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
-import io.netty.util.concurrent.Future;
-import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
  * Provides a default implementation of {@link Server} which binds to a TCP
- * port.
+ * port or a Unix domain socket.
  *
  * @author Julien Silland (julien@soliton.io)
  */
@@ -38,17 +50,25 @@ public abstract class AbstractRpcServer extends AbstractIdleService implements S
 
   private static final Logger logger = Logger.getLogger(AbstractRpcServer.class.getCanonicalName());
 
-  private final int port;
+  private final SocketAddress localAddress;
   private final ServiceGroup serviceGroup = new DefaultServiceGroup();
   private final Class<? extends ServerChannel> channelClass;
   private final EventLoopGroup parentGroup;
   private final EventLoopGroup childGroup;
+  private final ChannelGroup childChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 
   private Channel channel;
+  private long drainTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
 
   protected AbstractRpcServer(int port, Class<? extends ServerChannel> channelClass,
       EventLoopGroup parentGroup, EventLoopGroup childGroup) {
-    this.port = port;
+    this(new InetSocketAddress(port), channelClass, parentGroup, childGroup);
+  }
+
+  protected AbstractRpcServer(SocketAddress localAddress,
+      Class<? extends ServerChannel> channelClass, EventLoopGroup parentGroup,
+      EventLoopGroup childGroup) {
+    this.localAddress = Preconditions.checkNotNull(localAddress);
     this.channelClass = channelClass;
     this.parentGroup = parentGroup;
     this.childGroup = childGroup;
@@ -61,19 +81,38 @@ public abstract class AbstractRpcServer extends AbstractIdleService implements S
     return serviceGroup;
   }
 
+  /**
+   * Returns the event loop groups of this server, keyed by a descriptive name.
+   */
+  protected ImmutableMap<String, EventLoopGroup> eventLoopGroups() {
+    return ImmutableMap.of("parent", parentGroup, "child", childGroup);
+  }
+
+  /**
+   * Sets the maximum time to wait for in-flight requests to complete when
+   * this server is shut down.
+   *
+   * @see #shutDown()
+   */
+  protected void setDrainTimeout(long timeout, TimeUnit unit) {
+    Preconditions.checkArgument(timeout >= 0);
+    this.drainTimeoutMillis = unit.toMillis(timeout);
+  }
+
   /**
    * Starts this server.
    * <p/>
    * <p>This is a synchronous operation.</p>
    */
   public void startUp() throws Exception {
-    logger.info(String.format("Starting RPC server on port %d", port));
+    logger.info(String.format("Starting RPC server on %s", localAddress));
     ServerBootstrap bootstrap = new ServerBootstrap();
 
     ChannelFuture futureChannel = bootstrap.group(parentGroup, childGroup)
         .channel(channelClass)
+        .handler(new ChildChannelTracker())
         .childHandler(channelInitializer())
-        .bind(port)
+        .bind(localAddress)
         .awaitUninterruptibly();
 
     if (futureChannel.isSuccess()) {
@@ -88,18 +127,55 @@ public abstract class AbstractRpcServer extends AbstractIdleService implements S
   /**
    * Stops this server.
    * <p/>
+   * <p>The server first stops accepting connections and asks its clients to
+   * send their next requests elsewhere. It then waits for the requests
+   * already received to complete, up to the configured drain timeout,
+   * before closing all connections.</p>
+   * <p/>
+   * <p>Only the socket and Quartz protocols drain their requests. JSON-RPC
+   * connections have no way to learn that the server is going away, and are
+   * closed along with the others once draining is over.</p>
+   * <p/>
    * <p>This is a synchronous operation.</p>
    */
   public void shutDown() {
     logger.info("Shutting down RPC server.");
-    channel.close().addListener(new GenericFutureListener<Future<Void>>() {
+    channel.close().awaitUninterruptibly();
+    drain();
+    childChannels.close().awaitUninterruptibly();
+    parentGroup.shutdownGracefully();
+    childGroup.shutdownGracefully();
+  }
 
-      @Override
-      public void operationComplete(Future<Void> future) throws Exception {
-        parentGroup.shutdownGracefully();
-        childGroup.shutdownGracefully();
+  private void drain() {
+    Set<Drainable> drainables = Sets.newIdentityHashSet();
+    for (Channel child : childChannels) {
+      for (Map.Entry<String, ChannelHandler> handler : child.pipeline()) {
+        if (handler.getValue() instanceof Drainable) {
+          Drainable drainable = (Drainable) handler.getValue();
+          drainables.add(drainable);
+          drainable.goAway(child);
+        }
       }
-    }).awaitUninterruptibly();
+    }
+
+    long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+    while (pendingRequestCount(drainables) > 0) {
+      if (System.currentTimeMillis() >= deadline) {
+        logger.warning(String.format("Closing RPC server with %d requests still pending",
+            pendingRequestCount(drainables)));
+        return;
+      }
+      Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static int pendingRequestCount(Set<Drainable> drainables) {
+    int count = 0;
+    for (Drainable drainable : drainables) {
+      count += drainable.pendingRequestCount();
+    }
+    return count;
   }
 
   /**
@@ -109,4 +185,18 @@ public abstract class AbstractRpcServer extends AbstractIdleService implements S
    * @see ChannelInitializers
    */
   protected abstract ChannelInitializer<? extends Channel> channelInitializer();
+
+  /**
+   * Keeps track of the connections accepted by the server.
+   */
+  private final class ChildChannelTracker extends ChannelInboundHandlerAdapter {
+
+    @Override
+    public void channelRead(ChannelHandlerContext context, Object message) throws Exception {
+      if (message instanceof Channel) {
+        childChannels.add((Channel) message);
+      }
+      super.channelRead(context, message);
+    }
+  }
 }
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether incoming method calls should be processed or shed.
+ * <p/>
+ * <p>Limits can be configured for the whole server, for individual services
+ * and for individual methods. A call is admitted only if it fits within all
+ * the limits that apply to it. Refused calls should be answered right away,
+ * advising the client to retry after {@link #retryAfterMillis()}.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class AdmissionController {
+
+  private static final AdmissionController UNLIMITED = newBuilder().build();
+
+  private final ConcurrencyLimiter globalLimiter;
+  private final ImmutableMap<String, ConcurrencyLimiter> serviceLimiters;
+  private final ImmutableMap<String, ImmutableMap<String, ConcurrencyLimiter>> methodLimiters;
+  private final long retryAfterMillis;
+
+  /**
+   * Returns a controller admitting all calls.
+   */
+  public static AdmissionController unlimited() {
+    return UNLIMITED;
+  }
+
+  /**
+   * Returns a new builder of admission controllers.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  private AdmissionController(Builder builder) {
+    this.globalLimiter = builder.globalLimiter;
+    this.serviceLimiters = ImmutableMap.copyOf(builder.serviceLimiters);
+    ImmutableMap.Builder<String, ImmutableMap<String, ConcurrencyLimiter>> methodLimiters =
+        ImmutableMap.builder();
+    for (Map.Entry<String, Map<String, ConcurrencyLimiter>> service :
+        builder.methodLimiters.entrySet()) {
+      methodLimiters.put(service.getKey(), ImmutableMap.copyOf(service.getValue()));
+    }
+    this.methodLimiters = methodLimiters.build();
+    this.retryAfterMillis = builder.retryAfterMillis;
+  }
+
+  /**
+   * Attempts to admit a call to the given method.
+   *
+   * @param service the full name of the service being called
+   * @param method the name of the method being called
+   * @return a permit to be released when the call completes, or {@code null}
+   * if the call should be refused
+   */
+  public Permit tryAdmit(String service, String method) {
+    ConcurrencyLimiter serviceLimiter = serviceLimiters.get(service);
+    ImmutableMap<String, ConcurrencyLimiter> limiters = methodLimiters.get(service);
+    ConcurrencyLimiter methodLimiter = limiters == null ? null : limiters.get(method);
+    if (globalLimiter == null && serviceLimiter == null && methodLimiter == null) {
+      return Permit.UNLIMITED;
+    }
+
+    if (globalLimiter != null && !globalLimiter.tryAcquire()) {
+      return null;
+    }
+    if (serviceLimiter != null && !serviceLimiter.tryAcquire()) {
+      abandon(globalLimiter);
+      return null;
+    }
+    if (methodLimiter != null && !methodLimiter.tryAcquire()) {
+      abandon(globalLimiter);
+      abandon(serviceLimiter);
+      return null;
+    }
+    return new Permit(globalLimiter, serviceLimiter, methodLimiter);
+  }
+
+  /**
+   * Returns the delay clients are advised to wait for before retrying a
+   * refused call.
+   */
+  public long retryAfterMillis() {
+    return retryAfterMillis;
+  }
+
+  private static void abandon(ConcurrencyLimiter limiter) {
+    if (limiter != null) {
+      limiter.abandon();
+    }
+  }
+
+  /**
+   * Represents the admission of a single call.
+   */
+  public static final class Permit {
+
+    private static final Permit UNLIMITED = new Permit(null, null, null);
+
+    private final ConcurrencyLimiter globalLimiter;
+    private final ConcurrencyLimiter serviceLimiter;
+    private final ConcurrencyLimiter methodLimiter;
+    private final long startNanos;
+
+    private Permit(ConcurrencyLimiter globalLimiter, ConcurrencyLimiter serviceLimiter,
+        ConcurrencyLimiter methodLimiter) {
+      this.globalLimiter = globalLimiter;
+      this.serviceLimiter = serviceLimiter;
+      this.methodLimiter = methodLimiter;
+      this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns a permit which isn't accounted against any limiter.
+     */
+    static Permit unlimited() {
+      return UNLIMITED;
+    }
+
+    /**
+     * Signals the completion of the admitted call.
+     */
+    public void release() {
+      if (globalLimiter == null && serviceLimiter == null && methodLimiter == null) {
+        return;
+      }
+      long latencyNanos = System.nanoTime() - startNanos;
+      release(globalLimiter, latencyNanos);
+      release(serviceLimiter, latencyNanos);
+      release(methodLimiter, latencyNanos);
+    }
+
+    private static void release(ConcurrencyLimiter limiter, long latencyNanos) {
+      if (limiter != null) {
+        limiter.release(latencyNanos);
+      }
+    }
+  }
+
+  /**
+   * Configurable builder of {@link AdmissionController} instances.
+   */
+  public static final class Builder {
+
+    private ConcurrencyLimiter globalLimiter;
+    private final Map<String, ConcurrencyLimiter> serviceLimiters = Maps.newHashMap();
+    private final Map<String, Map<String, ConcurrencyLimiter>> methodLimiters =
+        Maps.newHashMap();
+    private long retryAfterMillis = 100;
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the limiter applying to all calls received by the server.
+     *
+     * @return {@code this} object
+     */
+    public Builder setGlobalLimiter(ConcurrencyLimiter limiter) {
+      this.globalLimiter = Preconditions.checkNotNull(limiter);
+      return this;
+    }
+
+    /**
+     * Sets the limiter applying to all calls to the given service.
+     *
+     * @param service the full name of the service
+     * @return {@code this} object
+     */
+    public Builder setServiceLimiter(String service, ConcurrencyLimiter limiter) {
+      serviceLimiters.put(Preconditions.checkNotNull(service),
+          Preconditions.checkNotNull(limiter));
+      return this;
+    }
+
+    /**
+     * Sets the limiter applying to all calls to the given method.
+     *
+     * @param service the full name of the service
+     * @param method the name of the method
+     * @return {@code this} object
+     */
+    public Builder setMethodLimiter(String service, String method, ConcurrencyLimiter limiter) {
+      Preconditions.checkNotNull(service);
+      if (!methodLimiters.containsKey(service)) {
+        methodLimiters.put(service, Maps.<String, ConcurrencyLimiter>newHashMap());
+      }
+      methodLimiters.get(service).put(Preconditions.checkNotNull(method),
+          Preconditions.checkNotNull(limiter));
+      return this;
+    }
+
+    /**
+     * Sets the delay clients are advised to wait for before retrying a
+     * refused call.
+     *
+     * @return {@code this} object
+     */
+    public Builder setRetryAfter(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration >= 0);
+      this.retryAfterMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * Returns a new controller, as configured by this builder.
+     */
+    public AdmissionController build() {
+      return new AdmissionController(this);
+    }
+  }
+}
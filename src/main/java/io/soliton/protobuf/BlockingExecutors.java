@@ -0,0 +1,103 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides executors suited to running the methods of services implemented
+ * with blocking signatures.
+ * <p/>
+ * <p>On a JVM supporting virtual threads, each invocation runs on its own
+ * virtual thread, which makes blocking cheap. Otherwise, invocations run
+ * on a bounded pool of platform threads, and are queued while all threads
+ * are busy.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class BlockingExecutors {
+
+  private static final Logger logger = Logger.getLogger(
+      BlockingExecutors.class.getCanonicalName());
+
+  private static final int DEFAULT_MAX_THREADS = 200;
+
+  /**
+   * Non-instantiable class.
+   */
+  private BlockingExecutors() {
+  }
+
+  /**
+   * Returns the executor shared by the services which weren't given one of
+   * their own, capped at 200 platform threads.
+   */
+  public static ListeningExecutorService defaultExecutor() {
+    return DefaultExecutorHolder.INSTANCE;
+  }
+
+  /**
+   * Returns a new executor for blocking method invocations.
+   *
+   * @param maxThreads the maximum number of platform threads to use if
+   * virtual threads aren't supported
+   */
+  public static ListeningExecutorService newExecutor(int maxThreads) {
+    Preconditions.checkArgument(maxThreads > 0);
+    ExecutorService virtualThreads = newVirtualThreadExecutor();
+    if (virtualThreads != null) {
+      return MoreExecutors.listeningDecorator(virtualThreads);
+    }
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("piezo-blocking-%d").build());
+    // Threads are only created on demand, and reclaimed once idle
+    executor.allowCoreThreadTimeOut(true);
+    return MoreExecutors.listeningDecorator(executor);
+  }
+
+  private static ExecutorService newVirtualThreadExecutor() {
+    // Looked up reflectively, as this library targets JVMs predating virtual threads
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (NoSuchMethodException nsme) {
+      return null;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // E.g. virtual threads being a disabled preview feature
+      logger.log(Level.FINE, "Cannot create virtual threads", e);
+      return null;
+    }
+  }
+
+  private static final class DefaultExecutorHolder {
+
+    private static final ListeningExecutorService INSTANCE = newExecutor(DEFAULT_MAX_THREADS);
+  }
+}
@@ -0,0 +1,335 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Client} decorator memoizing the responses of idempotent methods.
+ * <p/>
+ * <p>Responses are keyed by the method and the serialized bytes of the
+ * request, and remain valid for the time-to-live configured for their
+ * method. Concurrent identical calls are coalesced into a single call to the
+ * underlying client. Failed calls are never cached.</p>
+ * <p/>
+ * <p>Methods are made cacheable either explicitly, or by marking them with
+ * the {@code (soliton.piezo.cache)} option in their {@code .proto} file and
+ * registering their service's descriptor with
+ * {@link Builder#addService(Descriptors.ServiceDescriptor)}:</p>
+ * <pre>
+ * service Dns {
+ *   rpc Resolve (DnsRequest) returns (DnsResponse) {
+ *     option (soliton.piezo.cache) = { ttl_millis: 30000 };
+ *   }
+ * }
+ * </pre>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class CachingClient implements Client {
+
+  private static final long NOT_CACHEABLE = -1L;
+
+  private final Client delegate;
+  private final ConcurrentMap<Key, ListenableFuture<Message>> inFlight = Maps.newConcurrentMap();
+  private final Cache<Key, Entry> cache;
+  private final LoadingCache<ClientMethod<?>, Long> ttls;
+
+  /**
+   * Returns a new configurable builder of caching clients.
+   *
+   * @param delegate the client to which calls that can't be answered from
+   * the cache are forwarded
+   */
+  public static Builder newBuilder(Client delegate) {
+    return new Builder(delegate);
+  }
+
+  private CachingClient(Builder builder) {
+    this.delegate = builder.delegate;
+    final Map<String, Long> ttlNanos = Maps.newHashMap(builder.ttlNanos);
+    this.ttls = CacheBuilder.newBuilder()
+        .weakKeys()
+        .build(new CacheLoader<ClientMethod<?>, Long>() {
+
+          @Override
+          public Long load(ClientMethod<?> method) {
+            Long ttl = ttlNanos.get(DispatchTable.fullName(method.serviceName(), method.name()));
+            return ttl == null ? NOT_CACHEABLE : ttl;
+          }
+        });
+
+    CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().recordStats();
+    if (!ttlNanos.isEmpty()) {
+      // Entries are checked against their own method's time-to-live upon
+      // lookup, this only ensures that stale entries are eventually evicted
+      cacheBuilder.expireAfterWrite(
+          Collections.max(ttlNanos.values()), TimeUnit.NANOSECONDS);
+    }
+    if (builder.maximumWeight >= 0) {
+      cacheBuilder.maximumWeight(builder.maximumWeight).weigher(new Weigher<Key, Entry>() {
+
+        @Override
+        public int weigh(Key key, Entry entry) {
+          return key.request.size() + entry.response.getSerializedSize();
+        }
+      });
+    } else if (builder.maximumSize >= 0) {
+      cacheBuilder.maximumSize(builder.maximumSize);
+    }
+    this.cache = cacheBuilder.build();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public <O extends Message> ListenableFuture<O> encodeMethodCall(ClientMethod<O> method,
+      Message input) {
+    long ttl = ttls.getUnchecked(method);
+    if (ttl == NOT_CACHEABLE) {
+      return delegate.encodeMethodCall(method, input);
+    }
+
+    Key key = new Key(method.serviceName(), method.name(), input.toByteString());
+    Entry entry = cache.getIfPresent(key);
+    if (entry != null) {
+      if (System.nanoTime() < entry.expiresAtNanos) {
+        return Futures.immediateFuture((O) entry.response);
+      }
+      cache.invalidate(key);
+    }
+
+    SettableFuture<Message> call = SettableFuture.create();
+    ListenableFuture<Message> existing = inFlight.putIfAbsent(key, call);
+    if (existing == null) {
+      Futures.addCallback(delegate.encodeMethodCall(method, input),
+          new CachingCallback(key, ttl, call));
+      existing = call;
+    }
+    return (ListenableFuture<O>) forward(existing);
+  }
+
+  /**
+   * Discards all the cached responses.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Returns the statistics of the cache's usage. Calls coalesced with an
+   * identical pending call are counted as misses.
+   */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /**
+   * Returns a future mirroring the given shared call, which can be cancelled
+   * without affecting the other callers.
+   */
+  private static ListenableFuture<Message> forward(ListenableFuture<Message> call) {
+    final SettableFuture<Message> result = SettableFuture.create();
+    Futures.addCallback(call, new FutureCallback<Message>() {
+
+      @Override
+      public void onSuccess(Message response) {
+        result.set(response);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        result.setException(throwable);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return result;
+  }
+
+  /**
+   * Records the outcome of a call forwarded to the underlying client.
+   */
+  private class CachingCallback implements FutureCallback<Message> {
+
+    private final Key key;
+    private final long ttlNanos;
+    private final SettableFuture<Message> call;
+
+    private CachingCallback(Key key, long ttlNanos, SettableFuture<Message> call) {
+      this.key = key;
+      this.ttlNanos = ttlNanos;
+      this.call = call;
+    }
+
+    @Override
+    public void onSuccess(Message response) {
+      cache.put(key, new Entry(response, System.nanoTime() + ttlNanos));
+      inFlight.remove(key, call);
+      call.set(response);
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+      inFlight.remove(key, call);
+      call.setException(throwable);
+    }
+  }
+
+  private static final class Key {
+
+    private final String service;
+    private final String method;
+    private final ByteString request;
+
+    private Key(String service, String method, ByteString request) {
+      this.service = service;
+      this.method = method;
+      this.request = request;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) other;
+      return request.equals(that.request) && method.equals(that.method)
+          && service.equals(that.service);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(service, method, request);
+    }
+  }
+
+  private static final class Entry {
+
+    private final Message response;
+    private final long expiresAtNanos;
+
+    private Entry(Message response, long expiresAtNanos) {
+      this.response = response;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+
+  /**
+   * Configurable builder of {@link CachingClient} instances.
+   */
+  public static final class Builder {
+
+    private final Client delegate;
+    private final Map<String, Long> ttlNanos = Maps.newHashMap();
+    private long maximumSize = 10000;
+    private long maximumWeight = -1;
+
+    private Builder(Client delegate) {
+      this.delegate = Preconditions.checkNotNull(delegate);
+    }
+
+    /**
+     * Makes cacheable all the methods of the given service which are marked
+     * with the {@code (soliton.piezo.cache)} option.
+     *
+     * @param service the descriptor of the service, as found in the file
+     * descriptor of its {@code .proto} file
+     * @return {@code this} object
+     */
+    public Builder addService(Descriptors.ServiceDescriptor service) {
+      for (Descriptors.MethodDescriptor method : service.getMethods()) {
+        if (method.getOptions().hasExtension(Piezo.cache)) {
+          CacheOptions options = method.getOptions().getExtension(Piezo.cache);
+          addMethod(service.getFullName(), method.getName(), options.getTtlMillis(),
+              TimeUnit.MILLISECONDS);
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Makes the given method cacheable.
+     *
+     * @param service the full name of the service
+     * @param method the name of the method
+     * @param ttl how long a response remains valid once received
+     * @param unit the unit of {@code ttl}
+     * @return {@code this} object
+     */
+    public Builder addMethod(String service, String method, long ttl, TimeUnit unit) {
+      Preconditions.checkArgument(ttl > 0);
+      ttlNanos.put(DispatchTable.fullName(Preconditions.checkNotNull(service),
+          Preconditions.checkNotNull(method)), unit.toNanos(ttl));
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of responses kept in the cache. Defaults to
+     * {@code 10000}.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMaximumSize(long maximumSize) {
+      Preconditions.checkArgument(maximumSize >= 0);
+      this.maximumSize = maximumSize;
+      this.maximumWeight = -1;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of bytes kept in the cache, as measured by the
+     * serialized size of requests and responses. Replaces any bound set with
+     * {@link #setMaximumSize(long)}.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMaximumWeight(long maximumWeight) {
+      Preconditions.checkArgument(maximumWeight >= 0);
+      this.maximumWeight = maximumWeight;
+      return this;
+    }
+
+    /**
+     * Returns a new client, as configured by this builder.
+     */
+    public CachingClient build() {
+      return new CachingClient(this);
+    }
+  }
+}
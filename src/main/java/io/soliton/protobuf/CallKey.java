@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Objects;
+import com.google.protobuf.ByteString;
+
+/**
+ * Identifies a call by the full name of its method and its serialized
+ * payload.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+final class CallKey {
+
+  private final String method;
+  private final ByteString payload;
+
+  CallKey(String method, ByteString payload) {
+    this.method = method;
+    this.payload = payload;
+  }
+
+  ByteString payload() {
+    return payload;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof CallKey)) {
+      return false;
+    }
+    CallKey that = (CallKey) other;
+    return payload.equals(that.payload) && method.equals(that.method);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(method, payload);
+  }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes a stream of requests through a single method, keeping a bounded
+ * number of calls in flight.
+ * <p/>
+ * <p>Requests are pulled from their source only as calls complete, such
+ * that no more than the configured number of requests are ever awaiting a
+ * response, or queued by the client while its connection isn't writable.
+ * This bounds the memory held by the stream regardless of its length, and
+ * lets it proceed at the pace of the server and of the network.</p>
+ * <p/>
+ * <p>The source and the observer are invoked by the threads completing the
+ * calls, typically I/O threads, and should thus not block. Each of them is
+ * only invoked by one thread at a time, but the source may be invoked
+ * while the observer is, such that any state they share must be
+ * synchronized. A failed call doesn't interrupt the stream: its
+ * failure is reported to the observer and the next request is pulled.
+ * Cancelling the stream stops it from pulling requests, while calls in
+ * flight are left to complete.</p>
+ *
+ * @param <I> the type of the requests
+ * @param <O> the type of the responses
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class CallStream<I, O> {
+
+  private final Iterator<? extends I> requests;
+  private final AsyncFunction<? super I, ? extends O> method;
+  private final int maxInFlight;
+  private final Observer<? super I, ? super O> observer;
+  private final Object observerLock = new Object();
+  private final SettableFuture<Long> completion = SettableFuture.create();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong completed = new AtomicLong();
+  // Counts the requests to drain the stream, only the first one does it
+  private final AtomicInteger drainRequests = new AtomicInteger();
+  // Only accessed while draining
+  private boolean exhausted;
+
+  /**
+   * Starts pushing the given requests through a method.
+   *
+   * @param requests the source of the requests
+   * @param method the method to call, e.g. a wrapper around a method of a
+   * service stub
+   * @param maxInFlight the maximum number of calls awaiting their response
+   * @param observer the recipient of the outcome of each call
+   * @return a future holding the number of calls made, set once all
+   * requests have been answered, or failed if the source or the observer
+   * threw an exception
+   */
+  public static <I, O> ListenableFuture<Long> start(Iterator<? extends I> requests,
+      AsyncFunction<? super I, ? extends O> method, int maxInFlight,
+      Observer<? super I, ? super O> observer) {
+    CallStream<I, O> stream = new CallStream<I, O>(requests, method, maxInFlight, observer);
+    stream.drain();
+    return stream.completion;
+  }
+
+  private CallStream(Iterator<? extends I> requests, AsyncFunction<? super I, ? extends O> method,
+      int maxInFlight, Observer<? super I, ? super O> observer) {
+    Preconditions.checkArgument(maxInFlight > 0);
+    this.requests = Preconditions.checkNotNull(requests);
+    this.method = Preconditions.checkNotNull(method);
+    this.maxInFlight = maxInFlight;
+    this.observer = Preconditions.checkNotNull(observer);
+  }
+
+  /**
+   * Issues calls until the window is full or the source is exhausted.
+   * <p/>
+   * <p>Calls completing synchronously re-enter this method: rather than
+   * recursing, they leave it to the thread already draining to loop once
+   * more.</p>
+   */
+  private void drain() {
+    if (drainRequests.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      try {
+        while (!exhausted && !completion.isDone() && inFlight.get() < maxInFlight) {
+          if (!requests.hasNext()) {
+            exhausted = true;
+            break;
+          }
+          I request = requests.next();
+          inFlight.incrementAndGet();
+          call(request);
+        }
+      } catch (RuntimeException re) {
+        completion.setException(re);
+      }
+      if (exhausted && inFlight.get() == 0) {
+        completion.set(completed.get());
+      }
+      missed = drainRequests.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void call(final I request) {
+    ListenableFuture<? extends O> response;
+    try {
+      response = method.apply(request);
+    } catch (Exception e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(response, new FutureCallback<O>() {
+
+      @Override
+      public void onSuccess(O result) {
+        try {
+          synchronized (observerLock) {
+            observer.onResponse(request, result);
+          }
+        } catch (RuntimeException re) {
+          completion.setException(re);
+        }
+        complete();
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        try {
+          synchronized (observerLock) {
+            observer.onFailure(request, throwable);
+          }
+        } catch (RuntimeException re) {
+          completion.setException(re);
+        }
+        complete();
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  private void complete() {
+    completed.incrementAndGet();
+    inFlight.decrementAndGet();
+    drain();
+  }
+
+  /**
+   * Receives the outcome of the calls of a {@link CallStream}.
+   *
+   * @param <I> the type of the requests
+   * @param <O> the type of the responses
+   */
+  public interface Observer<I, O> {
+
+    /**
+     * Invoked when a call succeeded.
+     *
+     * @param request the request of the call
+     * @param response the response of the server
+     */
+    public void onResponse(I request, O response);
+
+    /**
+     * Invoked when a call failed.
+     *
+     * @param request the request of the call
+     * @param cause the cause of the failure
+     */
+    public void onFailure(I request, Throwable cause);
+  }
+}
@@ -17,8 +17,10 @@
 package io.soliton.protobuf;
 
 import com.google.common.base.Preconditions;
+import com.google.common.net.HostAndPort;
 import com.google.protobuf.Message;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -62,17 +64,57 @@ public class ChannelInitializers {
 
       @Override
       protected void initChannel(Channel channel) throws Exception {
-        channel.pipeline().addLast("frameDecoder",
-            new LengthFieldBasedFrameDecoder(10 * 1024 * 1024, 0, 4, 0, 4));
-        channel.pipeline().addLast("protobufDecoder",
-            new ProtobufDecoder(defaultInstance));
-        channel.pipeline().addLast("frameEncoder", new LengthFieldPrepender(4));
-        channel.pipeline().addLast("protobufEncoder", new ProtobufEncoder());
-        channel.pipeline().addLast("applicationHandler", handler);
+        addProtoBufHandlers(channel.pipeline(), defaultInstance, handler);
       }
     };
   }
 
+  /**
+   * Returns a new channel initializer suited to securely encode and decode a
+   * protocol buffer message.
+   * <p/>
+   * <p>Message sizes over 10 MB are not supported.</p>
+   *
+   * @param defaultInstance an instance of the message to handle
+   * @param handler the handler implementing the application logic
+   * @param tlsConfig the configuration securing the connections
+   * @param peer the address of the server on the client side, used to
+   * resume TLS sessions, or {@code null}
+   * @param <M> the type of the support protocol buffer message
+   */
+  public static final <M extends Message> ChannelInitializer<Channel> secureProtoBuf(
+      final M defaultInstance, final SimpleChannelInboundHandler<M> handler,
+      final TlsConfig tlsConfig, final HostAndPort peer) {
+    Preconditions.checkNotNull(tlsConfig);
+    return new ChannelInitializer<Channel>() {
+
+      @Override
+      protected void initChannel(Channel channel) throws Exception {
+        channel.pipeline().addLast("ssl", tlsConfig.newHandler(channel.alloc(), peer));
+        addProtoBufHandlers(channel.pipeline(), defaultInstance, handler);
+      }
+    };
+  }
+
+  /**
+   * Appends to the given pipeline the handlers needed to encode and decode a
+   * protocol buffer message.
+   *
+   * @param pipeline the pipeline of the channel to set up
+   * @param defaultInstance an instance of the message to handle
+   * @param handler the handler implementing the application logic
+   * @param <M> the type of the support protocol buffer message
+   */
+  public static <M extends Message> void addProtoBufHandlers(ChannelPipeline pipeline,
+      M defaultInstance, SimpleChannelInboundHandler<M> handler) {
+    pipeline.addLast("frameDecoder",
+        new LengthFieldBasedFrameDecoder(10 * 1024 * 1024, 0, 4, 0, 4));
+    pipeline.addLast("protobufDecoder", new ProtobufDecoder(defaultInstance));
+    pipeline.addLast("frameEncoder", new LengthFieldPrepender(4));
+    pipeline.addLast("protobufEncoder", new ProtobufEncoder());
+    pipeline.addLast("applicationHandler", handler);
+  }
+
   /**
    * Returns a new chanel initializer suited to decode and process HTTP
    * requests.
@@ -81,15 +123,27 @@ public class ChannelInitializers {
    */
   public static final ChannelInitializer<Channel> httpServer(
       final SimpleChannelInboundHandler<HttpRequest> handler) {
+    return httpServer(handler, null);
+  }
+
+  /**
+   * Returns a new chanel initializer suited to decode and process HTTP
+   * requests, some of which are intercepted before reaching the application
+   * handler.
+   *
+   * @param handler the handler implementing the application logic
+   * @param interceptor a sharable handler given the first chance to process
+   * decoded requests, e.g. to serve administrative endpoints, or {@code null}
+   */
+  public static final ChannelInitializer<Channel> httpServer(
+      final SimpleChannelInboundHandler<HttpRequest> handler, final ChannelHandler interceptor) {
     Preconditions.checkArgument(handler.isSharable());
     return new ChannelInitializer<Channel>() {
 
       @Override
       protected void initChannel(Channel channel) throws Exception {
         ChannelPipeline pipeline = channel.pipeline();
-        pipeline.addLast("httpCodec", new HttpServerCodec());
-        pipeline.addLast("aggregator", new HttpObjectAggregator(10 * 1024 * 1024));
-        pipeline.addLast("httpServerHandler", handler);
+        addHttpServerHandlers(pipeline, handler, interceptor);
       }
     };
   }
@@ -107,6 +161,23 @@ public class ChannelInitializers {
   public static final ChannelInitializer<Channel> secureHttpServer(
       final SimpleChannelInboundHandler<HttpRequest> handler,
       final SSLContext sslContext) {
+    return secureHttpServer(handler, null, sslContext);
+  }
+
+  /**
+   * Returns a server-side channel initializer capable of securely receiving
+   * and sending HTTP requests and responses, some of which are intercepted
+   * before reaching the application handler.
+   *
+   * @param handler the handler implementing the business logic.
+   * @param interceptor a sharable handler given the first chance to process
+   * decoded requests, e.g. to serve administrative endpoints, or {@code null}
+   * @param sslContext the SSL context which drives the security of the
+   * link to the client.
+   */
+  public static final ChannelInitializer<Channel> secureHttpServer(
+      final SimpleChannelInboundHandler<HttpRequest> handler, final ChannelHandler interceptor,
+      final SSLContext sslContext) {
     return new ChannelInitializer<Channel>() {
       @Override
       protected void initChannel(Channel channel) throws Exception {
@@ -114,13 +185,54 @@ public class ChannelInitializers {
         SSLEngine sslEngine = sslContext.createSSLEngine();
         sslEngine.setUseClientMode(false);
         pipeline.addLast("ssl", new SslHandler(sslEngine));
-        pipeline.addLast("httpCodec", new HttpServerCodec());
-        pipeline.addLast("aggregator", new HttpObjectAggregator(10 * 1024 * 1024));
-        pipeline.addLast("httpServerHandler", handler);
+        addHttpServerHandlers(pipeline, handler, interceptor);
       }
     };
   }
 
+  /**
+   * Returns a server-side channel initializer capable of securely receiving
+   * and sending HTTP requests and responses, some of which are intercepted
+   * before reaching the application handler.
+   *
+   * @param handler the handler implementing the business logic.
+   * @param interceptor a sharable handler given the first chance to process
+   * decoded requests, e.g. to serve administrative endpoints, or {@code null}
+   * @param tlsConfig the configuration securing the connections
+   */
+  public static final ChannelInitializer<Channel> secureHttpServer(
+      final SimpleChannelInboundHandler<HttpRequest> handler, final ChannelHandler interceptor,
+      final TlsConfig tlsConfig) {
+    Preconditions.checkArgument(!tlsConfig.isClient());
+    return new ChannelInitializer<Channel>() {
+      @Override
+      protected void initChannel(Channel channel) throws Exception {
+        ChannelPipeline pipeline = channel.pipeline();
+        pipeline.addLast("ssl", tlsConfig.newHandler(channel.alloc(), null));
+        addHttpServerHandlers(pipeline, handler, interceptor);
+      }
+    };
+  }
+
+  /**
+   * Appends to the given pipeline the handlers needed to decode and process
+   * HTTP requests.
+   *
+   * @param pipeline the pipeline of the channel to set up
+   * @param handler the handler implementing the application logic
+   * @param interceptor a sharable handler given the first chance to process
+   * decoded requests, or {@code null}
+   */
+  public static void addHttpServerHandlers(ChannelPipeline pipeline, ChannelHandler handler,
+      ChannelHandler interceptor) {
+    pipeline.addLast("httpCodec", new HttpServerCodec());
+    pipeline.addLast("aggregator", new HttpObjectAggregator(10 * 1024 * 1024));
+    if (interceptor != null) {
+      pipeline.addLast("interceptor", interceptor);
+    }
+    pipeline.addLast("httpServerHandler", handler);
+  }
+
   /**
    * Returns a channel initializer suited to decode and process HTTP responses.
    *
@@ -167,4 +279,29 @@ public class ChannelInitializers {
       }
     };
   }
+
+  /**
+   * Returns a client-side channel initializer capable of securely sending
+   * and receiving HTTP requests and responses.
+   *
+   * @param handler the handler in charge of implementing the business logic
+   * @param tlsConfig the configuration securing the connections
+   * @param peer the address of the server, used to resume TLS sessions
+   */
+  public static final ChannelInitializer<Channel> secureHttpClient(
+      final SimpleChannelInboundHandler<HttpResponse> handler, final TlsConfig tlsConfig,
+      final HostAndPort peer) {
+    Preconditions.checkArgument(tlsConfig.isClient());
+    return new ChannelInitializer<Channel>() {
+
+      @Override
+      protected void initChannel(Channel channel) throws Exception {
+        ChannelPipeline pipeline = channel.pipeline();
+        pipeline.addLast("ssl", tlsConfig.newHandler(channel.alloc(), peer));
+        pipeline.addLast("httpCodec", new HttpClientCodec());
+        pipeline.addLast("aggregator", new HttpObjectAggregator(10 * 1024 * 1024));
+        pipeline.addLast("httpClientHandler", handler);
+      }
+    };
+  }
 }
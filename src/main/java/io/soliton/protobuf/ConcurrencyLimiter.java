@@ -0,0 +1,191 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of requests being concurrently processed.
+ * <p/>
+ * <p>Instances of this class are thread-safe and never block: a request
+ * either obtains a slot right away or is refused. Each instance keeps its
+ * own count and should only be used for a single scope, e.g. one service.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public abstract class ConcurrencyLimiter {
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /**
+   * Returns a limiter which never lets more than the given number of
+   * requests be processed concurrently.
+   *
+   * @param limit the maximum number of concurrent requests
+   */
+  public static ConcurrencyLimiter fixed(int limit) {
+    return new FixedLimiter(limit);
+  }
+
+  /**
+   * Returns a limiter whose limit adapts to the observed latency of requests,
+   * following an additive-increase/multiplicative-decrease scheme.
+   * <p/>
+   * <p>The limit grows by {@code 1/limit} for each request completed within
+   * the latency threshold while the limiter is at least half-utilized, that
+   * is by about one per window of {@code limit} requests. It shrinks by a
+   * factor of {@code 0.9} when a request exceeds the threshold, at most once
+   * per window, such that a burst of slow requests is only acted upon
+   * once.</p>
+   *
+   * @param initialLimit the limit to start with
+   * @param minLimit the lower bound of the limit
+   * @param maxLimit the upper bound of the limit
+   * @param latencyThreshold the latency above which the server is considered
+   * overloaded
+   * @param unit the unit of {@code latencyThreshold}
+   */
+  public static ConcurrencyLimiter aimd(int initialLimit, int minLimit, int maxLimit,
+      long latencyThreshold, TimeUnit unit) {
+    return new AimdLimiter(initialLimit, minLimit, maxLimit, unit.toNanos(latencyThreshold));
+  }
+
+  /**
+   * Attempts to obtain a slot for a new request.
+   *
+   * @return {@code true} if the request may proceed, in which case
+   * {@link #release(long)} must eventually be called.
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit()) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Releases the slot held by a completed request.
+   *
+   * @param latencyNanos the time it took to process the request
+   */
+  public void release(long latencyNanos) {
+    int current = inFlight.getAndDecrement();
+    onSample(latencyNanos, current);
+  }
+
+  /**
+   * Releases a slot without reporting a latency sample, e.g. for a request
+   * which was refused further down the line.
+   */
+  void abandon() {
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * Returns the number of requests currently being processed.
+   */
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Returns the current limit.
+   */
+  public abstract int limit();
+
+  /**
+   * Invoked upon the completion of each request.
+   *
+   * @param latencyNanos the time it took to process the request
+   * @param inFlight the number of requests in flight when this one completed,
+   * including itself
+   */
+  protected abstract void onSample(long latencyNanos, int inFlight);
+
+  private static final class FixedLimiter extends ConcurrencyLimiter {
+
+    private final int limit;
+
+    private FixedLimiter(int limit) {
+      Preconditions.checkArgument(limit > 0);
+      this.limit = limit;
+    }
+
+    @Override
+    public int limit() {
+      return limit;
+    }
+
+    @Override
+    protected void onSample(long latencyNanos, int inFlight) {
+    }
+  }
+
+  private static final class AimdLimiter extends ConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+
+    private final AtomicLong samples = new AtomicLong();
+
+    // Updates are racy by design: losing a sample under contention is harmless.
+    private volatile double limit;
+    private volatile long lastDecrease = Long.MIN_VALUE / 2;
+
+    private AimdLimiter(int initialLimit, int minLimit, int maxLimit,
+        long latencyThresholdNanos) {
+      Preconditions.checkArgument(minLimit > 0);
+      Preconditions.checkArgument(minLimit <= initialLimit && initialLimit <= maxLimit);
+      Preconditions.checkArgument(latencyThresholdNanos > 0);
+      this.minLimit = minLimit;
+      this.maxLimit = maxLimit;
+      this.latencyThresholdNanos = latencyThresholdNanos;
+      this.limit = initialLimit;
+    }
+
+    @Override
+    public int limit() {
+      return (int) limit;
+    }
+
+    @Override
+    protected void onSample(long latencyNanos, int inFlight) {
+      long sample = samples.incrementAndGet();
+      double current = limit;
+      if (latencyNanos > latencyThresholdNanos) {
+        if (sample - lastDecrease >= current) {
+          lastDecrease = sample;
+          limit = Math.max(minLimit, current * BACKOFF_RATIO);
+        }
+      } else if (inFlight * 2 >= current) {
+        limit = Math.min(maxLimit, current + 1 / current);
+      }
+    }
+  }
+}
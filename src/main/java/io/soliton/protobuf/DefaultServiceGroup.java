@@ -16,27 +16,43 @@
 
 package io.soliton.protobuf;
 
-import com.google.common.base.Preconditions;
-import com.google.common.collect.Maps;
-
-import java.util.Map;
-
 /**
  * Default implementation of {@link ServiceGroup}.
+ * <p/>
+ * <p>Lookups are performed against an immutable {@link DispatchTable} and
+ * never block. Adding or removing a service replaces the table, such that
+ * services can be modified while the server is running.</p>
  *
  * @author Julien Silland (julien@soliton.io)
  */
 public class DefaultServiceGroup implements ServiceGroup {
 
-  private final Map<String, Service> services = Maps.newHashMap();
+  private final Object lock = new Object();
+  private volatile DispatchTable dispatchTable = DispatchTable.empty();
 
   /**
    * {@inheritDoc}
    */
   @Override
   public void addService(Service service) {
-    Preconditions.checkNotNull(service);
-    services.put(service.fullName(), service);
+    synchronized (lock) {
+      dispatchTable = dispatchTable.withService(service);
+    }
+  }
+
+  /**
+   * Removes a service from this group.
+   *
+   * @param name the full name of the service to remove.
+   * @return the removed service, or {@code null} if no such service existed
+   *         in this group.
+   */
+  public Service removeService(String name) {
+    synchronized (lock) {
+      Service service = dispatchTable.service(name);
+      dispatchTable = dispatchTable.withoutService(name);
+      return service;
+    }
   }
 
   /**
@@ -44,11 +60,21 @@ public class DefaultServiceGroup implements ServiceGroup {
    */
   @Override
   public Service lookupByName(String name) {
-    return services.get(name);
+    return dispatchTable.service(name);
+  }
+
+  /**
+   * Returns a snapshot of the methods currently exposed by this group.
+   * <p/>
+   * <p>This method is cheap and safe to call from any thread, as it is used
+   * to dispatch each incoming request.</p>
+   */
+  public DispatchTable dispatchTable() {
+    return dispatchTable;
   }
 
   @Override
   public String toString() {
-    return services.toString();
+    return dispatchTable.toString();
   }
 }
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.protobuf.Message;
+
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the methods exposed by a {@link ServiceGroup}.
+ * <p/>
+ * <p>Methods are keyed by their full name, in the form
+ * {@code service/method}, and are each assigned an integer identifier. An
+ * identifier remains bound to the same full name for the lifetime of the
+ * group, even if the service is removed and added again, so that it never
+ * designates a different method than the one it was handed out for.</p>
+ * <p/>
+ * <p>Tables are never modified: adding or removing a service produces a new
+ * table, which can be safely published to threads performing lookups.</p>
+ * <p/>
+ * <p>Only {@link DefaultServiceGroup} maintains such a table. Lookups in
+ * other implementations of {@link ServiceGroup} go through
+ * {@link ServiceGroup#lookupByName(String)}, and their methods are not
+ * assigned identifiers.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class DispatchTable {
+
+  private static final DispatchTable EMPTY = new DispatchTable(
+      ImmutableMap.<String, Service>of(), ImmutableMap.<String, Integer>of());
+
+  private final ImmutableMap<String, Service> services;
+  private final ImmutableMap<String, Integer> identifiers;
+  private final ImmutableMap<String, Entry> entries;
+  private final Entry[] entriesById;
+  // Set when this table looks up the methods of a group lacking a table of its own
+  private final ServiceGroup group;
+
+  private DispatchTable(ServiceGroup group) {
+    this.services = ImmutableMap.of();
+    this.identifiers = ImmutableMap.of();
+    this.entries = ImmutableMap.of();
+    this.entriesById = new Entry[0];
+    this.group = group;
+  }
+
+  private DispatchTable(ImmutableMap<String, Service> services,
+      ImmutableMap<String, Integer> identifiers) {
+    this.group = null;
+    this.services = services;
+    this.identifiers = identifiers;
+    ImmutableMap.Builder<String, Entry> entries = ImmutableMap.builder();
+    this.entriesById = new Entry[identifiers.size()];
+    for (Service service : services.values()) {
+      for (ServerMethod<? extends Message, ? extends Message> method :
+          service.methods().values()) {
+        String fullName = fullName(service.fullName(), method.name());
+        Entry entry = new Entry(service, method, identifiers.get(fullName), fullName);
+        entries.put(fullName, entry);
+        entriesById[entry.id()] = entry;
+      }
+    }
+    this.entries = entries.build();
+  }
+
+  /**
+   * Returns a table containing no services.
+   */
+  public static DispatchTable empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Returns the table of methods exposed by the given group.
+   *
+   * @param group a service group
+   */
+  public static DispatchTable of(ServiceGroup group) {
+    if (group instanceof DefaultServiceGroup) {
+      return ((DefaultServiceGroup) group).dispatchTable();
+    }
+    return new DispatchTable(Preconditions.checkNotNull(group));
+  }
+
+  /**
+   * Returns the full name of a method, as used to key this table.
+   *
+   * @param service the full name of the service
+   * @param method the name of the method
+   */
+  public static String fullName(String service, String method) {
+    return service + '/' + method;
+  }
+
+  /**
+   * Returns a new table exposing the given service in addition to the
+   * services of this table. A service previously registered under the same
+   * full name is replaced.
+   *
+   * @param service the service to add
+   */
+  public DispatchTable withService(Service service) {
+    Preconditions.checkNotNull(service);
+    Map<String, Service> services = Maps.newLinkedHashMap(this.services);
+    services.put(service.fullName(), service);
+    Map<String, Integer> identifiers = Maps.newLinkedHashMap(this.identifiers);
+    for (String method : service.methods().keySet()) {
+      String fullName = fullName(service.fullName(), method);
+      if (!identifiers.containsKey(fullName)) {
+        identifiers.put(fullName, identifiers.size());
+      }
+    }
+    return new DispatchTable(ImmutableMap.copyOf(services), ImmutableMap.copyOf(identifiers));
+  }
+
+  /**
+   * Returns a new table exposing the services of this table, except for the
+   * one registered under the given name.
+   *
+   * @param name the full name of the service to remove
+   */
+  public DispatchTable withoutService(String name) {
+    if (!services.containsKey(name)) {
+      return this;
+    }
+    Map<String, Service> services = Maps.newLinkedHashMap(this.services);
+    services.remove(name);
+    return new DispatchTable(ImmutableMap.copyOf(services), identifiers);
+  }
+
+  /**
+   * Looks up a service by its full name.
+   *
+   * @return the service, or {@code null} if this table contains no such
+   * service
+   */
+  public Service service(String name) {
+    if (group != null) {
+      return group.lookupByName(name);
+    }
+    return services.get(name);
+  }
+
+  /**
+   * Returns all the services present in this table, or none if its lookups
+   * go through a group lacking a table of its own.
+   */
+  public ImmutableCollection<Service> services() {
+    return services.values();
+  }
+
+  /**
+   * Looks up a method by the name of its service and its own name.
+   *
+   * @return the method's entry, or {@code null} if this table contains no
+   * such method
+   */
+  public Entry lookup(String service, String method) {
+    if (group != null) {
+      Service found = group.lookupByName(service);
+      ServerMethod<? extends Message, ? extends Message> serverMethod =
+          found == null ? null : found.lookup(method);
+      return serverMethod == null ? null :
+          new Entry(found, serverMethod, -1, fullName(service, method));
+    }
+    return entries.get(fullName(service, method));
+  }
+
+  /**
+   * Looks up a method by its identifier.
+   *
+   * @return the method's entry, or {@code null} if this table contains no
+   * such method
+   */
+  public Entry lookup(int id) {
+    return id >= 0 && id < entriesById.length ? entriesById[id] : null;
+  }
+
+  @Override
+  public String toString() {
+    return entries.keySet().toString();
+  }
+
+  /**
+   * A method exposed by a table.
+   */
+  public static final class Entry {
+
+    private final Service service;
+    private final ServerMethod<? extends Message, ? extends Message> method;
+    private final int id;
+    private final String fullName;
+
+    private Entry(Service service, ServerMethod<? extends Message, ? extends Message> method,
+        int id, String fullName) {
+      this.service = service;
+      this.method = method;
+      this.id = id;
+      this.fullName = fullName;
+    }
+
+    /**
+     * Returns the service to which the method belongs.
+     */
+    public Service service() {
+      return service;
+    }
+
+    /**
+     * Returns the method itself.
+     */
+    public ServerMethod<? extends Message, ? extends Message> method() {
+      return method;
+    }
+
+    /**
+     * Returns the identifier assigned to the method, or {@code -1} if it
+     * has none.
+     */
+    public int id() {
+      return id;
+    }
+
+    /**
+     * Returns the full name of the method, in the form {@code service/method}.
+     */
+    public String fullName() {
+      return fullName;
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import io.netty.channel.Channel;
+
+/**
+ * Implemented by server-side handlers which can let their in-flight requests
+ * complete before the server shuts down.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ * @see AbstractRpcServer#shutDown()
+ */
+public interface Drainable {
+
+  /**
+   * Notifies the client connected on the given channel that it should send
+   * its next requests elsewhere.
+   *
+   * @param channel a channel this handler is serving
+   */
+  public void goAway(Channel channel);
+
+  /**
+   * Returns the number of requests still being processed by this handler.
+   */
+  public int pendingRequestCount();
+}
@@ -16,6 +16,8 @@
 
 package io.soliton.protobuf;
 
+import io.soliton.protobuf.metrics.RpcMetrics;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.MapMaker;
@@ -24,10 +26,15 @@ import com.google.protobuf.Message;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,10 +51,88 @@ public abstract class EnvelopeClientHandler<I, O> extends SimpleChannelInboundHa
   private static final Logger logger = Logger.getLogger(
       EnvelopeClientHandler.class.getCanonicalName());
 
+  private static final AttributeKey<Long> PENDING_PING = AttributeKey.valueOf(
+      EnvelopeClientHandler.class.getName() + ".pendingPing");
+
   private final ConcurrentMap<Long, EnvelopeFuture<? extends Message>> inFlightRequests =
       new MapMaker().makeMap();
-  private Channel channel;
+  private volatile Channel channel;
+  private volatile ConcurrentMap<ClientMethod<?>, Integer> methodIds = newMethodIds();
+  private volatile boolean useMethodIds;
   private ClientLogger clientLogger;
+  private volatile ReconnectManager reconnectManager;
+  private volatile KeepAlivePolicy keepAlivePolicy = KeepAlivePolicy.disabled();
+  private volatile RpcMetrics metrics = RpcMetrics.disabled();
+  private volatile long roundTripNanos = -1;
+
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>A single handler is carried over the successive connections a client
+   * may open to its server, although only one of them is active at any given
+   * time.</p>
+   */
+  @Override
+  public boolean isSharable() {
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>The channel is recorded as soon as this handler is added to its
+   * pipeline: listeners of the connection future may use it before the
+   * channel is reported active.</p>
+   */
+  @Override
+  public void handlerAdded(ChannelHandlerContext context) throws Exception {
+    setChannel(context.channel());
+    // Method identifiers are only valid on the connection they were learned on
+    methodIds = newMethodIds();
+    if (keepAlivePolicy.isEnabled()) {
+      context.pipeline().addBefore(context.name(), "idleStateHandler", new IdleStateHandler(
+          keepAlivePolicy.intervalMillis(), 0, 0, TimeUnit.MILLISECONDS));
+    }
+    super.handlerAdded(context);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>Pings the server when nothing was received from it for the interval
+   * configured in the {@link KeepAlivePolicy}.</p>
+   */
+  @Override
+  public void userEventTriggered(ChannelHandlerContext context, Object event) throws Exception {
+    if (event instanceof IdleStateEvent
+        && ((IdleStateEvent) event).state() == IdleState.READER_IDLE) {
+      ping(context.channel());
+      return;
+    }
+    super.userEventTriggered(context, event);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>Requests that were in flight on the closed channel are failed.
+   * Requests not yet written are left to the {@link ReconnectManager}, which
+   * sends them on the next connection or fails them as per its policy.</p>
+   */
+  @Override
+  public void channelInactive(ChannelHandlerContext context) throws Exception {
+    Channel closed = context.channel();
+    for (Map.Entry<Long, EnvelopeFuture<? extends Message>> entry :
+        inFlightRequests.entrySet()) {
+      if (entry.getValue().channel() == closed) {
+        EnvelopeFuture<? extends Message> future = inFlightRequests.remove(entry.getKey());
+        if (future != null) {
+          future.setException(new Exception("Channel was closed by the remote end"));
+        }
+      }
+    }
+    super.channelInactive(context);
+  }
 
   /**
    * {@inheritDoc}
@@ -61,23 +146,49 @@ public abstract class EnvelopeClientHandler<I, O> extends SimpleChannelInboundHa
       logger.log(Level.WARNING, "Failed to convert response", rce);
       return;
     }
+    if (envelope.hasControl() && envelope.getControl().getGoAway()) {
+      goAway(context.channel());
+      return;
+    }
+    if (envelope.hasControl() && envelope.getControl().hasPong()) {
+      onPong(context.channel(), envelope.getControl().getPong());
+      return;
+    }
     EnvelopeFuture<? extends Message> future = inFlightRequests.remove(envelope.getRequestId());
     if (future == null) {
       logger.warning(String.format("Received response from %s for unknown request id: %d",
-          channel.remoteAddress(), envelope.getRequestId()));
+          context.channel().remoteAddress(), envelope.getRequestId()));
       return;
     }
+    // Identifiers advertised on a draining connection are not valid on the current one
+    if (useMethodIds && envelope.hasMethodId() && context.channel() == channel) {
+      // Concurrent calls addressed by name are all answered with the same identifier
+      methodIds.putIfAbsent(future.clientMethod(), envelope.getMethodId());
+    }
     future.setResponse(envelope);
   }
 
+  /**
+   * Returns the identifier by which the given method should be addressed on
+   * the current connection.
+   *
+   * @param clientMethod the method being invoked
+   * @return the identifier advertised by the server for the method, or
+   * {@code null} if it should be addressed by name
+   */
+  public Integer methodId(ClientMethod<?> clientMethod) {
+    return useMethodIds ? methodIds.get(clientMethod) : null;
+  }
+
   /**
    * Converts an outgoing RPC method call into the request type supported by
    * this handler.
    *
    * @param request the outgoing request
+   * @param channel the channel the request is written to
    * @return the converted request
    */
-  public abstract I convertRequest(Envelope request);
+  public abstract I convertRequest(Envelope request, Channel channel);
 
   /**
    * Converts an incoming RPC response from the type supported by this handler
@@ -127,6 +238,17 @@ public abstract class EnvelopeClientHandler<I, O> extends SimpleChannelInboundHa
     this.channel = Preconditions.checkNotNull(channel);
   }
 
+  /**
+   * Sets whether this handler should address methods by the identifiers
+   * advertised by the server rather than by name.
+   * <p/>
+   * <p>Identifiers are learned per connection and should only be used when
+   * the client is directly connected to a single server.</p>
+   */
+  public void setUseMethodIds(boolean useMethodIds) {
+    this.useMethodIds = useMethodIds;
+  }
+
   /**
    * Sets the logger this handler should report events to.
    *
@@ -136,6 +258,44 @@ public abstract class EnvelopeClientHandler<I, O> extends SimpleChannelInboundHa
     this.clientLogger = Preconditions.checkNotNull(clientLogger);
   }
 
+  /**
+   * Sets the manager of the connections of the client, notified when the
+   * server announces that it is going away.
+   *
+   * @param reconnectManager a reconnect manager.
+   */
+  public void setReconnectManager(ReconnectManager reconnectManager) {
+    this.reconnectManager = Preconditions.checkNotNull(reconnectManager);
+  }
+
+  /**
+   * Sets the policy driving the keepalive pings sent on the connections
+   * this handler is subsequently added to.
+   *
+   * @param keepAlivePolicy a keepalive policy.
+   */
+  public void setKeepAlivePolicy(KeepAlivePolicy keepAlivePolicy) {
+    this.keepAlivePolicy = Preconditions.checkNotNull(keepAlivePolicy);
+  }
+
+  /**
+   * Sets the registry in which the round-trip times of keepalive pings are
+   * recorded.
+   *
+   * @param metrics a metrics registry.
+   */
+  public void setMetrics(RpcMetrics metrics) {
+    this.metrics = Preconditions.checkNotNull(metrics);
+  }
+
+  /**
+   * Returns the round-trip time of the last keepalive ping answered by the
+   * server, in nanoseconds, or {@code -1} if none was.
+   */
+  public long roundTripNanos() {
+    return roundTripNanos;
+  }
+
   /**
    * Returns the mapping in which the RPC requests pending with the server
    * are kept.
@@ -146,7 +306,66 @@ public abstract class EnvelopeClientHandler<I, O> extends SimpleChannelInboundHa
   }
 
   /**
-   * Returns the outbound channel connected to the remote server.
+   * Handles the notice that the server is shutting down the given channel.
+   * <p/>
+   * <p>Requests in flight on the channel complete on it, while subsequent
+   * ones, including those not yet written, wait for a new connection.</p>
+   *
+   * @param goingAway the channel the server is shutting down
+   */
+  protected void goAway(Channel goingAway) {
+    logger.info(String.format("Server at %s is going away", goingAway.remoteAddress()));
+    if (channel == goingAway) {
+      channel = null;
+    }
+    if (reconnectManager != null) {
+      reconnectManager.goAway(goingAway);
+    }
+  }
+
+  private void ping(final Channel current) {
+    // Boxed once, as attributes compare their values by identity
+    final Long sent = System.nanoTime();
+    if (!current.attr(PENDING_PING).compareAndSet(null, sent)) {
+      // The previous ping is still pending, its timeout will take care of it
+      return;
+    }
+    Envelope ping = Envelope.newBuilder()
+        .setControl(Control.newBuilder().setPing(sent))
+        .build();
+    current.writeAndFlush(convertRequest(ping, current));
+    current.eventLoop().schedule(new Runnable() {
+
+      @Override
+      public void run() {
+        if (current.attr(PENDING_PING).compareAndSet(sent, null)) {
+          logger.warning(String.format("Server at %s did not answer ping, closing connection",
+              current.remoteAddress()));
+          current.close();
+        }
+      }
+    }, keepAlivePolicy.timeoutMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private void onPong(Channel current, long sent) {
+    Long pending = current.attr(PENDING_PING).get();
+    if (pending != null && pending == sent
+        && current.attr(PENDING_PING).compareAndSet(pending, null)) {
+      long elapsed = System.nanoTime() - sent;
+      roundTripNanos = elapsed;
+      metrics.recordRoundTrip(elapsed);
+    }
+  }
+
+  private static ConcurrentMap<ClientMethod<?>, Integer> newMethodIds() {
+    // Client methods are singletons of their stub, compare them by identity
+    return new MapMaker().weakKeys().makeMap();
+  }
+
+  /**
+   * Returns the outbound channel connected to the remote server, or
+   * {@code null} while waiting for a new connection after the server went
+   * away.
    */
   protected Channel channel() {
     return channel;
@@ -166,12 +385,15 @@ public abstract class EnvelopeClientHandler<I, O> extends SimpleChannelInboundHa
 
     @Override
     public void run() {
-      if (inFlightRequests.remove(requestId) != null) {
+      EnvelopeFuture<? extends Message> future = inFlightRequests.remove(requestId);
+      // Only the server the request was written to needs to hear about it
+      Channel bound = future == null ? null : future.channel();
+      if (bound != null) {
         Envelope request = Envelope.newBuilder()
             .setRequestId(requestId)
             .setControl(Control.newBuilder().setCancel(true))
             .build();
-        channel.writeAndFlush(convertRequest(request));
+        bound.writeAndFlush(convertRequest(request, bound));
       }
     }
   }
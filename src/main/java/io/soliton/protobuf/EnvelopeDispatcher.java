@@ -0,0 +1,430 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import io.soliton.protobuf.metrics.CallTimer;
+import io.soliton.protobuf.metrics.RpcMetrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Dispatches the requests received by a server, encoded as {@link Envelope}
+ * messages, to the methods of its services.
+ * <p/>
+ * <p>This class carries the logic shared by the servers of all the
+ * transports exchanging envelopes: cancellation, admission control,
+ * metrics, coalescing of identical calls, caching of responses and the
+ * reporting of errors. Responses are handed over to the {@link Responder}
+ * of the request, which writes them to the transport.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class EnvelopeDispatcher {
+
+  private static final Logger logger = Logger.getLogger(
+      EnvelopeDispatcher.class.getCanonicalName());
+
+  private final ConcurrentMap<Long, ListenableFuture<?>> pendingRequests = new MapMaker().makeMap();
+  private final SingleFlight singleFlight = new SingleFlight();
+
+  private final ServiceGroup services;
+  private final ServerLogger serverLogger;
+  private final AdmissionController admissionController;
+  private final RpcMetrics metrics;
+  private final Executor responseCallbackExecutor;
+  private volatile boolean includeStackTraces;
+  private volatile ImmutableSet<String> coalescedMethods = ImmutableSet.of();
+  private volatile ResponseCache responseCache = ResponseCache.disabled();
+
+  /**
+   * Exhaustive constructor.
+   *
+   * @param services the services to dispatch requests to
+   * @param serverLogger the logger to which monitorable events are reported
+   * @param admissionController the controller deciding which calls to shed
+   * @param metrics the registry in which to record the metrics of calls
+   * @param responseCallbackExecutor the executor on which responses are
+   * handed over to their responder once available
+   */
+  public EnvelopeDispatcher(ServiceGroup services, ServerLogger serverLogger,
+      AdmissionController admissionController, RpcMetrics metrics,
+      Executor responseCallbackExecutor) {
+    this.services = Preconditions.checkNotNull(services);
+    this.serverLogger = Preconditions.checkNotNull(serverLogger);
+    this.admissionController = Preconditions.checkNotNull(admissionController);
+    this.metrics = Preconditions.checkNotNull(metrics);
+    this.responseCallbackExecutor = Preconditions.checkNotNull(responseCallbackExecutor);
+  }
+
+  /**
+   * Sets whether the stack traces of failed method invocations should be
+   * sent to clients. Disabled by default, as rendering them is expensive
+   * and may disclose implementation details.
+   */
+  public void setIncludeStackTraces(boolean includeStackTraces) {
+    this.includeStackTraces = includeStackTraces;
+  }
+
+  /**
+   * Sets the methods whose concurrent invocations with identical payloads
+   * should share a single invocation and response.
+   * <p/>
+   * <p>Only methods whose result depends solely on their parameter should
+   * be coalesced.</p>
+   *
+   * @param coalescedMethods the full names of the methods, in the form
+   * {@code service/method}
+   */
+  public void setCoalescedMethods(Set<String> coalescedMethods) {
+    this.coalescedMethods = ImmutableSet.copyOf(coalescedMethods);
+  }
+
+  /**
+   * Sets the cache in which the responses of cacheable methods are kept.
+   * Cacheable methods are also coalesced.
+   *
+   * @see #setCoalescedMethods(Set)
+   */
+  public void setResponseCache(ResponseCache responseCache) {
+    this.responseCache = Preconditions.checkNotNull(responseCache);
+  }
+
+  /**
+   * Returns the requests whose invocation is in progress, keyed by their
+   * identifier.
+   */
+  public Map<Long, ListenableFuture<?>> pendingRequests() {
+    return pendingRequests;
+  }
+
+  /**
+   * Processes a single request.
+   *
+   * @param envelope the request
+   * @param responder the means of responding to the client the request was
+   * received from
+   */
+  public void dispatch(Envelope envelope, Responder responder) {
+    if (envelope.hasControl() && envelope.getControl().hasPing()) {
+      responder.respond(Envelope.newBuilder()
+          .setRequestId(envelope.getRequestId())
+          .setControl(Control.newBuilder().setPong(envelope.getControl().getPing()))
+          .build(), null);
+      return;
+    }
+
+    if (envelope.hasControl() && envelope.getControl().getCancel()) {
+      ListenableFuture<?> pending = pendingRequests.remove(envelope.getRequestId());
+      if (pending != null) {
+        boolean cancelled = pending.cancel(true);
+        responder.respond(Envelope.newBuilder()
+            .setRequestId(envelope.getRequestId())
+            .setControl(Control.newBuilder().setCancel(cancelled))
+            .build(), null);
+      }
+      return;
+    }
+
+    DispatchTable.Entry entry;
+    if (envelope.hasMethodId()) {
+      entry = DispatchTable.of(services).lookup(envelope.getMethodId());
+      if (entry == null) {
+        String error = String.format("Unknown method id %d", envelope.getMethodId());
+        logger.warning(String.format("Received request for %s", error));
+        respondWithError(responder, envelope.getRequestId(),
+            new RpcException(ErrorCode.UNKNOWN_METHOD, error));
+        return;
+      }
+    } else {
+      entry = DispatchTable.of(services).lookup(envelope.getService(), envelope.getMethod());
+    }
+    if (entry == null) {
+      Service service = services.lookupByName(envelope.getService());
+      RpcException error;
+      if (service == null) {
+        serverLogger.logUnknownService(service);
+        error = new RpcException(ErrorCode.UNKNOWN_SERVICE,
+            String.format("Unknown service %s", envelope.getService()));
+      } else {
+        serverLogger.logUnknownMethod(service, envelope.getMethod());
+        error = new RpcException(ErrorCode.UNKNOWN_METHOD,
+            String.format("Unknown method %s/%s", envelope.getService(), envelope.getMethod()));
+      }
+      logger.warning(String.format("Received request for %s", error.getMessage()));
+      respondWithError(responder, envelope.getRequestId(), error);
+      return;
+    }
+
+    // Clients addressing a method by name are told which identifier to use instead
+    int advertisedId = envelope.hasMethodId() ? -1 : entry.id();
+    String serviceName = entry.service().fullName();
+    String methodName = entry.method().name();
+    boolean cacheable = responseCache.isCacheable(entry.fullName());
+    if (cacheable) {
+      ByteString cached = responseCache.get(entry.fullName(), envelope.getPayload());
+      if (cached != null) {
+        // Cache hits are timed as calls executed upon their dispatch, without admission
+        CallTimer timer = metrics.startCall(serviceName, methodName,
+            envelope.getPayload().size());
+        serverLogger.logMethodCall(entry.service(), entry.method());
+        timer.dispatched();
+        ServerMethodCallback<?> callback = new ServerMethodCallback<>(entry.method(),
+            envelope.getRequestId(), advertisedId, responder,
+            AdmissionController.Permit.unlimited(), timer);
+        callback.respond(cached);
+        return;
+      }
+    }
+
+    // Shed load before paying for the parsing and invocation of the request
+    AdmissionController.Permit permit = admissionController.tryAdmit(serviceName, methodName);
+    if (permit == null) {
+      respondWithError(responder, envelope.getRequestId(),
+          new RpcException(ErrorCode.OVERLOADED, "Server overloaded", null,
+              admissionController.retryAfterMillis()));
+      return;
+    }
+
+    CallTimer timer = metrics.startCall(serviceName, methodName, envelope.getPayload().size());
+    serverLogger.logMethodCall(entry.service(), entry.method());
+    // Cacheable methods are idempotent, and thus safe to coalesce
+    if (cacheable || coalescedMethods.contains(entry.fullName())) {
+      ListenableFuture<ByteString> response = invokeCoalesced(entry, envelope.getPayload(),
+          envelope.getRequestId(), advertisedId, responder, permit, timer);
+      if (cacheable) {
+        responseCache.populate(entry.fullName(), envelope.getPayload(), response);
+      }
+    } else {
+      invoke(entry.method(), envelope.getPayload(), envelope.getRequestId(), advertisedId,
+          responder, permit, timer);
+    }
+  }
+
+  /**
+   * Performs a single method invocation.
+   *
+   * @param method the method to invoke
+   * @param payload the serialized parameter received from the client
+   * @param requestId the unique identifier of the request
+   * @param advertisedId the method identifier to send back to the client, or
+   * {@code -1}
+   * @param responder the means of responding to the client
+   * @param permit the admission of this invocation
+   * @param timer the timer of this invocation
+   * @param <I> the type of the method's parameter
+   * @param <O> the return type of the method
+   */
+  private <I extends Message, O extends Message> void invoke(ServerMethod<I, O> method,
+      ByteString payload, long requestId, int advertisedId, Responder responder,
+      AdmissionController.Permit permit, CallTimer timer) {
+    FutureCallback<O> callback = new ServerMethodCallback<>(method, requestId, advertisedId,
+        responder, permit, timer);
+    try {
+      I request = method.inputParser().parseFrom(payload);
+      timer.dispatched();
+      ListenableFuture<O> result = method.invoke(request);
+      pendingRequests.put(requestId, result);
+      Futures.addCallback(result, callback, responseCallbackExecutor);
+    } catch (InvalidProtocolBufferException | RuntimeException e) {
+      // Implementations are invoked directly and may throw instead of failing their future
+      callback.onFailure(e);
+    }
+  }
+
+  /**
+   * Performs a method invocation, or joins an identical one already in
+   * progress.
+   *
+   * @see #invoke(ServerMethod, ByteString, long, int, Responder,
+   * AdmissionController.Permit, CallTimer)
+   */
+  private ListenableFuture<ByteString> invokeCoalesced(DispatchTable.Entry entry,
+      ByteString payload, long requestId, int advertisedId, Responder responder,
+      AdmissionController.Permit permit, CallTimer timer) {
+    final ServerMethodCallback<?> callback = new ServerMethodCallback<>(entry.method(), requestId,
+        advertisedId, responder, permit, timer);
+    timer.dispatched();
+    ListenableFuture<ByteString> result = singleFlight.invoke(entry.fullName(), entry.method(),
+        payload);
+    pendingRequests.put(requestId, result);
+    Futures.addCallback(result, new FutureCallback<ByteString>() {
+
+      @Override
+      public void onSuccess(ByteString response) {
+        callback.respond(response);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        callback.onFailure(throwable);
+      }
+    }, responseCallbackExecutor);
+    return result;
+  }
+
+  private static Envelope newResponse(long requestId, int advertisedId, ByteString payload) {
+    Envelope.Builder response = Envelope.newBuilder()
+        .setPayload(payload)
+        .setRequestId(requestId);
+    if (advertisedId >= 0) {
+      response.setMethodId(advertisedId);
+    }
+    return response.build();
+  }
+
+  private static void respondWithError(Responder responder, long requestId,
+      RpcException error) {
+    responder.respond(Envelope.newBuilder()
+        .setRequestId(requestId)
+        .setControl(error.toControl())
+        .build(), null);
+  }
+
+  /**
+   * Describes the failure of a method invocation to the client.
+   *
+   * @param throwable the cause of the failure
+   */
+  private RpcException toRpcException(Throwable throwable) {
+    if (throwable instanceof RpcException) {
+      return (RpcException) throwable;
+    }
+    ErrorCode code = throwable instanceof InvalidProtocolBufferException ?
+        ErrorCode.INVALID_REQUEST : ErrorCode.APPLICATION_ERROR;
+    String details = includeStackTraces ? Throwables.getStackTraceAsString(throwable) : null;
+    return new RpcException(code, throwable.toString(), details, 0L);
+  }
+
+  /**
+   * Writes the responses of a server to the transport a request was
+   * received from.
+   */
+  public interface Responder {
+
+    /**
+     * Sends the given response to the client.
+     *
+     * @param response the response to send
+     * @param callback notified once the response was written, or failed to
+     * be, or {@code null}
+     */
+    void respond(Envelope response, FutureCallback<Void> callback);
+  }
+
+  /**
+   * Encapsulates the logic to execute when the invocation of a service
+   * method is done.
+   *
+   * @param <M> the method's return type
+   */
+  private class ServerMethodCallback<M extends Message> implements FutureCallback<M> {
+
+    private final ServerMethod<?, M> serverMethod;
+    private final long requestId;
+    private final int advertisedId;
+    private final Responder responder;
+    private final AdmissionController.Permit permit;
+    private final CallTimer timer;
+
+    private ServerMethodCallback(ServerMethod<?, M> serverMethod, long requestId,
+        int advertisedId, Responder responder, AdmissionController.Permit permit,
+        CallTimer timer) {
+      this.serverMethod = serverMethod;
+      this.requestId = requestId;
+      this.advertisedId = advertisedId;
+      this.responder = responder;
+      this.permit = permit;
+      this.timer = timer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onSuccess(M result) {
+      respond(result.toByteString());
+    }
+
+    /**
+     * Sends the serialized result of the invocation to the client.
+     *
+     * @param payload the serialized result
+     */
+    private void respond(ByteString payload) {
+      serverLogger.logServerSuccess(serverMethod);
+      pendingRequests.remove(requestId);
+      permit.release();
+      timer.executed();
+      responder.respond(newResponse(requestId, advertisedId, payload),
+          new WriteCallback(payload.size()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onFailure(Throwable throwable) {
+      logger.info("Responding to client with failure");
+      serverLogger.logServerFailure(serverMethod, throwable);
+      pendingRequests.remove(requestId);
+      permit.release();
+      timer.executed();
+      responder.respond(Envelope.newBuilder()
+          .setRequestId(requestId)
+          .setControl(toRpcException(throwable).toControl())
+          .build(), new WriteCallback(0));
+    }
+
+    /**
+     * Completes the timing of the call once its response is written.
+     */
+    private final class WriteCallback implements FutureCallback<Void> {
+
+      private final long responseSize;
+
+      private WriteCallback(long responseSize) {
+        this.responseSize = responseSize;
+      }
+
+      @Override
+      public void onSuccess(Void result) {
+        timer.completed(responseSize);
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        timer.completed(responseSize);
+        serverLogger.logLinkFailure(serverMethod, cause);
+      }
+    }
+  }
+}
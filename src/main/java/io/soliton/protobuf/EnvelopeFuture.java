@@ -21,6 +21,7 @@ import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
+import io.netty.channel.Channel;
 
 /**
  * A implementation of {@link ListenableFuture} tailored to handle responses
@@ -37,6 +38,7 @@ public class EnvelopeFuture<V extends Message> extends AbstractFuture<V> {
   private final ClientMethod<V> clientMethod;
   private final ClientLogger clientLogger;
   private final Runnable runOnCancel;
+  private volatile Channel channel;
 
   public EnvelopeFuture(long requestId, ClientMethod<V> clientMethod,
       Runnable runOnCancel, ClientLogger clientLogger) {
@@ -53,7 +55,7 @@ public class EnvelopeFuture<V extends Message> extends AbstractFuture<V> {
    */
   public void setResponse(Envelope response) {
     if (response.hasControl() && response.getControl().hasError()) {
-      setException(new Exception(response.getControl().getError()));
+      setException(RpcException.fromControl(response.getControl()));
       return;
     }
     try {
@@ -96,4 +98,28 @@ public class EnvelopeFuture<V extends Message> extends AbstractFuture<V> {
   public long requestId() {
     return requestId;
   }
+
+  /**
+   * Records the channel on which the request of this future was written.
+   *
+   * @param channel the channel connected to the server
+   */
+  public void bind(Channel channel) {
+    this.channel = Preconditions.checkNotNull(channel);
+  }
+
+  /**
+   * Returns the channel on which the request of this future was written, or
+   * {@code null} if it wasn't written yet.
+   */
+  public Channel channel() {
+    return channel;
+  }
+
+  /**
+   * Returns the method whose result this future represents.
+   */
+  public ClientMethod<V> clientMethod() {
+    return clientMethod;
+  }
 }
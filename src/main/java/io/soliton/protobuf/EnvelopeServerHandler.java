@@ -16,26 +16,27 @@
 
 package io.soliton.protobuf;
 
+import io.soliton.protobuf.metrics.RpcMetrics;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Throwables;
-import com.google.common.collect.MapMaker;
 import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.protobuf.Message;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.GenericFutureListener;
 
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,20 +48,32 @@ import java.util.logging.Logger;
  * @param <O> The outgoing response type in which the RPC envelope will be encoded
  * @author Julien Silland (julien@soliton.io)
  */
-public abstract class EnvelopeServerHandler<I, O> extends SimpleChannelInboundHandler<I> {
+public abstract class EnvelopeServerHandler<I, O> extends SimpleChannelInboundHandler<I>
+    implements Drainable {
 
   public static final Logger logger = Logger.getLogger(
       EnvelopeServerHandler.class.getCanonicalName());
 
-  private final ConcurrentMap<Long, ListenableFuture<?>> pendingRequests = new MapMaker().makeMap();
   private final ExecutorService responseCallbackExecutor = Executors.newCachedThreadPool();
 
-  private final ServiceGroup services;
   private final ServerLogger serverLogger;
+  private final EnvelopeDispatcher dispatcher;
+  private volatile long idleTimeoutMillis;
 
   public EnvelopeServerHandler(ServiceGroup services, ServerLogger serverLogger) {
-    this.services = Preconditions.checkNotNull(services);
+    this(services, serverLogger, AdmissionController.unlimited());
+  }
+
+  public EnvelopeServerHandler(ServiceGroup services, ServerLogger serverLogger,
+      AdmissionController admissionController) {
+    this(services, serverLogger, admissionController, RpcMetrics.disabled());
+  }
+
+  public EnvelopeServerHandler(ServiceGroup services, ServerLogger serverLogger,
+      AdmissionController admissionController, RpcMetrics metrics) {
     this.serverLogger = Preconditions.checkNotNull(serverLogger);
+    this.dispatcher = new EnvelopeDispatcher(services, serverLogger, admissionController,
+        metrics, responseCallbackExecutor);
   }
 
   /**
@@ -71,6 +84,36 @@ public abstract class EnvelopeServerHandler<I, O> extends SimpleChannelInboundHa
     return true;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void handlerAdded(ChannelHandlerContext context) throws Exception {
+    if (idleTimeoutMillis > 0) {
+      context.pipeline().addBefore(context.name(), "idleStateHandler",
+          new IdleStateHandler(idleTimeoutMillis, 0, 0, TimeUnit.MILLISECONDS));
+    }
+    super.handlerAdded(context);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>Closes connections on which nothing was received for the configured
+   * idle timeout.</p>
+   */
+  @Override
+  public void userEventTriggered(ChannelHandlerContext context, Object event) throws Exception {
+    if (event instanceof IdleStateEvent
+        && ((IdleStateEvent) event).state() == IdleState.READER_IDLE) {
+      logger.info(String.format("Closing idle connection from %s",
+          context.channel().remoteAddress()));
+      context.close();
+      return;
+    }
+    super.userEventTriggered(context, event);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -78,7 +121,8 @@ public abstract class EnvelopeServerHandler<I, O> extends SimpleChannelInboundHa
   public void channelRead0(ChannelHandlerContext context, I request)
       throws Exception {
     if (!accept(request)) {
-      context.fireChannelRead(request);
+      // The request is released upon returning, the next handler needs its own reference
+      context.fireChannelRead(ReferenceCountUtil.retain(request));
       return;
     }
 
@@ -90,48 +134,68 @@ public abstract class EnvelopeServerHandler<I, O> extends SimpleChannelInboundHa
       throw rce;
     }
 
-    if (envelope.hasControl() && envelope.getControl().getCancel()) {
-      ListenableFuture<?> pending = pendingRequests.remove(envelope.getRequestId());
-      if (pending != null) {
-        boolean cancelled = pending.cancel(true);
-        context.channel().writeAndFlush(Envelope.newBuilder()
-            .setRequestId(envelope.getRequestId())
-            .setControl(Control.newBuilder().setCancel(cancelled)).build());
-      }
-      return;
-    }
+    dispatcher.dispatch(envelope, new ChannelResponder(context.channel()));
+  }
 
-    Service service = services.lookupByName(envelope.getService());
-    if (service == null) {
-      serverLogger.logUnknownService(service);
-      logger.warning(String.format(
-          "Received request for unknown service %s", envelope.getService()));
-      context.channel().writeAndFlush(Envelope.newBuilder()
-          .setRequestId(envelope.getRequestId())
-          .setControl(Control.newBuilder()
-              .setError(String.format("Unknown service %s", envelope.getService())))
-          .build());
-      return;
-    }
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>This implementation sends a {@link Control} message whose
+   * {@code go_away} field is set.</p>
+   */
+  @Override
+  public void goAway(Channel channel) {
+    channel.writeAndFlush(convertResponse(Envelope.newBuilder()
+        .setControl(Control.newBuilder().setGoAway(true))
+        .build()));
+  }
 
-    ServerMethod<? extends Message, ? extends Message> method =
-        service.lookup(envelope.getMethod());
-    if (method == null) {
-      serverLogger.logUnknownMethod(service, envelope.getMethod());
-      logger.warning(String.format(
-          "Received request for unknown method %s/%s", envelope.getService(),
-          envelope.getMethod()));
-      context.channel().writeAndFlush(Envelope.newBuilder()
-          .setRequestId(envelope.getRequestId())
-          .setControl(Control.newBuilder()
-              .setError(
-                  String.format("Unknown method %s/%s", envelope.getService(),
-                      envelope.getMethod())))
-          .build());
-      return;
-    }
-    serverLogger.logMethodCall(service, method);
-    invoke(method, envelope.getPayload(), envelope.getRequestId(), context.channel());
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int pendingRequestCount() {
+    return dispatcher.pendingRequests().size();
+  }
+
+  /**
+   * Sets the time without receiving any message after which a connection is
+   * closed. Only applies to connections subsequently opened.
+   *
+   * @param timeout the idle timeout, or zero to keep idle connections open
+   */
+  public void setIdleTimeout(long timeout, TimeUnit unit) {
+    Preconditions.checkArgument(timeout >= 0);
+    this.idleTimeoutMillis = unit.toMillis(timeout);
+  }
+
+  /**
+   * Sets whether the stack traces of failed method invocations should be
+   * sent to clients. Disabled by default, as rendering them is expensive
+   * and may disclose implementation details.
+   */
+  public void setIncludeStackTraces(boolean includeStackTraces) {
+    dispatcher.setIncludeStackTraces(includeStackTraces);
+  }
+
+  /**
+   * Sets the methods whose concurrent invocations with identical payloads
+   * should share a single invocation and response.
+   *
+   * @see EnvelopeDispatcher#setCoalescedMethods(Set)
+   */
+  public void setCoalescedMethods(Set<String> coalescedMethods) {
+    dispatcher.setCoalescedMethods(coalescedMethods);
+  }
+
+  /**
+   * Sets the cache in which the responses of cacheable methods are kept.
+   * Cacheable methods are also coalesced.
+   *
+   * @see #setCoalescedMethods(Set)
+   */
+  public void setResponseCache(ResponseCache responseCache) {
+    dispatcher.setResponseCache(responseCache);
   }
 
   /**
@@ -148,32 +212,9 @@ public abstract class EnvelopeServerHandler<I, O> extends SimpleChannelInboundHa
     return true;
   }
 
-  /**
-   * Performs a single method invocation.
-   *
-   * @param method the method to invoke
-   * @param payload the serialized parameter received from the client
-   * @param requestId the unique identifier of the request
-   * @param channel the channel to use for responding to the client
-   * @param <I> the type of the method's parameter
-   * @param <O> the return type of the method
-   */
-  private <I extends Message, O extends Message> void invoke(
-      ServerMethod<I, O> method, ByteString payload, long requestId, Channel channel) {
-    FutureCallback<O> callback = new ServerMethodCallback<>(method, requestId, channel);
-    try {
-      I request = method.inputParser().parseFrom(payload);
-      ListenableFuture<O> result = method.invoke(request);
-      pendingRequests.put(requestId, result);
-      Futures.addCallback(result, callback, responseCallbackExecutor);
-    } catch (InvalidProtocolBufferException ipbe) {
-      callback.onFailure(ipbe);
-    }
-  }
-
   @VisibleForTesting
   public Map<Long, ListenableFuture<?>> pendingRequests() {
-    return pendingRequests;
+    return dispatcher.pendingRequests();
   }
 
   /**
@@ -193,21 +234,13 @@ public abstract class EnvelopeServerHandler<I, O> extends SimpleChannelInboundHa
   protected abstract O convertResponse(Envelope response);
 
   /**
-   * Encapsulates the logic to execute when the invocation of a service
-   * method is done.
-   *
-   * @param <M> the method's return type
+   * Writes responses to the channel a request was received from.
    */
-  private class ServerMethodCallback<M extends Message> implements FutureCallback<M> {
+  private final class ChannelResponder implements EnvelopeDispatcher.Responder {
 
-    private final ServerMethod<?, M> serverMethod;
-    private final long requestId;
     private final Channel channel;
 
-    private ServerMethodCallback(ServerMethod<?, M> serverMethod, long requestId,
-        Channel channel) {
-      this.serverMethod = serverMethod;
-      this.requestId = requestId;
+    private ChannelResponder(Channel channel) {
       this.channel = channel;
     }
 
@@ -215,58 +248,24 @@ public abstract class EnvelopeServerHandler<I, O> extends SimpleChannelInboundHa
      * {@inheritDoc}
      */
     @Override
-    public void onSuccess(M result) {
-      serverLogger.logServerSuccess(serverMethod);
-      pendingRequests.remove(requestId);
-      Envelope response = Envelope.newBuilder()
-          .setPayload(result.toByteString())
-          .setRequestId(requestId)
-          .build();
-
-      channel.writeAndFlush(convertResponse(response)).addListener(
-          new GenericFutureListener<ChannelFuture>() {
-
-            public void operationComplete(ChannelFuture future) {
-              if (!future.isSuccess()) {
-                serverLogger.logLinkFailure(serverMethod, future.cause());
-                logger.log(Level.WARNING,
-                    String.format("Failed to respond to client on %s ",
-                        channel.remoteAddress().toString()),
-                    future.cause());
-              }
-            }
-
-          });
-    }
-
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public void onFailure(Throwable throwable) {
-      logger.info("Responding to client with failure");
-      serverLogger.logServerFailure(serverMethod, throwable);
-      pendingRequests.remove(requestId);
-      Control control = Control.newBuilder()
-          .setError(Throwables.getStackTraceAsString(throwable))
-          .build();
-      Envelope response = Envelope.newBuilder()
-          .setControl(control)
-          .build();
-      channel.writeAndFlush(convertResponse(response))
-          .addListener(new GenericFutureListener<ChannelFuture>() {
-
-            public void operationComplete(ChannelFuture future) {
-              if (!future.isSuccess()) {
-                serverLogger.logLinkFailure(serverMethod, future.cause());
-                logger.warning(String.format(
-                    "Failed to respond to client on %s ", channel.remoteAddress().toString()));
-              }
-            }
-
-          });
+    public void respond(Envelope response, final FutureCallback<Void> callback) {
+      ChannelFuture written = channel.writeAndFlush(convertResponse(response));
+      if (callback == null) {
+        return;
+      }
+      written.addListener(new GenericFutureListener<ChannelFuture>() {
+
+        public void operationComplete(ChannelFuture future) {
+          if (future.isSuccess()) {
+            callback.onSuccess(null);
+            return;
+          }
+          logger.log(Level.WARNING, String.format("Failed to respond to client on %s ",
+              channel.remoteAddress()), future.cause());
+          callback.onFailure(future.cause());
+        }
+      });
     }
-
   }
 
   /**
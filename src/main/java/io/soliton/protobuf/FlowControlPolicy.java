@@ -0,0 +1,159 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+import io.netty.channel.ChannelConfig;
+
+/**
+ * Describes how many requests a client may have outstanding with its server.
+ * <p/>
+ * <p>Two limits apply: the number of requests sent to the server and not yet
+ * answered, and the number of bytes buffered by the connection and not yet
+ * written to the network. The latter is driven by the write-buffer water
+ * marks of the underlying channel: writes are suspended once the buffered
+ * data exceeds the high water mark, and resumed once it falls back under the
+ * low water mark.</p>
+ * <p/>
+ * <p>When a limit is reached, method calls are either queued until capacity
+ * frees up or failed right away.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class FlowControlPolicy {
+
+  private final int maxOutstandingRequests;
+  private final int writeBufferLowWaterMark;
+  private final int writeBufferHighWaterMark;
+  private final boolean failFast;
+
+  /**
+   * Returns a policy configured with sensible defaults.
+   * <p/>
+   * <p>The default policy does not bound the number of outstanding requests
+   * and uses Netty's default water marks of 32 and 64 KiB.</p>
+   */
+  public static FlowControlPolicy defaults() {
+    return newBuilder().build();
+  }
+
+  /**
+   * Returns a new builder of flow control policies.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  private FlowControlPolicy(Builder builder) {
+    this.maxOutstandingRequests = builder.maxOutstandingRequests;
+    this.writeBufferLowWaterMark = builder.writeBufferLowWaterMark;
+    this.writeBufferHighWaterMark = builder.writeBufferHighWaterMark;
+    this.failFast = builder.failFast;
+  }
+
+  /**
+   * Returns the maximum number of requests that can be awaiting a response
+   * from the server at any given time.
+   */
+  public int maxOutstandingRequests() {
+    return maxOutstandingRequests;
+  }
+
+  /**
+   * Returns whether method calls exceeding the limits should fail right away
+   * rather than be queued.
+   */
+  public boolean failFast() {
+    return failFast;
+  }
+
+  /**
+   * Applies the water marks of this policy to the given channel configuration.
+   *
+   * @param config the configuration of a newly opened channel
+   */
+  public void configure(ChannelConfig config) {
+    // Netty rejects a low water mark greater than the current high one, and
+    // vice-versa, so the order of the updates matters.
+    if (writeBufferLowWaterMark > config.getWriteBufferHighWaterMark()) {
+      config.setWriteBufferHighWaterMark(writeBufferHighWaterMark);
+      config.setWriteBufferLowWaterMark(writeBufferLowWaterMark);
+    } else {
+      config.setWriteBufferLowWaterMark(writeBufferLowWaterMark);
+      config.setWriteBufferHighWaterMark(writeBufferHighWaterMark);
+    }
+  }
+
+  /**
+   * Configurable builder of {@link FlowControlPolicy} instances.
+   */
+  public static final class Builder {
+
+    private int maxOutstandingRequests = Integer.MAX_VALUE;
+    private int writeBufferLowWaterMark = 32 * 1024;
+    private int writeBufferHighWaterMark = 64 * 1024;
+    private boolean failFast = false;
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the maximum number of requests that can be awaiting a response
+     * from the server at any given time.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMaxOutstandingRequests(int maxOutstandingRequests) {
+      Preconditions.checkArgument(maxOutstandingRequests > 0);
+      this.maxOutstandingRequests = maxOutstandingRequests;
+      return this;
+    }
+
+    /**
+     * Sets the water marks of the outbound buffer of the connection, in bytes.
+     *
+     * @param low the number of buffered bytes under which writes are resumed
+     * @param high the number of buffered bytes over which writes are suspended
+     * @return {@code this} object
+     */
+    public Builder setWriteBufferWaterMarks(int low, int high) {
+      Preconditions.checkArgument(low >= 0);
+      Preconditions.checkArgument(low <= high);
+      this.writeBufferLowWaterMark = low;
+      this.writeBufferHighWaterMark = high;
+      return this;
+    }
+
+    /**
+     * Sets whether method calls exceeding the limits should fail right away.
+     * If {@code false}, they are queued until capacity frees up.
+     *
+     * @return {@code this} object
+     */
+    public Builder setFailFast(boolean failFast) {
+      this.failFast = failFast;
+      return this;
+    }
+
+    /**
+     * Returns a new policy, as configured by this builder.
+     */
+    public FlowControlPolicy build() {
+      return new FlowControlPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import io.soliton.protobuf.metrics.Histogram;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Client} decorator hedging and retrying the calls to idempotent
+ * methods.
+ * <p/>
+ * <p>A call which hasn't completed after a delay matching a given percentile
+ * of the method's observed latency is sent again, to another of the
+ * underlying clients if several are available. The first response is
+ * returned to the caller and the other attempts are cancelled, which
+ * notifies their servers.</p>
+ * <p/>
+ * <p>Calls failing because of the transport are retried right away, and
+ * calls refused by an overloaded server once the delay it advised has
+ * elapsed. Other errors reported by servers are returned to the
+ * caller.</p>
+ * <p/>
+ * <p>Hedges and retries are drawn from a budget, replenished by a fraction
+ * of each call, which bounds the additional load put on servers.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class HedgingClient implements Client {
+
+  private static final ScheduledExecutorService DEFAULT_SCHEDULER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("piezo-hedging-%d")
+          .setDaemon(true)
+          .build());
+
+  // Milli-tokens, so that fractions of attempts can be deposited
+  private static final long TOKEN = 1000;
+
+  private final ImmutableList<Client> clients;
+  private final ScheduledExecutorService scheduler;
+  private final double percentile;
+  private final long minDelayNanos;
+  private final int minSamples;
+  private final int maxAttempts;
+  private final long depositPerCall;
+  private final long maxTokens;
+  private final AtomicInteger nextClient = new AtomicInteger();
+  private final AtomicLong tokens;
+  private final LoadingCache<ClientMethod<?>, MethodState> states;
+
+  /**
+   * Returns a new configurable builder of hedging clients.
+   *
+   * @param clients the clients to which calls are sent, in turns
+   */
+  public static Builder newBuilder(Client... clients) {
+    return new Builder(ImmutableList.copyOf(clients));
+  }
+
+  private HedgingClient(Builder builder) {
+    this.clients = builder.clients;
+    this.scheduler = builder.scheduler;
+    this.percentile = builder.percentile;
+    this.minDelayNanos = builder.minDelayNanos;
+    this.minSamples = builder.minSamples;
+    this.maxAttempts = builder.maxAttempts;
+    this.depositPerCall = (long) (builder.budgetRatio * TOKEN);
+    this.maxTokens = builder.maxBudget * TOKEN;
+    this.tokens = new AtomicLong(maxTokens);
+    final Set<String> idempotentMethods = Sets.newHashSet(builder.idempotentMethods);
+    this.states = CacheBuilder.newBuilder()
+        .weakKeys()
+        .build(new CacheLoader<ClientMethod<?>, MethodState>() {
+
+          @Override
+          public MethodState load(ClientMethod<?> method) {
+            String fullName = DispatchTable.fullName(method.serviceName(), method.name());
+            return idempotentMethods.contains(fullName) ? new MethodState() : MethodState.NONE;
+          }
+        });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public <O extends Message> ListenableFuture<O> encodeMethodCall(ClientMethod<O> method,
+      Message input) {
+    MethodState state = states.getUnchecked(method);
+    if (state == MethodState.NONE) {
+      return nextClient().encodeMethodCall(method, input);
+    }
+    deposit();
+    HedgedCall<O> call = new HedgedCall<>(method, input, state);
+    call.start();
+    return call;
+  }
+
+  /**
+   * Returns the number of additional attempts that can currently be made.
+   */
+  public long budget() {
+    return tokens.get() / TOKEN;
+  }
+
+  private Client nextClient() {
+    return clients.get((nextClient.getAndIncrement() & Integer.MAX_VALUE) % clients.size());
+  }
+
+  private void deposit() {
+    while (true) {
+      long current = tokens.get();
+      long updated = Math.min(maxTokens, current + depositPerCall);
+      if (current == updated || tokens.compareAndSet(current, updated)) {
+        return;
+      }
+    }
+  }
+
+  private boolean withdraw() {
+    while (true) {
+      long current = tokens.get();
+      if (current < TOKEN) {
+        return false;
+      }
+      if (tokens.compareAndSet(current, current - TOKEN)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Tracks the latency of an idempotent method.
+   */
+  private static final class MethodState {
+
+    private static final MethodState NONE = new MethodState();
+    private static final int REFRESH_INTERVAL = 64;
+
+    private final Histogram latency = new Histogram();
+    private final AtomicInteger samples = new AtomicInteger();
+    private volatile long delayNanos = -1;
+
+    private void record(long latencyNanos, double percentile, int minSamples) {
+      latency.record(latencyNanos);
+      int count = samples.incrementAndGet();
+      if (count >= minSamples && count % REFRESH_INTERVAL == 0) {
+        delayNanos = latency.snapshot().percentile(percentile);
+      }
+    }
+  }
+
+  /**
+   * Returns the delay after which an attempt may be retried following the
+   * given failure, or {@code -1} if it shouldn't be retried.
+   *
+   * @param throwable the cause of the failure of the attempt
+   */
+  private static long retryDelayMillis(Throwable throwable) {
+    if (throwable instanceof RpcException) {
+      // Errors reported by the server would be reported again, unless it was overloaded
+      RpcException rpcException = (RpcException) throwable;
+      return rpcException.code() == ErrorCode.OVERLOADED ? rpcException.retryAfterMillis() : -1;
+    }
+    // Other failures are raised by the transport
+    return throwable instanceof CancellationException ? -1 : 0;
+  }
+
+  /**
+   * A call made of one or more attempts, completed by the first successful
+   * one.
+   */
+  private final class HedgedCall<O extends Message> extends AbstractFuture<O> {
+
+    private final ClientMethod<O> method;
+    private final Message input;
+    private final MethodState state;
+    private final List<ListenableFuture<O>> attempts = Lists.newArrayListWithCapacity(2);
+    private final long startNanos;
+    // Attempts made or scheduled, guarded by this object
+    private int started = 1;
+    private int failures;
+    private Throwable lastFailure;
+
+    private HedgedCall(ClientMethod<O> method, Message input, MethodState state) {
+      this.method = method;
+      this.input = input;
+      this.state = state;
+      this.startNanos = System.nanoTime();
+    }
+
+    private void start() {
+      attempt();
+      long delayNanos = Math.max(minDelayNanos, state.delayNanos);
+      scheduler.schedule(new Runnable() {
+
+        @Override
+        public void run() {
+          hedge();
+        }
+      }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void hedge() {
+      synchronized (this) {
+        if (isDone() || started >= maxAttempts || !withdraw()) {
+          return;
+        }
+        started++;
+      }
+      attempt();
+    }
+
+    private void attempt() {
+      Client client = nextClient();
+      ListenableFuture<O> attempt;
+      synchronized (this) {
+        if (isDone()) {
+          return;
+        }
+        attempt = client.encodeMethodCall(method, input);
+        attempts.add(attempt);
+      }
+      Futures.addCallback(attempt, new FutureCallback<O>() {
+
+        @Override
+        public void onSuccess(O result) {
+          if (set(result)) {
+            // The latency of the call, rather than that of the winning attempt
+            state.record(System.nanoTime() - startNanos, percentile, minSamples);
+            cancelAttempts();
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+          long retryDelayMillis = retryDelayMillis(throwable);
+          synchronized (HedgedCall.this) {
+            lastFailure = throwable;
+            failures++;
+            if (isDone()) {
+              return;
+            }
+            if (retryDelayMillis >= 0) {
+              if (failures < started) {
+                // Another attempt is still pending
+                return;
+              }
+              if (started < maxAttempts && withdraw()) {
+                started++;
+              } else {
+                retryDelayMillis = -1;
+              }
+            }
+            if (retryDelayMillis < 0) {
+              setException(lastFailure);
+            }
+          }
+          if (retryDelayMillis < 0) {
+            cancelAttempts();
+          } else if (retryDelayMillis == 0) {
+            attempt();
+          } else {
+            scheduler.schedule(new Runnable() {
+
+              @Override
+              public void run() {
+                attempt();
+              }
+            }, retryDelayMillis, TimeUnit.MILLISECONDS);
+          }
+        }
+      }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private void cancelAttempts() {
+      List<ListenableFuture<O>> pending;
+      synchronized (this) {
+        pending = Lists.newArrayList(attempts);
+      }
+      for (ListenableFuture<O> attempt : pending) {
+        if (!attempt.isDone()) {
+          attempt.cancel(true);
+        }
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (super.cancel(mayInterruptIfRunning)) {
+        cancelAttempts();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Configurable builder of {@link HedgingClient} instances.
+   */
+  public static final class Builder {
+
+    private final ImmutableList<Client> clients;
+    private final Set<String> idempotentMethods = Sets.newHashSet();
+    private ScheduledExecutorService scheduler = DEFAULT_SCHEDULER;
+    private double percentile = 95.0;
+    private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    private int minSamples = 100;
+    private int maxAttempts = 2;
+    private double budgetRatio = 0.1;
+    private long maxBudget = 100;
+
+    private Builder(ImmutableList<Client> clients) {
+      Preconditions.checkArgument(!clients.isEmpty());
+      this.clients = clients;
+    }
+
+    /**
+     * Makes all the methods of the given service marked with the
+     * {@code (soliton.piezo.idempotent)} or {@code (soliton.piezo.cache)}
+     * options eligible for hedging and retries.
+     *
+     * @param service the descriptor of the service, as found in the file
+     * descriptor of its {@code .proto} file
+     * @return {@code this} object
+     */
+    public Builder addService(Descriptors.ServiceDescriptor service) {
+      for (Descriptors.MethodDescriptor method : service.getMethods()) {
+        if (method.getOptions().getExtension(Piezo.idempotent)
+            || method.getOptions().hasExtension(Piezo.cache)) {
+          addMethod(service.getFullName(), method.getName());
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Makes the given method eligible for hedging and retries.
+     *
+     * @param service the full name of the service
+     * @param method the name of the method
+     * @return {@code this} object
+     */
+    public Builder addMethod(String service, String method) {
+      idempotentMethods.add(DispatchTable.fullName(Preconditions.checkNotNull(service),
+          Preconditions.checkNotNull(method)));
+      return this;
+    }
+
+    /**
+     * Sets the percentile of the observed latency of a method after which a
+     * call is hedged. Defaults to {@code 95}.
+     *
+     * @return {@code this} object
+     */
+    public Builder setHedgingPercentile(double percentile) {
+      Preconditions.checkArgument(percentile > 0 && percentile <= 100);
+      this.percentile = percentile;
+      return this;
+    }
+
+    /**
+     * Sets the minimum delay after which a call is hedged. This delay is
+     * also used until enough calls have been observed to compute a
+     * percentile. Defaults to 10ms.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMinHedgingDelay(long delay, TimeUnit unit) {
+      Preconditions.checkArgument(delay >= 0);
+      this.minDelayNanos = unit.toNanos(delay);
+      return this;
+    }
+
+    /**
+     * Sets the number of calls to observe before the hedging delay is
+     * derived from their latency. Defaults to {@code 100}.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMinSamples(int minSamples) {
+      Preconditions.checkArgument(minSamples > 0);
+      this.minSamples = minSamples;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of attempts made for a single call, including
+     * the first one. Defaults to {@code 2}.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMaxAttempts(int maxAttempts) {
+      Preconditions.checkArgument(maxAttempts > 0);
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * Sets the budget of additional attempts, as a fraction of the calls
+     * made, and the maximum number of attempts that can be saved up.
+     * Defaults to {@code 0.1} and {@code 100}.
+     *
+     * @return {@code this} object
+     */
+    public Builder setBudget(double ratio, long maxBudget) {
+      Preconditions.checkArgument(ratio >= 0);
+      Preconditions.checkArgument(maxBudget >= 0);
+      this.budgetRatio = ratio;
+      this.maxBudget = maxBudget;
+      return this;
+    }
+
+    /**
+     * Sets the executor used to schedule hedged attempts.
+     *
+     * @return {@code this} object
+     */
+    public Builder setScheduler(ScheduledExecutorService scheduler) {
+      this.scheduler = Preconditions.checkNotNull(scheduler);
+      return this;
+    }
+
+    /**
+     * Returns a new client, as configured by this builder.
+     */
+    public HedgingClient build() {
+      return new HedgingClient(this);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how a client should verify that the connection to its server
+ * is still alive.
+ * <p/>
+ * <p>When no message was received from the server for the configured
+ * interval, the client sends it a ping. Should the server not answer within
+ * the configured timeout, the connection is deemed dead and closed, which
+ * lets the client reconnect as per its {@link ReconnectPolicy}. The
+ * round-trip times of the pings are recorded in the client's metrics.</p>
+ * <p/>
+ * <p>Pings are only answered by servers running this version of the
+ * protocol or later, and are thus disabled by default.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class KeepAlivePolicy {
+
+  private static final KeepAlivePolicy DISABLED = new KeepAlivePolicy(0, 0);
+
+  private final long intervalMillis;
+  private final long timeoutMillis;
+
+  /**
+   * Returns a policy which never sends pings.
+   */
+  public static KeepAlivePolicy disabled() {
+    return DISABLED;
+  }
+
+  /**
+   * Returns a new builder of keepalive policies.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  private KeepAlivePolicy(long intervalMillis, long timeoutMillis) {
+    this.intervalMillis = intervalMillis;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Returns whether pings should be sent at all.
+   */
+  public boolean isEnabled() {
+    return intervalMillis > 0;
+  }
+
+  /**
+   * Returns the time without receiving any message after which a ping is
+   * sent, in milliseconds.
+   */
+  public long intervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Returns the time after which an unanswered ping causes the connection to
+   * be closed, in milliseconds.
+   */
+  public long timeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Configurable builder of {@link KeepAlivePolicy} instances.
+   */
+  public static final class Builder {
+
+    private long intervalMillis = TimeUnit.SECONDS.toMillis(30);
+    private long timeoutMillis = TimeUnit.SECONDS.toMillis(10);
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the time without receiving any message after which a ping is
+     * sent. Defaults to 30 seconds.
+     *
+     * @return {@code this} object
+     */
+    public Builder setInterval(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration > 0);
+      this.intervalMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * Sets the time after which an unanswered ping causes the connection to
+     * be closed. Defaults to 10 seconds.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTimeout(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration > 0);
+      this.timeoutMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * Returns a new policy, as configured by this builder.
+     */
+    public KeepAlivePolicy build() {
+      Preconditions.checkState(intervalMillis > 0 && timeoutMillis > 0);
+      return new KeepAlivePolicy(intervalMillis, timeoutMillis);
+    }
+  }
+}
@@ -0,0 +1,512 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Maintains the connection between a client and its remote server.
+ * <p/>
+ * <p>The first connection is opened either explicitly, or by the first write
+ * submitted to this manager. When the connection is lost, this object
+ * re-establishes it in the background, following the configured
+ * {@link ReconnectPolicy}. Writes submitted while the client is disconnected
+ * are either queued until the connection is restored or failed right away.</p>
+ * <p/>
+ * <p>This object also enforces the configured {@link FlowControlPolicy}:
+ * writes exceeding the number of outstanding requests or submitted while the
+ * outbound buffer of the connection is full are either queued until capacity
+ * frees up or failed right away. None of the operations of this class block
+ * the calling thread.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class ReconnectManager {
+
+  private static final Logger logger = Logger.getLogger(
+      ReconnectManager.class.getCanonicalName());
+
+  private final Connector connector;
+  private final EventLoopGroup eventLoopGroup;
+  private final ReconnectPolicy policy;
+  private final FlowControlPolicy flowControlPolicy;
+  private final BlockingQueue<QueuedWrite> pendingWrites;
+  private final AtomicInteger attempts = new AtomicInteger();
+  private final AtomicInteger outstandingRequests = new AtomicInteger();
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  private final ChannelFutureListener closeListener = new CloseListener();
+  private final WritabilityListener writabilityListener = new WritabilityListener();
+  private final Runnable releaser = new Releaser();
+  private final AtomicReference<SettableFuture<Channel>> connection = new AtomicReference<>();
+
+  private volatile Channel channel;
+  private volatile boolean everConnected;
+
+  /**
+   * Constructor enforcing the default flow control policy.
+   *
+   * @param connector the object in charge of opening new connections
+   * @param eventLoopGroup the event loop group on which connections are opened,
+   * also used to schedule reconnection attempts
+   * @param policy the policy driving reconnections
+   */
+  public ReconnectManager(Connector connector, EventLoopGroup eventLoopGroup,
+      ReconnectPolicy policy) {
+    this(connector, eventLoopGroup, policy, FlowControlPolicy.defaults());
+  }
+
+  /**
+   * Exhaustive constructor.
+   *
+   * @param connector the object in charge of opening new connections
+   * @param eventLoopGroup the event loop group on which connections are opened,
+   * also used to schedule reconnection attempts
+   * @param policy the policy driving reconnections
+   * @param flowControlPolicy the policy bounding the outstanding requests
+   */
+  public ReconnectManager(Connector connector, EventLoopGroup eventLoopGroup,
+      ReconnectPolicy policy, FlowControlPolicy flowControlPolicy) {
+    this.connector = Preconditions.checkNotNull(connector);
+    this.eventLoopGroup = Preconditions.checkNotNull(eventLoopGroup);
+    this.policy = Preconditions.checkNotNull(policy);
+    this.flowControlPolicy = Preconditions.checkNotNull(flowControlPolicy);
+    this.pendingWrites = new ArrayBlockingQueue<>(policy.maxPendingRequests());
+  }
+
+  /**
+   * Opens a new connection to the remote server, unless one is already open
+   * or being opened.
+   * <p/>
+   * <p>Should the attempt fail, further attempts will be scheduled until one
+   * succeeds or this manager is closed.</p>
+   *
+   * @return a handle on the connected channel
+   */
+  public ListenableFuture<Channel> connect() {
+    while (true) {
+      SettableFuture<Channel> current = connection.get();
+      if (current != null && !current.isDone()) {
+        return current;
+      }
+      Channel connected = channel;
+      if (connected != null && connected.isActive()) {
+        return Futures.immediateFuture(connected);
+      }
+      SettableFuture<Channel> next = SettableFuture.create();
+      if (connection.compareAndSet(current, next)) {
+        attempt(next);
+        return next;
+      }
+    }
+  }
+
+  /**
+   * Opens the first connection of the given client.
+   * <p/>
+   * <p>Should this first attempt fail, this manager is closed and no further
+   * attempt is made.</p>
+   *
+   * @param client the client whose connection is managed by this object
+   * @param <C> the type of the client
+   * @return a handle on the client, completed once it is connected
+   */
+  public <C> ListenableFuture<C> open(final C client) {
+    ListenableFuture<Channel> connected = connect();
+    Futures.addCallback(connected, new FutureCallback<Channel>() {
+
+      @Override
+      public void onSuccess(Channel result) {
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        close();
+      }
+    });
+    return Futures.transform(connected, new Function<Channel, C>() {
+
+      @Override
+      public C apply(Channel input) {
+        return client;
+      }
+    });
+  }
+
+  /**
+   * Submits a write to the remote server, which is not expected to receive
+   * a response.
+   *
+   * @param write the write to perform
+   * @see #write(PendingWrite, ListenableFuture)
+   */
+  public void write(PendingWrite write) {
+    write(write, null);
+  }
+
+  /**
+   * Submits a write to the remote server.
+   * <p/>
+   * <p>The write is performed immediately on the calling thread if the
+   * connection is established and has capacity for it. It counts towards the
+   * outstanding requests until the given handle completes.</p>
+   *
+   * @param write the write to perform
+   * @param completion a handle on the response to the write, or {@code null}
+   * if no response is expected
+   */
+  public void write(PendingWrite write, ListenableFuture<?> completion) {
+    if (closed.get()) {
+      write.fail(new IOException("Client is closed"));
+      return;
+    }
+
+    Channel current = channel;
+    boolean connected = current != null && current.isActive();
+    if (connected && current.isWritable() && pendingWrites.isEmpty() && tryAcquire()) {
+      dispatch(current, write, completion);
+      return;
+    }
+
+    if (connected) {
+      if (flowControlPolicy.failFast()) {
+        write.fail(new IOException("Too many requests outstanding with the remote server"));
+        return;
+      }
+    } else if (!policy.bufferWhileDisconnected() && everConnected) {
+      // Calls made before the first connection is established are always
+      // queued, so that lazily connected clients can be used right away.
+      write.fail(new IOException("Client is not connected to the remote server"));
+      return;
+    }
+
+    if (!pendingWrites.offer(new QueuedWrite(write, completion))) {
+      write.fail(new IOException("Too many requests pending"));
+      return;
+    }
+
+    if (!connected) {
+      connect();
+    }
+
+    // The connection may have been restored, or capacity freed up, while
+    // the write was being queued.
+    current = channel;
+    if (current != null) {
+      drain(current);
+    }
+  }
+
+  /**
+   * Closes the connection to the server and releases the resources associated
+   * with this manager.
+   * <p/>
+   * <p>Writes still pending are failed.</p>
+   *
+   * @return a handle on the termination of the underlying event loops
+   */
+  public io.netty.util.concurrent.Future<?> close() {
+    closed.set(true);
+    QueuedWrite queued;
+    while ((queued = pendingWrites.poll()) != null) {
+      queued.write.fail(new IOException("Client is closed"));
+    }
+    Channel current = channel;
+    if (current != null) {
+      current.close();
+    }
+    return eventLoopGroup.shutdownGracefully();
+  }
+
+  /**
+   * Notifies this manager that the server is shutting down the given channel.
+   * <p/>
+   * <p>Should the channel be the current one, subsequent writes are directed
+   * to a new connection while the requests already in flight complete on the
+   * former one, which is left for the server to close.</p>
+   *
+   * @param goingAway the channel the server is shutting down
+   */
+  public void goAway(Channel goingAway) {
+    if (closed.get() || channel != goingAway) {
+      return;
+    }
+    logger.info("Server at " + goingAway.remoteAddress() + " is going away, reconnecting");
+    channel = null;
+    connect();
+  }
+
+  /**
+   * Returns whether this manager has been closed.
+   */
+  public boolean isClosed() {
+    return closed.get();
+  }
+
+  /**
+   * Returns the channel currently connected to the server, or {@code null}
+   * if the client is disconnected.
+   */
+  public Channel channel() {
+    return channel;
+  }
+
+  @VisibleForTesting
+  int pendingWriteCount() {
+    return pendingWrites.size();
+  }
+
+  @VisibleForTesting
+  int outstandingRequestCount() {
+    return outstandingRequests.get();
+  }
+
+  private void attempt(final SettableFuture<Channel> connected) {
+    connector.connect().addListener(new ChannelFutureListener() {
+
+      @Override
+      public void operationComplete(ChannelFuture future) {
+        if (future.isSuccess()) {
+          onConnected(future.channel());
+          connected.set(future.channel());
+        } else {
+          logger.warning(String.format("Failed to connect to remote server: %s",
+              future.cause()));
+          connected.setException(future.cause());
+          scheduleReconnect();
+        }
+      }
+    });
+  }
+
+  private void onConnected(Channel newChannel) {
+    if (closed.get()) {
+      newChannel.close();
+      return;
+    }
+    logger.info("Piezo client successfully connected to " + newChannel.remoteAddress());
+    attempts.set(0);
+    everConnected = true;
+    channel = newChannel;
+    flowControlPolicy.configure(newChannel.config());
+    newChannel.pipeline().addFirst(writabilityListener);
+    newChannel.closeFuture().addListener(closeListener);
+    drain(newChannel);
+  }
+
+  private boolean tryAcquire() {
+    while (true) {
+      int current = outstandingRequests.get();
+      if (current >= flowControlPolicy.maxOutstandingRequests()) {
+        return false;
+      }
+      if (outstandingRequests.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private void dispatch(Channel current, PendingWrite write, ListenableFuture<?> completion) {
+    write.write(current);
+    if (completion == null) {
+      releaser.run();
+    } else {
+      completion.addListener(releaser, MoreExecutors.sameThreadExecutor());
+    }
+  }
+
+  private void drain(Channel current) {
+    while (current.isActive() && current.isWritable()) {
+      if (pendingWrites.isEmpty() || !tryAcquire()) {
+        return;
+      }
+      QueuedWrite queued = pendingWrites.poll();
+      if (queued == null) {
+        // Another thread drained the queue concurrently
+        outstandingRequests.decrementAndGet();
+        continue;
+      }
+      dispatch(current, queued.write, queued.completion);
+    }
+  }
+
+  private void scheduleReconnect() {
+    if (closed.get()) {
+      return;
+    }
+    SettableFuture<Channel> current = connection.get();
+    if (current != null && !current.isDone()) {
+      // An attempt is already underway
+      return;
+    }
+    final SettableFuture<Channel> next = SettableFuture.create();
+    if (!connection.compareAndSet(current, next)) {
+      return;
+    }
+    int attempt = attempts.getAndIncrement();
+    long delay = policy.backoffMillis(attempt);
+    logger.info(String.format("Scheduling reconnection attempt #%d in %d ms", attempt + 1, delay));
+    try {
+      eventLoopGroup.schedule(new Runnable() {
+
+        @Override
+        public void run() {
+          if (closed.get()) {
+            next.setException(new IOException("Client is closed"));
+          } else {
+            attempt(next);
+          }
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ree) {
+      // The event loop group is shutting down, which means this manager is
+      // being closed.
+      next.setException(new IOException("Client is closed"));
+    }
+  }
+
+  /**
+   * Reacts to the closure of the current channel.
+   */
+  private final class CloseListener implements ChannelFutureListener {
+
+    @Override
+    public void operationComplete(ChannelFuture future) {
+      if (channel != future.channel()) {
+        // The channel was superseded after the server announced its shutdown
+        return;
+      }
+      channel = null;
+      if (!closed.get()) {
+        logger.info("Detected closure of the connection to " + future.channel().remoteAddress());
+        if (!policy.bufferWhileDisconnected()) {
+          // Writes held back by flow control aren't carried over either
+          QueuedWrite queued;
+          while ((queued = pendingWrites.poll()) != null) {
+            queued.write.fail(new IOException("Client is not connected to the remote server"));
+          }
+        }
+        scheduleReconnect();
+      }
+    }
+  }
+
+  /**
+   * Frees up the slot held by a completed request.
+   */
+  private final class Releaser implements Runnable {
+
+    @Override
+    public void run() {
+      outstandingRequests.decrementAndGet();
+      Channel current = channel;
+      if (current != null) {
+        drain(current);
+      }
+    }
+  }
+
+  /**
+   * Resumes the queued writes once the outbound buffer of the connection
+   * falls back under its low water mark.
+   */
+  private final class WritabilityListener extends ChannelInboundHandlerAdapter {
+
+    @Override
+    public boolean isSharable() {
+      return true;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext context) throws Exception {
+      if (context.channel().isWritable()) {
+        drain(context.channel());
+      }
+      super.channelWritabilityChanged(context);
+    }
+  }
+
+  /**
+   * Associates a queued write with the handle on its response.
+   */
+  private static final class QueuedWrite {
+
+    private final PendingWrite write;
+    private final ListenableFuture<?> completion;
+
+    private QueuedWrite(PendingWrite write, ListenableFuture<?> completion) {
+      this.write = write;
+      this.completion = completion;
+    }
+  }
+
+  /**
+   * Opens new connections to the remote server.
+   */
+  public interface Connector {
+
+    /**
+     * Initiates a new connection to the remote server.
+     *
+     * @return a handle on the newly connected channel
+     */
+    public ChannelFuture connect();
+  }
+
+  /**
+   * Represents a unit of work to be written to the remote server once a
+   * connection is available.
+   */
+  public interface PendingWrite {
+
+    /**
+     * Performs the write.
+     *
+     * @param channel the connected channel
+     */
+    public void write(Channel channel);
+
+    /**
+     * Invoked when the write cannot be performed.
+     *
+     * @param cause the reason for which the write failed
+     */
+    public void fail(Throwable cause);
+  }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how a client should behave when the connection to its server
+ * is lost.
+ * <p/>
+ * <p>Reconnection attempts are spaced following a jittered exponential
+ * backoff. While the client is disconnected, method calls are either queued,
+ * up to a configurable bound, or failed immediately.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class ReconnectPolicy {
+
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final double multiplier;
+  private final double jitter;
+  private final boolean bufferWhileDisconnected;
+  private final int maxPendingRequests;
+
+  /**
+   * Returns a policy configured with sensible defaults.
+   */
+  public static ReconnectPolicy defaults() {
+    return newBuilder().build();
+  }
+
+  /**
+   * Returns a new builder of reconnection policies.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  private ReconnectPolicy(Builder builder) {
+    this.initialBackoffMillis = builder.initialBackoffMillis;
+    this.maxBackoffMillis = builder.maxBackoffMillis;
+    this.multiplier = builder.multiplier;
+    this.jitter = builder.jitter;
+    this.bufferWhileDisconnected = builder.bufferWhileDisconnected;
+    this.maxPendingRequests = builder.maxPendingRequests;
+  }
+
+  /**
+   * Returns the delay to observe before performing the given reconnection
+   * attempt.
+   *
+   * @param attempt the zero-based index of the upcoming attempt
+   * @return a delay, in milliseconds
+   */
+  public long backoffMillis(int attempt) {
+    double backoff = initialBackoffMillis * Math.pow(multiplier, attempt);
+    backoff = Math.min(backoff, maxBackoffMillis);
+    double spread = jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+    return Math.max(0L, (long) (backoff * (1 + spread)));
+  }
+
+  /**
+   * Returns whether method calls should be queued while the client is
+   * disconnected, rather than failed right away.
+   */
+  public boolean bufferWhileDisconnected() {
+    return bufferWhileDisconnected;
+  }
+
+  /**
+   * Returns the maximum number of method calls that can be queued while the
+   * client is disconnected.
+   */
+  public int maxPendingRequests() {
+    return maxPendingRequests;
+  }
+
+  /**
+   * Configurable builder of {@link ReconnectPolicy} instances.
+   */
+  public static final class Builder {
+
+    private long initialBackoffMillis = 100;
+    private long maxBackoffMillis = TimeUnit.SECONDS.toMillis(30);
+    private double multiplier = 2.0;
+    private double jitter = 0.2;
+    private boolean bufferWhileDisconnected = true;
+    private int maxPendingRequests = 1024;
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the delay to observe before the first reconnection attempt.
+     *
+     * @return {@code this} object
+     */
+    public Builder setInitialBackoff(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration >= 0);
+      this.initialBackoffMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * Sets the upper bound of the delay between two reconnection attempts.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMaxBackoff(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration >= 0);
+      this.maxBackoffMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * Sets the factor by which the delay grows after each failed attempt.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMultiplier(double multiplier) {
+      Preconditions.checkArgument(multiplier >= 1.0);
+      this.multiplier = multiplier;
+      return this;
+    }
+
+    /**
+     * Sets the proportion by which each delay is randomly spread, e.g.
+     * {@code 0.2} for plus or minus 20%.
+     *
+     * @return {@code this} object
+     */
+    public Builder setJitter(double jitter) {
+      Preconditions.checkArgument(jitter >= 0.0 && jitter <= 1.0);
+      this.jitter = jitter;
+      return this;
+    }
+
+    /**
+     * Sets whether method calls should be queued while disconnected. If
+     * {@code false}, they fail immediately.
+     *
+     * @return {@code this} object
+     */
+    public Builder setBufferWhileDisconnected(boolean bufferWhileDisconnected) {
+      this.bufferWhileDisconnected = bufferWhileDisconnected;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of method calls to queue while disconnected.
+     * Calls made beyond that limit fail immediately.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMaxPendingRequests(int maxPendingRequests) {
+      Preconditions.checkArgument(maxPendingRequests > 0);
+      this.maxPendingRequests = maxPendingRequests;
+      return this;
+    }
+
+    /**
+     * Returns a new policy, as configured by this builder.
+     */
+    public ReconnectPolicy build() {
+      Preconditions.checkState(initialBackoffMillis <= maxBackoffMillis);
+      return new ReconnectPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side cache of the serialized responses of idempotent methods.
+ * <p/>
+ * <p>Responses are keyed by the method and the serialized bytes of the
+ * request. Requests hitting the cache are answered directly from the I/O
+ * thread, without being parsed nor dispatched to the service.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class ResponseCache {
+
+  private static final ResponseCache DISABLED = newBuilder().build();
+
+  private final ImmutableMap<String, Long> ttlNanos;
+  private final Cache<CallKey, Entry> cache;
+
+  /**
+   * Returns a cache in which no method is cacheable.
+   */
+  public static ResponseCache disabled() {
+    return DISABLED;
+  }
+
+  /**
+   * Returns a new configurable builder of response caches.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  private ResponseCache(Builder builder) {
+    this.ttlNanos = ImmutableMap.copyOf(builder.ttlNanos);
+    CacheBuilder<CallKey, Entry> cacheBuilder = CacheBuilder.newBuilder()
+        .recordStats()
+        .maximumWeight(builder.maximumWeight)
+        .weigher(new Weigher<CallKey, Entry>() {
+
+          @Override
+          public int weigh(CallKey key, Entry entry) {
+            return key.payload().size() + entry.response.size();
+          }
+        });
+    if (!ttlNanos.isEmpty()) {
+      // Entries are checked against their own method's time-to-live upon
+      // lookup, this only ensures that stale entries are eventually evicted
+      cacheBuilder.expireAfterWrite(Collections.max(ttlNanos.values()), TimeUnit.NANOSECONDS);
+    }
+    this.cache = cacheBuilder.build();
+  }
+
+  /**
+   * Returns whether the responses of the given method can be cached.
+   *
+   * @param method the full name of the method, in the form
+   * {@code service/method}
+   */
+  public boolean isCacheable(String method) {
+    return ttlNanos.containsKey(method);
+  }
+
+  /**
+   * Returns the cached response to a request.
+   *
+   * @param method the full name of the method
+   * @param request the serialized request
+   * @return the serialized response, or {@code null} if none is cached
+   */
+  public ByteString get(String method, ByteString request) {
+    CallKey key = new CallKey(method, request);
+    Entry entry = cache.getIfPresent(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() >= entry.expiresAtNanos) {
+      cache.invalidate(key);
+      return null;
+    }
+    return entry.response;
+  }
+
+  /**
+   * Caches the response to a request once it is successfully computed.
+   *
+   * @param method the full name of the method
+   * @param request the serialized request
+   * @param response a handle on the serialized response
+   */
+  void populate(String method, ByteString request, ListenableFuture<ByteString> response) {
+    final Long ttl = ttlNanos.get(method);
+    if (ttl == null) {
+      return;
+    }
+    final CallKey key = new CallKey(method, request);
+    Futures.addCallback(response, new FutureCallback<ByteString>() {
+
+      @Override
+      public void onSuccess(ByteString result) {
+        cache.put(key, new Entry(result, System.nanoTime() + ttl));
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Discards all the cached responses.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Returns the statistics of the cache's usage.
+   */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  private static final class Entry {
+
+    private final ByteString response;
+    private final long expiresAtNanos;
+
+    private Entry(ByteString response, long expiresAtNanos) {
+      this.response = response;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+
+  /**
+   * Configurable builder of {@link ResponseCache} instances.
+   */
+  public static final class Builder {
+
+    private final Map<String, Long> ttlNanos = Maps.newHashMap();
+    private long maximumWeight = 64 * 1024 * 1024;
+
+    private Builder() {
+    }
+
+    /**
+     * Makes cacheable all the methods of the given service which are marked
+     * with the {@code (soliton.piezo.cache)} option.
+     *
+     * @param service the descriptor of the service, as found in the file
+     * descriptor of its {@code .proto} file
+     * @return {@code this} object
+     */
+    public Builder addService(Descriptors.ServiceDescriptor service) {
+      for (Descriptors.MethodDescriptor method : service.getMethods()) {
+        if (method.getOptions().hasExtension(Piezo.cache)) {
+          CacheOptions options = method.getOptions().getExtension(Piezo.cache);
+          addMethod(service.getFullName(), method.getName(), options.getTtlMillis(),
+              TimeUnit.MILLISECONDS);
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Makes the responses of the given method cacheable.
+     *
+     * @param service the full name of the service
+     * @param method the name of the method
+     * @param ttl how long a response remains valid once computed
+     * @param unit the unit of {@code ttl}
+     * @return {@code this} object
+     */
+    public Builder addMethod(String service, String method, long ttl, TimeUnit unit) {
+      Preconditions.checkArgument(ttl > 0);
+      ttlNanos.put(DispatchTable.fullName(Preconditions.checkNotNull(service),
+          Preconditions.checkNotNull(method)), unit.toNanos(ttl));
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of bytes kept in the cache, as measured by the
+     * serialized size of requests and responses. Defaults to 64MB.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMaximumWeight(long maximumWeight) {
+      Preconditions.checkArgument(maximumWeight >= 0);
+      this.maximumWeight = maximumWeight;
+      return this;
+    }
+
+    /**
+     * Returns a new cache, as configured by this builder.
+     */
+    public ResponseCache build() {
+      return new ResponseCache(this);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Signals the failure of a remote method call, as reported by the server.
+ * <p/>
+ * <p>Server methods may also fail with an instance of this class to control
+ * the error code and message reported to the client. Other exceptions are
+ * reported as {@link ErrorCode#APPLICATION_ERROR}.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class RpcException extends Exception {
+
+  private final ErrorCode code;
+  private final String details;
+  private final long retryAfterMillis;
+
+  /**
+   * Constructor used by server methods.
+   *
+   * @param code the code describing the error
+   * @param message a short description of the error, or {@code null}
+   */
+  public RpcException(ErrorCode code, String message) {
+    this(code, message, null, 0L);
+  }
+
+  /**
+   * Exhaustive constructor.
+   *
+   * @param code the code describing the error
+   * @param message a short description of the error, or {@code null}
+   * @param details additional information about the error, or {@code null}
+   * @param retryAfterMillis the delay the client is advised to wait for
+   * before retrying, or {@code 0}
+   */
+  public RpcException(ErrorCode code, String message, String details, long retryAfterMillis) {
+    super(message);
+    this.code = Preconditions.checkNotNull(code);
+    this.details = details;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /**
+   * Returns the exception described by the given control message.
+   *
+   * @param control a control message reporting an error
+   */
+  public static RpcException fromControl(Control control) {
+    Preconditions.checkArgument(control.hasError());
+    return new RpcException(control.getErrorCode(), control.getError(),
+        control.hasErrorDetails() ? control.getErrorDetails() : null,
+        control.getRetryAfterMillis());
+  }
+
+  /**
+   * Returns the control message describing this exception.
+   * <p/>
+   * <p>The name of the error code is reported in lieu of a missing
+   * message.</p>
+   */
+  public Control toControl() {
+    Control.Builder control = Control.newBuilder()
+        .setErrorCode(code)
+        .setError(getMessage() != null ? getMessage() : code.name());
+    if (details != null) {
+      control.setErrorDetails(details);
+    }
+    if (retryAfterMillis > 0) {
+      control.setRetryAfterMillis(retryAfterMillis);
+    }
+    return control.build();
+  }
+
+  /**
+   * Returns the code describing this error.
+   */
+  public ErrorCode code() {
+    return code;
+  }
+
+  /**
+   * Returns additional information about the error, or {@code null}.
+   */
+  public String details() {
+    return details;
+  }
+
+  /**
+   * Returns the delay the client is advised to wait for before retrying the
+   * call, or {@code 0} if none was given.
+   */
+  public long retryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Coalesces concurrent invocations of a server method with identical
+ * payloads into a single invocation.
+ * <p/>
+ * <p>The response is serialized once and shared by all the callers waiting
+ * on it. Each caller is handed its own future, such that cancelling one of
+ * them doesn't affect the others.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+final class SingleFlight {
+
+  private final ConcurrentMap<CallKey, SettableFuture<ByteString>> calls = new MapMaker().makeMap();
+
+  /**
+   * Invokes a method, unless an invocation with the same payload is already
+   * in progress.
+   *
+   * @param fullName the full name of the method
+   * @param method the method to invoke
+   * @param payload the serialized parameter received from the client
+   * @return a handle on the serialized response of the method
+   */
+  <I extends Message, O extends Message> ListenableFuture<ByteString> invoke(String fullName,
+      ServerMethod<I, O> method, ByteString payload) {
+    final CallKey key = new CallKey(fullName, payload);
+    final SettableFuture<ByteString> call = SettableFuture.create();
+    SettableFuture<ByteString> existing = calls.putIfAbsent(key, call);
+    if (existing != null) {
+      return forward(existing);
+    }
+
+    try {
+      I request = method.inputParser().parseFrom(payload);
+      Futures.addCallback(method.invoke(request), new FutureCallback<O>() {
+
+        @Override
+        public void onSuccess(O result) {
+          calls.remove(key, call);
+          call.set(result.toByteString());
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+          calls.remove(key, call);
+          call.setException(throwable);
+        }
+      }, MoreExecutors.sameThreadExecutor());
+    } catch (InvalidProtocolBufferException | RuntimeException e) {
+      // Implementations are invoked directly and may throw instead of failing their future
+      calls.remove(key, call);
+      call.setException(e);
+    }
+    return forward(call);
+  }
+
+  /**
+   * Returns the number of distinct invocations in progress.
+   */
+  int inFlight() {
+    return calls.size();
+  }
+
+  private static ListenableFuture<ByteString> forward(ListenableFuture<ByteString> call) {
+    final SettableFuture<ByteString> result = SettableFuture.create();
+    Futures.addCallback(call, new FutureCallback<ByteString>() {
+
+      @Override
+      public void onSuccess(ByteString response) {
+        result.set(response);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        result.setException(throwable);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return result;
+  }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.HostAndPort;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslServerContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Describes how the connections of a client or a server are secured.
+ * <p/>
+ * <p>Servers configured from PEM files use the native OpenSSL engine when it
+ * is available on the classpath, and fall back to the JDK engine otherwise.
+ * Clients and servers configured from an {@link SSLContext} always use the
+ * JDK engine.</p>
+ * <p/>
+ * <p>Clients pass the address of their server to the engine, which lets
+ * them resume their previous TLS session upon reconnection rather than
+ * performing a full handshake.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class TlsConfig {
+
+  private static final Logger logger = Logger.getLogger(TlsConfig.class.getCanonicalName());
+
+  private final boolean client;
+  private final SslContext nettyContext;
+  private final SSLContext sslContext;
+  private final ImmutableList<String> ciphers;
+
+  /**
+   * Returns a new builder of server-side configurations, reading the
+   * certificate chain and private key of the server from PEM files.
+   *
+   * @param certChainFile an X.509 certificate chain file in PEM format
+   * @param keyFile a PKCS#8 private key file in PEM format
+   */
+  public static Builder forServer(File certChainFile, File keyFile) {
+    return new Builder(false, null, Preconditions.checkNotNull(certChainFile),
+        Preconditions.checkNotNull(keyFile));
+  }
+
+  /**
+   * Returns a new builder of server-side configurations, relying on the
+   * given JDK context.
+   *
+   * @param sslContext an initialized SSL context
+   */
+  public static Builder forServer(SSLContext sslContext) {
+    return new Builder(false, Preconditions.checkNotNull(sslContext), null, null);
+  }
+
+  /**
+   * Returns a new builder of client-side configurations, trusting the
+   * certificate authorities of the JDK.
+   */
+  public static Builder forClient() {
+    return new Builder(true, null, null, null);
+  }
+
+  /**
+   * Returns a new builder of client-side configurations, trusting the
+   * certificates of the given PEM file.
+   *
+   * @param trustCertChainFile an X.509 certificate chain file in PEM format
+   */
+  public static Builder forClient(File trustCertChainFile) {
+    return new Builder(true, null, Preconditions.checkNotNull(trustCertChainFile), null);
+  }
+
+  /**
+   * Returns a new builder of client-side configurations, relying on the
+   * given JDK context.
+   *
+   * @param sslContext an initialized SSL context
+   */
+  public static Builder forClient(SSLContext sslContext) {
+    return new Builder(true, Preconditions.checkNotNull(sslContext), null, null);
+  }
+
+  private TlsConfig(boolean client, SslContext nettyContext, SSLContext sslContext,
+      ImmutableList<String> ciphers) {
+    this.client = client;
+    this.nettyContext = nettyContext;
+    this.sslContext = sslContext;
+    this.ciphers = ciphers;
+  }
+
+  /**
+   * Returns whether this configuration secures client-side connections.
+   */
+  public boolean isClient() {
+    return client;
+  }
+
+  /**
+   * Returns whether connections are secured by the native OpenSSL engine.
+   */
+  public boolean isNative() {
+    return nettyContext instanceof OpenSslServerContext;
+  }
+
+  /**
+   * Returns a new handler securing a single connection.
+   *
+   * @param allocator the allocator of the connection's buffers
+   * @param peer the address of the remote end of the connection, used to
+   * resume previous sessions, or {@code null} if unknown
+   */
+  public SslHandler newHandler(ByteBufAllocator allocator, HostAndPort peer) {
+    SSLEngine engine;
+    if (nettyContext != null) {
+      engine = peer == null ? nettyContext.newEngine(allocator) :
+          nettyContext.newEngine(allocator, peer.getHostText(), peer.getPort());
+    } else {
+      engine = peer == null ? sslContext.createSSLEngine() :
+          sslContext.createSSLEngine(peer.getHostText(), peer.getPort());
+      engine.setUseClientMode(client);
+      if (!ciphers.isEmpty()) {
+        engine.setEnabledCipherSuites(ciphers.toArray(new String[ciphers.size()]));
+      }
+    }
+    return new SslHandler(engine);
+  }
+
+  /**
+   * Configurable builder of {@link TlsConfig} instances.
+   */
+  public static final class Builder {
+
+    private final boolean client;
+    private final SSLContext sslContext;
+    private final File certChainFile;
+    private final File keyFile;
+    private boolean preferNativeEngine = true;
+    private List<String> ciphers = ImmutableList.of();
+    private int sessionCacheSize = 0;
+    private long sessionTimeoutSeconds = 0;
+    private byte[] ticketKeys;
+
+    private Builder(boolean client, SSLContext sslContext, File certChainFile, File keyFile) {
+      this.client = client;
+      this.sslContext = sslContext;
+      this.certChainFile = certChainFile;
+      this.keyFile = keyFile;
+    }
+
+    /**
+     * Sets whether the native OpenSSL engine should be used when it is
+     * available. Only applies to servers configured from PEM files. Enabled
+     * by default.
+     *
+     * @return {@code this} object
+     */
+    public Builder setPreferNativeEngine(boolean preferNativeEngine) {
+      this.preferNativeEngine = preferNativeEngine;
+      return this;
+    }
+
+    /**
+     * Sets the cipher suites to enable, in order of preference. The defaults
+     * of the engine are used if none are set.
+     *
+     * @return {@code this} object
+     */
+    public Builder setCiphers(Iterable<String> ciphers) {
+      this.ciphers = ImmutableList.copyOf(ciphers);
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of sessions kept for resumption. The default of
+     * the engine is used if unset.
+     *
+     * @return {@code this} object
+     */
+    public Builder setSessionCacheSize(int sessionCacheSize) {
+      Preconditions.checkArgument(sessionCacheSize >= 0);
+      this.sessionCacheSize = sessionCacheSize;
+      return this;
+    }
+
+    /**
+     * Sets how long sessions remain eligible for resumption. The default of
+     * the engine is used if unset.
+     *
+     * @return {@code this} object
+     */
+    public Builder setSessionTimeout(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration >= 0);
+      this.sessionTimeoutSeconds = unit.toSeconds(duration);
+      return this;
+    }
+
+    /**
+     * Sets the keys with which the server encrypts its session tickets, as a
+     * multiple of 48 bytes. Servers sharing the same keys can resume each
+     * other's sessions. Only supported by the native engine, and ignored
+     * otherwise.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTicketKeys(byte[] ticketKeys) {
+      Preconditions.checkArgument(ticketKeys.length > 0 && ticketKeys.length % 48 == 0);
+      Preconditions.checkState(!client, "Session ticket keys only apply to servers");
+      this.ticketKeys = ticketKeys.clone();
+      return this;
+    }
+
+    /**
+     * Returns a new configuration, as configured by this builder.
+     *
+     * @throws SSLException if the certificates or keys couldn't be loaded
+     */
+    public TlsConfig build() throws SSLException {
+      ImmutableList<String> cipherList = ImmutableList.copyOf(ciphers);
+      if (sslContext != null) {
+        SSLSessionContext sessionContext = client ?
+            sslContext.getClientSessionContext() : sslContext.getServerSessionContext();
+        if (sessionCacheSize > 0) {
+          sessionContext.setSessionCacheSize(sessionCacheSize);
+        }
+        if (sessionTimeoutSeconds > 0) {
+          sessionContext.setSessionTimeout((int) sessionTimeoutSeconds);
+        }
+        return new TlsConfig(client, null, sslContext, cipherList);
+      }
+
+      Iterable<String> cipherSuites = cipherList.isEmpty() ? null : cipherList;
+      if (client) {
+        return new TlsConfig(true, SslContext.newClientContext(SslProvider.JDK, certChainFile,
+            null, cipherSuites, null, sessionCacheSize, sessionTimeoutSeconds), null, cipherList);
+      }
+
+      if (preferNativeEngine && OpenSsl.isAvailable()) {
+        OpenSslServerContext nativeContext = new OpenSslServerContext(certChainFile, keyFile,
+            null, cipherSuites, null, sessionCacheSize, sessionTimeoutSeconds);
+        if (ticketKeys != null) {
+          nativeContext.setTicketKeys(ticketKeys);
+        }
+        return new TlsConfig(false, nativeContext, null, cipherList);
+      }
+      if (preferNativeEngine) {
+        logger.info("OpenSSL is not available, falling back to the JDK engine: "
+            + OpenSsl.unavailabilityCause());
+      }
+      return new TlsConfig(false, SslContext.newServerContext(SslProvider.JDK, certChainFile,
+          keyFile, null, cipherSuites, null, sessionCacheSize, sessionTimeoutSeconds), null,
+          cipherList);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Enumerates the I/O implementations clients and servers can be built upon.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public enum Transport {
+
+  /**
+   * The portable transport, built upon the JDK's non-blocking I/O.
+   */
+  NIO {
+    @Override
+    public EventLoopGroup newEventLoopGroup() {
+      return new NioEventLoopGroup();
+    }
+
+    @Override
+    public Class<? extends ServerChannel> serverChannelClass() {
+      return NioServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> channelClass() {
+      return NioSocketChannel.class;
+    }
+  },
+
+  /**
+   * The Linux-only transport, built upon Netty's native bindings to epoll.
+   * It requires Netty's native library to be available, and is the only
+   * transport supporting Unix domain sockets.
+   */
+  EPOLL {
+    @Override
+    public EventLoopGroup newEventLoopGroup() {
+      return new EpollEventLoopGroup();
+    }
+
+    @Override
+    public Class<? extends ServerChannel> serverChannelClass() {
+      return EpollServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> channelClass() {
+      return EpollSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends ServerChannel> serverDomainSocketChannelClass() {
+      return EpollServerDomainSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends Channel> domainSocketChannelClass() {
+      return EpollDomainSocketChannel.class;
+    }
+  };
+
+  /**
+   * Returns the native transport if it is available on this platform, the
+   * portable one otherwise.
+   */
+  public static Transport bestAvailable() {
+    return Epoll.isAvailable() ? EPOLL : NIO;
+  }
+
+  /**
+   * Returns a new group of event loops for this transport.
+   */
+  public abstract EventLoopGroup newEventLoopGroup();
+
+  /**
+   * Returns the type of the channels accepting connections.
+   */
+  public abstract Class<? extends ServerChannel> serverChannelClass();
+
+  /**
+   * Returns the type of the channels connected to a remote peer.
+   */
+  public abstract Class<? extends SocketChannel> channelClass();
+
+  /**
+   * Returns the type of the channels accepting connections on a Unix domain
+   * socket.
+   *
+   * @throws UnsupportedOperationException if this transport doesn't support
+   * Unix domain sockets
+   */
+  public Class<? extends ServerChannel> serverDomainSocketChannelClass() {
+    throw new UnsupportedOperationException(
+        String.format("The %s transport doesn't support Unix domain sockets", name()));
+  }
+
+  /**
+   * Returns the type of the channels connected to a remote peer over a Unix
+   * domain socket.
+   *
+   * @throws UnsupportedOperationException if this transport doesn't support
+   * Unix domain sockets
+   */
+  public Class<? extends Channel> domainSocketChannelClass() {
+    throw new UnsupportedOperationException(
+        String.format("The %s transport doesn't support Unix domain sockets", name()));
+  }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.inprocess;
+
+import io.soliton.protobuf.Client;
+import io.soliton.protobuf.ClientMethod;
+import io.soliton.protobuf.DispatchTable;
+import io.soliton.protobuf.ErrorCode;
+import io.soliton.protobuf.RpcException;
+import io.soliton.protobuf.ServerMethod;
+import io.soliton.protobuf.ServiceGroup;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Implementation of {@link Client} calling the services of an
+ * {@link InProcessServer} directly, without encoding the calls.
+ * <p/>
+ * <p>Protocol buffer messages being immutable, requests and responses are
+ * passed by reference. The server's methods are invoked on the calling
+ * thread, and the returned handles are the ones produced by the server's
+ * methods: cancelling them cancels the invocations.</p>
+ * <p/>
+ * <p>Should the client and the server not share the same message classes,
+ * or to check that the exchanged messages survive the trip over the wire,
+ * the client can be configured to serialize requests and responses as a
+ * remote client would. Failures are then also reported as a remote client
+ * would report them, as instances of {@link RpcException}.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class InProcessClient implements Client {
+
+  private final ServiceGroup services;
+  private final boolean serializeOnBoundary;
+  // Client methods are singletons of their stub, compare them by identity
+  private final ConcurrentMap<ClientMethod<?>, Resolution> resolutions =
+      new MapMaker().weakKeys().makeMap();
+
+  /**
+   * Returns a new builder of clients calling the given server.
+   *
+   * @param server the server whose services should be called
+   */
+  public static Builder newClient(InProcessServer server) {
+    return new Builder(server);
+  }
+
+  private InProcessClient(ServiceGroup services, boolean serializeOnBoundary) {
+    this.services = services;
+    this.serializeOnBoundary = serializeOnBoundary;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public <O extends Message> ListenableFuture<O> encodeMethodCall(final ClientMethod<O> method,
+      Message input) {
+    DispatchTable.Entry entry = resolve(method);
+    if (entry == null) {
+      return Futures.immediateFailedFuture(unknownMethod(method));
+    }
+    ServerMethod<Message, Message> serverMethod =
+        (ServerMethod<Message, Message>) entry.method();
+
+    if (!serializeOnBoundary) {
+      try {
+        return (ListenableFuture<O>) serverMethod.invoke(input);
+      } catch (RuntimeException re) {
+        return Futures.immediateFailedFuture(re);
+      }
+    }
+
+    ListenableFuture<Message> response;
+    try {
+      Message request = serverMethod.inputParser().parseFrom(input.toByteString());
+      response = serverMethod.invoke(request);
+    } catch (InvalidProtocolBufferException ipbe) {
+      return Futures.immediateFailedFuture(
+          new RpcException(ErrorCode.INVALID_REQUEST, ipbe.getMessage()));
+    } catch (RuntimeException re) {
+      return Futures.immediateFailedFuture(toRpcException(re));
+    }
+    response = Futures.withFallback(response, new FutureFallback<Message>() {
+
+      @Override
+      public ListenableFuture<Message> create(Throwable throwable) {
+        if (throwable instanceof CancellationException) {
+          return Futures.immediateCancelledFuture();
+        }
+        return Futures.immediateFailedFuture(toRpcException(throwable));
+      }
+    });
+    return Futures.transform(response, new Function<Message, O>() {
+
+      @Override
+      public O apply(Message response) {
+        try {
+          return method.outputParser().parseFrom(response.toByteString());
+        } catch (InvalidProtocolBufferException ipbe) {
+          throw Throwables.propagate(ipbe);
+        }
+      }
+    });
+  }
+
+  /**
+   * Describes the failure of a method invocation as a remote server would.
+   *
+   * @param throwable the cause of the failure
+   */
+  private static RpcException toRpcException(Throwable throwable) {
+    if (throwable instanceof RpcException) {
+      return (RpcException) throwable;
+    }
+    return new RpcException(ErrorCode.APPLICATION_ERROR, throwable.toString());
+  }
+
+  private DispatchTable.Entry resolve(ClientMethod<?> method) {
+    DispatchTable table = DispatchTable.of(services);
+    Resolution resolution = resolutions.get(method);
+    if (resolution == null || resolution.table != table) {
+      // The table is replaced whenever services are added or removed
+      resolution = new Resolution(table, table.lookup(method.serviceName(), method.name()));
+      resolutions.put(method, resolution);
+    }
+    return resolution.entry;
+  }
+
+  private RpcException unknownMethod(ClientMethod<?> method) {
+    if (services.lookupByName(method.serviceName()) == null) {
+      return new RpcException(ErrorCode.UNKNOWN_SERVICE,
+          String.format("Unknown service %s", method.serviceName()));
+    }
+    return new RpcException(ErrorCode.UNKNOWN_METHOD,
+        String.format("Unknown method %s", DispatchTable.fullName(method.serviceName(),
+            method.name())));
+  }
+
+  /**
+   * Associates a method with the entry it resolved to in a given table.
+   */
+  private static final class Resolution {
+
+    private final DispatchTable table;
+    private final DispatchTable.Entry entry;
+
+    private Resolution(DispatchTable table, DispatchTable.Entry entry) {
+      this.table = table;
+      this.entry = entry;
+    }
+  }
+
+  /**
+   * Configurable builder of {@link InProcessClient} instances.
+   */
+  public static final class Builder {
+
+    private final InProcessServer server;
+    private boolean serializeOnBoundary = false;
+
+    private Builder(InProcessServer server) {
+      this.server = Preconditions.checkNotNull(server);
+    }
+
+    /**
+     * Sets whether requests and responses should be serialized and parsed
+     * back when crossing from the client to the server and back, as they
+     * would be by a remote client. Disabled by default.
+     *
+     * @return {@code this} object
+     */
+    public Builder setSerializeOnBoundary(boolean serializeOnBoundary) {
+      this.serializeOnBoundary = serializeOnBoundary;
+      return this;
+    }
+
+    /**
+     * Returns a new client, as configured by this builder.
+     */
+    public InProcessClient build() {
+      return new InProcessClient(server.serviceGroup(), serializeOnBoundary);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.inprocess;
+
+import io.soliton.protobuf.DefaultServiceGroup;
+import io.soliton.protobuf.Server;
+import io.soliton.protobuf.ServiceGroup;
+
+/**
+ * Implementation of {@link Server} serving clients running in the same
+ * JVM.
+ * <p/>
+ * <p>This server neither binds to a port nor owns any thread: its
+ * {@link InProcessClient}s invoke its services directly.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class InProcessServer implements Server {
+
+  private final ServiceGroup serviceGroup = new DefaultServiceGroup();
+
+  /**
+   * Returns a new server, initially exposing no service.
+   */
+  public static InProcessServer create() {
+    return new InProcessServer();
+  }
+
+  private InProcessServer() {
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ServiceGroup serviceGroup() {
+    return serviceGroup;
+  }
+}
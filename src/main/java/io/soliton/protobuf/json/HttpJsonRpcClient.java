@@ -20,12 +20,20 @@ import io.soliton.protobuf.ChannelInitializers;
 import io.soliton.protobuf.Client;
 import io.soliton.protobuf.ClientLogger;
 import io.soliton.protobuf.ClientMethod;
+import io.soliton.protobuf.FlowControlPolicy;
 import io.soliton.protobuf.NullClientLogger;
+import io.soliton.protobuf.ReconnectManager;
+import io.soliton.protobuf.ReconnectPolicy;
+import io.soliton.protobuf.TlsConfig;
+import io.soliton.protobuf.metrics.CallTimer;
+import io.soliton.protobuf.metrics.RpcMetrics;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
@@ -39,6 +47,7 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
@@ -52,6 +61,7 @@ import io.netty.util.concurrent.GenericFutureListener;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
 /**
@@ -70,10 +80,11 @@ public class HttpJsonRpcClient implements Client {
       .generateNonExecutableJson()
       .create();
 
-  private final Channel channel;
+  private final ReconnectManager reconnectManager;
   private final JsonRpcClientHandler handler;
   private final String rpcPath;
   private final ClientLogger clientLogger;
+  private final RpcMetrics metrics;
 
   /**
    * Returns a new builder for configuring a client connecting to the given
@@ -85,35 +96,45 @@ public class HttpJsonRpcClient implements Client {
     return new Builder(remoteAddress);
   }
 
+  /**
+   * Constructor recording no metrics.
+   */
+  HttpJsonRpcClient(ReconnectManager reconnectManager, JsonRpcClientHandler handler,
+      String rpcPath, ClientLogger clientLogger) {
+    this(reconnectManager, handler, rpcPath, clientLogger, RpcMetrics.disabled());
+  }
+
   /**
    * Exhaustive constructor.
    *
-   * <p>This constructor connects synchronously to the specified server.</p>
-   *
-   * @param channel the connection to the remote server
+   * @param reconnectManager the manager of the connection to the remote server
    * @param handler the handler in charge of receiving server responses
    * @param rpcPath the path of the RPC endpoint on the remote server
    * @param clientLogger the monitoring logger to notify of events
+   * @param metrics the registry in which to record the metrics of calls
    */
-  HttpJsonRpcClient(Channel channel, JsonRpcClientHandler handler,
-      String rpcPath, ClientLogger clientLogger) {
-    this.channel = channel;
+  HttpJsonRpcClient(ReconnectManager reconnectManager, JsonRpcClientHandler handler,
+      String rpcPath, ClientLogger clientLogger, RpcMetrics metrics) {
+    this.reconnectManager = reconnectManager;
     this.handler = handler;
     this.rpcPath = rpcPath;
     this.clientLogger = clientLogger;
+    this.metrics = metrics;
   }
 
   @Override
   public <O extends Message> ListenableFuture<O> encodeMethodCall(final ClientMethod<O> method,
       Message input) {
     clientLogger.logMethodCall(method);
+    final CallTimer timer = metrics.startCall(method.serviceName(), method.name(),
+        input.getSerializedSize());
     final JsonResponseFuture<O> responseFuture =
         handler.newProvisionalResponse(method);
 
     JsonObject request = new JsonRpcRequest(method.serviceName(), method.name(),
         new JsonPrimitive(responseFuture.requestId()), Messages.toJson(input)).toJson();
 
-    ByteBuf requestBuffer = Unpooled.buffer();
+    final ByteBuf requestBuffer = Unpooled.buffer();
     JsonWriter writer = new JsonWriter(
         new OutputStreamWriter(new ByteBufOutputStream(requestBuffer), Charsets.UTF_8));
     GSON.toJson(request, writer);
@@ -123,36 +144,67 @@ public class HttpJsonRpcClient implements Client {
       // Deliberately ignored, as this doesn't involve any I/O
     }
 
-    String host = ((InetSocketAddress) channel.remoteAddress()).getAddress().getHostAddress();
+    reconnectManager.write(new ReconnectManager.PendingWrite() {
 
-    QueryStringEncoder encoder = new QueryStringEncoder(rpcPath);
-    encoder.addParam("pp", "0");
-    HttpRequest httpRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST,
-        encoder.toString(), requestBuffer);
-    httpRequest.headers().set(HttpHeaders.Names.HOST, host);
-    httpRequest.headers().set(HttpHeaders.Names.CONTENT_TYPE, JsonRpcProtocol.CONTENT_TYPE);
-    httpRequest.headers().set(HttpHeaders.Names.CONTENT_LENGTH, requestBuffer.readableBytes());
+      @Override
+      public void write(Channel channel) {
+        if (responseFuture.isDone()) {
+          // Cancelled while waiting for the connection to be restored
+          return;
+        }
+        timer.dispatched();
+        String host = ((InetSocketAddress) channel.remoteAddress()).getAddress().getHostAddress();
 
-    channel.writeAndFlush(httpRequest).addListener(new GenericFutureListener<ChannelFuture>() {
+        QueryStringEncoder encoder = new QueryStringEncoder(rpcPath);
+        encoder.addParam("pp", "0");
+        HttpRequest httpRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,
+            HttpMethod.POST, encoder.toString(), requestBuffer);
+        httpRequest.headers().set(HttpHeaders.Names.HOST, host);
+        httpRequest.headers().set(HttpHeaders.Names.CONTENT_TYPE, JsonRpcProtocol.CONTENT_TYPE);
+        httpRequest.headers().set(HttpHeaders.Names.CONTENT_LENGTH,
+            requestBuffer.readableBytes());
 
-      public void operationComplete(ChannelFuture future) {
-        if (!future.isSuccess()) {
-          clientLogger.logLinkError(method, future.cause());
-          handler.finish(responseFuture.requestId());
-          responseFuture.setException(future.cause());
-        }
+        channel.writeAndFlush(httpRequest).addListener(
+            new GenericFutureListener<ChannelFuture>() {
+
+              public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                  fail(future.cause());
+                }
+              }
+
+            });
       }
 
-    });
+      @Override
+      public void fail(Throwable cause) {
+        clientLogger.logLinkError(method, cause);
+        handler.finish(responseFuture.requestId());
+        responseFuture.setException(cause);
+      }
+    }, responseFuture);
+    timer.completeWith(responseFuture);
 
     return responseFuture;
   }
 
+  /**
+   * Shuts down this client and releases the underlying associated resources.
+   */
+  public void close() {
+    reconnectManager.close();
+  }
+
   public static final class Builder {
 
     private final HostAndPort remoteAddress;
     private String rpcPath = JsonRpcProtocol.DEFAULT_RPC_PATH;
+    private TlsConfig tlsConfig;
     private ClientLogger clientLogger = new NullClientLogger();
+    private ReconnectPolicy reconnectPolicy = ReconnectPolicy.defaults();
+    private FlowControlPolicy flowControlPolicy = FlowControlPolicy.defaults();
+    private RpcMetrics metrics = RpcMetrics.disabled();
+    private boolean lazyConnect = false;
 
     private Builder(HostAndPort remoteAddress) {
       this.remoteAddress = Preconditions.checkNotNull(remoteAddress);
@@ -165,29 +217,84 @@ public class HttpJsonRpcClient implements Client {
       return this;
     }
 
+    public Builder setTlsConfig(TlsConfig tlsConfig) {
+      Preconditions.checkArgument(tlsConfig.isClient());
+      this.tlsConfig = tlsConfig;
+      return this;
+    }
+
     public Builder setClientLogger(ClientLogger clientLogger) {
       this.clientLogger = Preconditions.checkNotNull(clientLogger);
       return this;
     }
 
+    public Builder setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+      this.reconnectPolicy = Preconditions.checkNotNull(reconnectPolicy);
+      return this;
+    }
+
+    public Builder setFlowControlPolicy(FlowControlPolicy flowControlPolicy) {
+      this.flowControlPolicy = Preconditions.checkNotNull(flowControlPolicy);
+      return this;
+    }
+
+    public Builder setMetrics(RpcMetrics metrics) {
+      this.metrics = Preconditions.checkNotNull(metrics);
+      return this;
+    }
+
+    public Builder setLazyConnect(boolean lazyConnect) {
+      this.lazyConnect = lazyConnect;
+      return this;
+    }
+
+    /**
+     * Returns a new connected {@link HttpJsonRpcClient}, as configured by this object.
+     * <p/>
+     * <p>Unless lazy connection is enabled, this operation blocks until the
+     * client is connected.</p>
+     *
+     * @throws IOException in case of a connection error.
+     */
     public HttpJsonRpcClient build() throws IOException {
-      Bootstrap bootstrap = new Bootstrap();
-      bootstrap.group(new NioEventLoopGroup());
+      try {
+        return Uninterruptibles.getUninterruptibly(buildAsync());
+      } catch (ExecutionException ee) {
+        logger.warning("Piezo client failed to connect to " + remoteAddress.toString());
+        throw new IOException(ee.getCause());
+      }
+    }
+
+    /**
+     * Returns a handle on a new {@link HttpJsonRpcClient}, as configured by this object,
+     * completed once the client is connected to the remote server.
+     * <p/>
+     * <p>This operation does not block. If lazy connection is enabled, the
+     * returned handle is already completed.</p>
+     */
+    public ListenableFuture<HttpJsonRpcClient> buildAsync() {
+      final Bootstrap bootstrap = new Bootstrap();
+      EventLoopGroup eventLoopGroup = new NioEventLoopGroup();
+      bootstrap.group(eventLoopGroup);
       bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
       bootstrap.channel(NioSocketChannel.class);
       JsonRpcClientHandler handler = new JsonRpcClientHandler();
       handler.setClientLogger(clientLogger);
-      bootstrap.handler(ChannelInitializers.httpClient(handler));
+      bootstrap.handler(tlsConfig == null ?
+          ChannelInitializers.httpClient(handler) :
+          ChannelInitializers.secureHttpClient(handler, tlsConfig, remoteAddress));
 
-      ChannelFuture future = bootstrap.connect(remoteAddress.getHostText(), remoteAddress.getPort());
-      future.awaitUninterruptibly();
-      if (future.isSuccess()) {
-        logger.info("Piezo client successfully connected to " + remoteAddress.toString());
-      } else {
-        logger.warning("Piezo client failed to connect to " + remoteAddress.toString());
-        throw new IOException(future.cause());
-      }
-      return new HttpJsonRpcClient(future.channel(), handler, rpcPath, clientLogger);
+      ReconnectManager reconnectManager = new ReconnectManager(new ReconnectManager.Connector() {
+
+        @Override
+        public ChannelFuture connect() {
+          return bootstrap.connect(remoteAddress.getHostText(), remoteAddress.getPort());
+        }
+      }, eventLoopGroup, reconnectPolicy, flowControlPolicy);
+
+      HttpJsonRpcClient client = new HttpJsonRpcClient(reconnectManager, handler, rpcPath,
+          metrics.decorate(clientLogger), metrics);
+      return lazyConnect ? Futures.immediateFuture(client) : reconnectManager.open(client);
     }
   }
 }
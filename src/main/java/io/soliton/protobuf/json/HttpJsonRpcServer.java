@@ -17,9 +17,14 @@
 package io.soliton.protobuf.json;
 
 import io.soliton.protobuf.AbstractRpcServer;
+import io.soliton.protobuf.AdmissionController;
 import io.soliton.protobuf.ChannelInitializers;
 import io.soliton.protobuf.NullServerLogger;
 import io.soliton.protobuf.ServerLogger;
+import io.soliton.protobuf.TlsConfig;
+import io.soliton.protobuf.metrics.MetricsHttpHandler;
+import io.soliton.protobuf.metrics.PrometheusExporter;
+import io.soliton.protobuf.metrics.RpcMetrics;
 
 import com.google.common.base.Preconditions;
 import io.netty.channel.Channel;
@@ -60,7 +65,11 @@ public abstract class HttpJsonRpcServer extends AbstractRpcServer {
   public static class Builder {
     private final int port;
     private String rpcPath = JsonRpcProtocol.DEFAULT_RPC_PATH;
+    private TlsConfig tlsConfig;
     private ServerLogger serverLogger = new NullServerLogger();
+    private AdmissionController admissionController = AdmissionController.unlimited();
+    private RpcMetrics metrics = RpcMetrics.disabled();
+    private String metricsPath;
 
     private Builder(int port) {
       Preconditions.checkArgument(port > 0 && port < 65536);
@@ -78,6 +87,17 @@ public abstract class HttpJsonRpcServer extends AbstractRpcServer {
       return this;
     }
 
+    /**
+     * Secures the connections of the server as per the given configuration.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTlsConfig(TlsConfig tlsConfig) {
+      Preconditions.checkArgument(!tlsConfig.isClient());
+      this.tlsConfig = tlsConfig;
+      return this;
+    }
+
     /**
      * Sets the logger the server will use.
      *
@@ -88,6 +108,41 @@ public abstract class HttpJsonRpcServer extends AbstractRpcServer {
       return this;
     }
 
+    /**
+     * Sets the controller deciding which incoming calls should be shed when
+     * the server is overloaded.
+     *
+     * @return {@code this} object
+     */
+    public Builder setAdmissionController(AdmissionController admissionController) {
+      this.admissionController = Preconditions.checkNotNull(admissionController);
+      return this;
+    }
+
+    /**
+     * Sets the registry in which the server records the metrics of the calls
+     * it serves.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMetrics(RpcMetrics metrics) {
+      this.metrics = Preconditions.checkNotNull(metrics);
+      return this;
+    }
+
+    /**
+     * Sets the HTTP path on which the server exposes its metrics, in the
+     * Prometheus text format. Metrics are not exposed unless a path is set.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMetricsPath(String metricsPath) {
+      Preconditions.checkNotNull(metricsPath);
+      Preconditions.checkArgument(metricsPath.startsWith("/"));
+      this.metricsPath = metricsPath;
+      return this;
+    }
+
     /**
      * Returns a new server as per the configuration of this builder.
      *
@@ -97,8 +152,14 @@ public abstract class HttpJsonRpcServer extends AbstractRpcServer {
       return new HttpJsonRpcServer(port) {
         @Override
         protected ChannelInitializer<? extends Channel> channelInitializer() {
-          return ChannelInitializers.httpServer(
-              new JsonRpcServerHandler(this, rpcPath, serverLogger));
+          MetricsHttpHandler metricsHandler = metricsPath == null ? null :
+              new MetricsHttpHandler(metricsPath,
+                  new PrometheusExporter(metrics, eventLoopGroups()));
+          JsonRpcServerHandler handler = new JsonRpcServerHandler(this, rpcPath,
+              metrics.decorate(serverLogger), admissionController, metrics);
+          return tlsConfig == null ?
+              ChannelInitializers.httpServer(handler, metricsHandler) :
+              ChannelInitializers.secureHttpServer(handler, metricsHandler, tlsConfig);
         }
       };
     }
@@ -55,6 +55,34 @@ class JsonRpcClientHandler extends SimpleChannelInboundHandler<HttpResponse> {
       new MapMaker().makeMap();
   private ClientLogger clientLogger;
 
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>A single handler is carried over the successive connections a client
+   * may open to its server, although only one of them is active at any given
+   * time.</p>
+   */
+  @Override
+  public boolean isSharable() {
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>Requests that were in flight on the closed channel are failed.</p>
+   */
+  @Override
+  public void channelInactive(ChannelHandlerContext context) throws Exception {
+    for (Long requestId : inFlightRequests.keySet()) {
+      JsonResponseFuture<? extends Message> future = inFlightRequests.remove(requestId);
+      if (future != null) {
+        future.setException(new Exception("Channel was closed by the remote end"));
+      }
+    }
+    super.channelInactive(context);
+  }
+
   @Override
   protected void channelRead0(ChannelHandlerContext channelHandlerContext,
       HttpResponse response) throws Exception {
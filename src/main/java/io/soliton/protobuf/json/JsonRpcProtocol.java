@@ -21,7 +21,7 @@ package io.soliton.protobuf.json;
  *
  * @author Julien Silland (julien@soliton.io)
  */
-class JsonRpcProtocol {
+public class JsonRpcProtocol {
 
   public static final String DEFAULT_RPC_PATH = "/rpc";
   public static final String CONTENT_TYPE = "application/json";
@@ -15,14 +15,19 @@
  */
 package io.soliton.protobuf.json;
 
+import io.soliton.protobuf.AdmissionController;
+import io.soliton.protobuf.DispatchTable;
 import io.soliton.protobuf.ServerLogger;
 import io.soliton.protobuf.ServerMethod;
 import io.soliton.protobuf.Service;
 import io.soliton.protobuf.ServiceGroup;
+import io.soliton.protobuf.metrics.CallTimer;
+import io.soliton.protobuf.metrics.RpcMetrics;
 
 import com.google.common.base.Function;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -41,10 +46,15 @@ class JsonRpcRequestInvoker {
 
   private final ServiceGroup services;
   private final ServerLogger serverLogger;
+  private final AdmissionController admissionController;
+  private final RpcMetrics metrics;
 
-  public JsonRpcRequestInvoker(ServiceGroup services, ServerLogger serverLogger) {
+  public JsonRpcRequestInvoker(ServiceGroup services, ServerLogger serverLogger,
+      AdmissionController admissionController, RpcMetrics metrics) {
     this.services = services;
     this.serverLogger = serverLogger;
+    this.admissionController = admissionController;
+    this.metrics = metrics;
   }
 
   /**
@@ -54,31 +64,51 @@ class JsonRpcRequestInvoker {
    * @return a handle on the future result of the invocation
    */
   public ListenableFuture<JsonRpcResponse> invoke(JsonRpcRequest request) {
-    Service service = services.lookupByName(request.service());
-    if (service == null) {
-      JsonRpcError error = new JsonRpcError(HttpResponseStatus.BAD_REQUEST,
-          "Unknown service: " + request.service());
+    DispatchTable.Entry entry =
+        DispatchTable.of(services).lookup(request.service(), request.method());
+    if (entry == null) {
+      Service service = services.lookupByName(request.service());
+      String message;
+      if (service == null) {
+        serverLogger.logUnknownService(service);
+        message = "Unknown service: " + request.service();
+      } else {
+        serverLogger.logUnknownMethod(service, request.method());
+        message = "Unknown method: " + request.method();
+      }
+      JsonRpcError error = new JsonRpcError(HttpResponseStatus.BAD_REQUEST, message);
       JsonRpcResponse response = JsonRpcResponse.error(error);
       return Futures.immediateFuture(response);
     }
 
-    ServerMethod<? extends Message, ? extends Message> method = service.lookup(request.method());
-
-    serverLogger.logMethodCall(service, method);
-
-    if (method == null) {
-      JsonRpcError error = new JsonRpcError(HttpResponseStatus.BAD_REQUEST,
-          "Unknown method: " + request.service());
-      JsonRpcResponse response = JsonRpcResponse.error(error);
+    Service service = entry.service();
+    ServerMethod<? extends Message, ? extends Message> method = entry.method();
+    final AdmissionController.Permit permit = admissionController.tryAdmit(
+        service.fullName(), method.name());
+    if (permit == null) {
+      JsonRpcError error = new JsonRpcError(HttpResponseStatus.SERVICE_UNAVAILABLE,
+          "Server overloaded, retry after " + admissionController.retryAfterMillis() + " ms");
+      JsonRpcResponse response = JsonRpcResponse.error(error, request.id());
       return Futures.immediateFuture(response);
     }
+    serverLogger.logMethodCall(service, method);
+
+    ListenableFuture<JsonRpcResponse> response = invoke(service, method, request.parameter(),
+        request.id());
+    response.addListener(new Runnable() {
 
-    return invoke(method, request.parameter(), request.id());
+      @Override
+      public void run() {
+        permit.release();
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return response;
   }
 
   /**
    * Actually invokes the server method.
    *
+   * @param service the service to which the method belongs
    * @param method the method to invoke
    * @param parameter the request's parameter
    * @param id the request's client-side identifier
@@ -86,7 +116,7 @@ class JsonRpcRequestInvoker {
    * @param <O> the method's output proto-type
    */
   private <I extends Message, O extends Message> ListenableFuture<JsonRpcResponse> invoke(
-      ServerMethod<I, O> method, JsonObject parameter, JsonElement id) {
+      Service service, ServerMethod<I, O> method, JsonObject parameter, JsonElement id) {
     I request;
     try {
       request = (I) Messages.fromJson(method.inputBuilder(), parameter);
@@ -96,7 +126,17 @@ class JsonRpcRequestInvoker {
       future.setException(e);
       return future;
     }
-    ListenableFuture<O> response = method.invoke(request);
+    CallTimer timer = metrics.startCall(service.fullName(), method.name(),
+        request.getSerializedSize());
+    timer.dispatched();
+    ListenableFuture<O> response;
+    try {
+      response = method.invoke(request);
+    } catch (RuntimeException e) {
+      // Implementations are invoked directly and may throw instead of failing their future
+      response = Futures.immediateFailedFuture(e);
+    }
+    timer.completeWith(response);
     return Futures.transform(response, new JsonConverter(id), TRANSFORM_EXECUTOR);
   }
 
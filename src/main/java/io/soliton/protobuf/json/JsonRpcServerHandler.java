@@ -16,8 +16,10 @@
 
 package io.soliton.protobuf.json;
 
+import io.soliton.protobuf.AdmissionController;
 import io.soliton.protobuf.Server;
 import io.soliton.protobuf.ServerLogger;
+import io.soliton.protobuf.metrics.RpcMetrics;
 
 import com.google.common.base.Charsets;
 import com.google.common.util.concurrent.Futures;
@@ -48,7 +50,7 @@ import java.util.concurrent.Executors;
  *
  * @author Julien Silland (julien@soliton.io)
  */
-final class JsonRpcServerHandler extends SimpleChannelInboundHandler<HttpRequest> {
+public final class JsonRpcServerHandler extends SimpleChannelInboundHandler<HttpRequest> {
 
   private static final String PRETTY_PRINT_PARAMETER = "prettyPrint";
   private static final String PP_PARAMETER = "pp";
@@ -65,12 +67,16 @@ final class JsonRpcServerHandler extends SimpleChannelInboundHandler<HttpRequest
    * @param server the server to which this handler is attached
    * @param rpcPath the HTTP endpoint path
    * @param serverLogger the object to log server operations to
+   * @param admissionController the controller deciding which calls to shed
+   * @param metrics the registry in which to record the metrics of calls
    */
-  public JsonRpcServerHandler(Server server, String rpcPath, ServerLogger serverLogger) {
+  public JsonRpcServerHandler(Server server, String rpcPath, ServerLogger serverLogger,
+      AdmissionController admissionController, RpcMetrics metrics) {
     this.server = server;
     this.rpcPath = rpcPath;
     this.serverLogger = serverLogger;
-    this.invoker = new JsonRpcRequestInvoker(server.serviceGroup(), serverLogger);
+    this.invoker = new JsonRpcRequestInvoker(server.serviceGroup(), serverLogger,
+        admissionController, metrics);
   }
 
   @Override
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.Message;
+
+/**
+ * Times the successive phases of a single method call.
+ * <p/>
+ * <p>A call is first dispatched, i.e. handed over to the method
+ * implementation on the server or written to the network on the client,
+ * then executed, then completed once its response has been either written
+ * or received.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class CallTimer {
+
+  private static final CallTimer NOOP = new CallTimer();
+
+  private final MethodMetrics metrics;
+  private final long startNanos;
+  private volatile long dispatchNanos;
+
+  /**
+   * Returns a timer which doesn't record anything.
+   */
+  public static CallTimer noop() {
+    return NOOP;
+  }
+
+  private CallTimer() {
+    this.metrics = null;
+    this.startNanos = 0;
+  }
+
+  CallTimer(MethodMetrics metrics, long requestSize) {
+    this.metrics = metrics;
+    this.startNanos = System.nanoTime();
+    this.dispatchNanos = startNanos;
+    metrics.inFlight.incrementAndGet();
+    metrics.requestBytes.addAndGet(requestSize);
+  }
+
+  /**
+   * Marks the dispatch of the call.
+   */
+  public void dispatched() {
+    if (metrics == null) {
+      return;
+    }
+    long now = System.nanoTime();
+    dispatchNanos = now;
+    metrics.queueTime.record(now - startNanos);
+  }
+
+  /**
+   * Marks the availability of the result of the call.
+   */
+  public void executed() {
+    if (metrics == null) {
+      return;
+    }
+    metrics.executionTime.record(System.nanoTime() - dispatchNanos);
+  }
+
+  /**
+   * Marks the completion of the call.
+   *
+   * @param responseSize the size of the serialized response
+   */
+  public void completed(long responseSize) {
+    if (metrics == null) {
+      return;
+    }
+    metrics.latency.record(System.nanoTime() - startNanos);
+    metrics.responseBytes.addAndGet(responseSize);
+    metrics.inFlight.decrementAndGet();
+  }
+
+  /**
+   * Marks the execution and completion of the call once the given response
+   * is available.
+   *
+   * @param response a handle on the response to the call
+   */
+  public void completeWith(ListenableFuture<? extends Message> response) {
+    if (metrics == null) {
+      return;
+    }
+    Futures.addCallback(response, new FutureCallback<Message>() {
+
+      @Override
+      public void onSuccess(Message result) {
+        executed();
+        completed(result.getSerializedSize());
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        executed();
+        completed(0);
+      }
+    });
+  }
+}
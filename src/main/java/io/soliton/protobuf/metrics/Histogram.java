@@ -0,0 +1,189 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, such as latencies in
+ * nanoseconds.
+ * <p/>
+ * <p>Values are counted in log-linear buckets: each power of two is split
+ * into 32 sub-buckets of equal width, which bounds the relative error of
+ * the reported percentiles to about 3%. Values greater than or equal to
+ * 2<sup>40</sup> (about 18 minutes, in nanoseconds) are counted in the last
+ * bucket.</p>
+ * <p/>
+ * <p>Recording a value never blocks nor allocates.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_MAGNITUDE = 39;
+  private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+  static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a single value.
+   *
+   * @param value the value to record, negative values being counted as zero
+   */
+  public void record(long value) {
+    long clamped = Math.max(0L, value);
+    counts.incrementAndGet(bucketIndex(Math.min(clamped, MAX_VALUE)));
+    count.incrementAndGet();
+    sum.addAndGet(clamped);
+    long currentMax;
+    while ((currentMax = max.get()) < clamped) {
+      if (max.compareAndSet(currentMax, clamped)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns a point-in-time copy of this histogram.
+   * <p/>
+   * <p>Values recorded concurrently with the copy may or may not be
+   * reflected in it.</p>
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      copy[i] = counts.get(i);
+    }
+    return new Snapshot(copy, count.get(), sum.get(), max.get());
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS));
+    return (magnitude - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * An immutable copy of the state of a {@link Histogram}.
+   */
+  public static final class Snapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     */
+    public long count() {
+      return count;
+    }
+
+    /**
+     * Returns the sum of the recorded values.
+     */
+    public long sum() {
+      return sum;
+    }
+
+    /**
+     * Returns the greatest recorded value.
+     */
+    public long max() {
+      return max;
+    }
+
+    /**
+     * Returns the arithmetic mean of the recorded values.
+     */
+    public double mean() {
+      return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the recorded values.
+     *
+     * @param percentile a percentile, between {@code 0} and {@code 100}
+     */
+    public long percentile(double percentile) {
+      Preconditions.checkArgument(percentile >= 0.0 && percentile <= 100.0);
+      long total = 0;
+      for (long bucketCount : counts) {
+        total += bucketCount;
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(bucketUpperBound(i), max);
+        }
+      }
+      return max;
+    }
+
+    /**
+     * Returns the number of recorded values lesser than or equal to the given
+     * bound, to the precision of the buckets of the histogram.
+     *
+     * @param bound the inclusive upper bound of the values to count
+     */
+    public long countAtOrBelow(long bound) {
+      if (bound < 0) {
+        return 0;
+      }
+      int last = bucketIndex(Math.min(bound, MAX_VALUE));
+      long total = 0;
+      for (int i = 0; i <= last; i++) {
+        total += counts[i];
+      }
+      return total;
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics pertaining to the calls made to a single method.
+ * <p/>
+ * <p>Durations are recorded in nanoseconds and sizes in bytes. All the
+ * operations of this class are lock-free.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class MethodMetrics {
+
+  private final String service;
+  private final String method;
+
+  final Histogram queueTime = new Histogram();
+  final Histogram executionTime = new Histogram();
+  final Histogram latency = new Histogram();
+  final AtomicLong requestBytes = new AtomicLong();
+  final AtomicLong responseBytes = new AtomicLong();
+  final AtomicInteger inFlight = new AtomicInteger();
+  final AtomicLong calls = new AtomicLong();
+  final AtomicLong successes = new AtomicLong();
+  final AtomicLong failures = new AtomicLong();
+  final AtomicLong linkFailures = new AtomicLong();
+
+  MethodMetrics(String service, String method) {
+    this.service = service;
+    this.method = method;
+  }
+
+  /**
+   * Starts timing a new call to this method.
+   *
+   * @param requestSize the size of the serialized request
+   * @return the timer of the call
+   */
+  public CallTimer startCall(long requestSize) {
+    return new CallTimer(this, requestSize);
+  }
+
+  /**
+   * Returns the full name of the service this method belongs to.
+   */
+  public String service() {
+    return service;
+  }
+
+  /**
+   * Returns the name of this method.
+   */
+  public String method() {
+    return method;
+  }
+
+  /**
+   * Returns a point-in-time copy of these metrics.
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  /**
+   * An immutable copy of the state of a {@link MethodMetrics} object.
+   */
+  public static final class Snapshot {
+
+    private final String service;
+    private final String method;
+    private final Histogram.Snapshot queueTime;
+    private final Histogram.Snapshot executionTime;
+    private final Histogram.Snapshot latency;
+    private final long requestBytes;
+    private final long responseBytes;
+    private final int inFlight;
+    private final long calls;
+    private final long successes;
+    private final long failures;
+    private final long linkFailures;
+
+    private Snapshot(MethodMetrics metrics) {
+      this.service = metrics.service;
+      this.method = metrics.method;
+      this.queueTime = metrics.queueTime.snapshot();
+      this.executionTime = metrics.executionTime.snapshot();
+      this.latency = metrics.latency.snapshot();
+      this.requestBytes = metrics.requestBytes.get();
+      this.responseBytes = metrics.responseBytes.get();
+      this.inFlight = metrics.inFlight.get();
+      this.calls = metrics.calls.get();
+      this.successes = metrics.successes.get();
+      this.failures = metrics.failures.get();
+      this.linkFailures = metrics.linkFailures.get();
+    }
+
+    /**
+     * Returns the full name of the service the method belongs to.
+     */
+    public String service() {
+      return service;
+    }
+
+    /**
+     * Returns the name of the method.
+     */
+    public String method() {
+      return method;
+    }
+
+    /**
+     * Returns the distribution of the time calls waited for before being
+     * dispatched: on the server, between their reception and the invocation
+     * of the method; on the client, between the method call and the write to
+     * the network.
+     */
+    public Histogram.Snapshot queueTime() {
+      return queueTime;
+    }
+
+    /**
+     * Returns the distribution of the time between the dispatch of calls
+     * and the availability of their result.
+     */
+    public Histogram.Snapshot executionTime() {
+      return executionTime;
+    }
+
+    /**
+     * Returns the distribution of the end-to-end latency of calls: on the
+     * server, between their reception and the write of the response; on the
+     * client, between the method call and the reception of the response.
+     */
+    public Histogram.Snapshot latency() {
+      return latency;
+    }
+
+    /**
+     * Returns the cumulated size of the serialized requests.
+     */
+    public long requestBytes() {
+      return requestBytes;
+    }
+
+    /**
+     * Returns the cumulated size of the serialized responses.
+     */
+    public long responseBytes() {
+      return responseBytes;
+    }
+
+    /**
+     * Returns the number of calls in flight.
+     */
+    public int inFlight() {
+      return inFlight;
+    }
+
+    /**
+     * Returns the number of calls made to the method.
+     */
+    public long calls() {
+      return calls;
+    }
+
+    /**
+     * Returns the number of calls which completed successfully.
+     */
+    public long successes() {
+      return successes;
+    }
+
+    /**
+     * Returns the number of calls which failed.
+     */
+    public long failures() {
+      return failures;
+    }
+
+    /**
+     * Returns the number of calls whose request or response couldn't be
+     * transmitted.
+     */
+    public long linkFailures() {
+      return linkFailures;
+    }
+  }
+}
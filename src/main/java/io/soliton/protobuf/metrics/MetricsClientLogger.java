@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import io.soliton.protobuf.ClientLogger;
+import io.soliton.protobuf.ClientMethod;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.Message;
+
+/**
+ * A {@link ClientLogger} counting the events it receives in a
+ * {@link RpcMetrics} registry, before forwarding them to another logger.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class MetricsClientLogger implements ClientLogger {
+
+  private final RpcMetrics metrics;
+  private final ClientLogger delegate;
+
+  /**
+   * Exhaustive constructor.
+   *
+   * @param metrics the registry in which to count events
+   * @param delegate the logger to which events are forwarded
+   */
+  public MetricsClientLogger(RpcMetrics metrics, ClientLogger delegate) {
+    this.metrics = Preconditions.checkNotNull(metrics);
+    this.delegate = Preconditions.checkNotNull(delegate);
+  }
+
+  @Override
+  public void logMethodCall(ClientMethod<?> method) {
+    metrics.forMethod(method.serviceName(), method.name()).calls.incrementAndGet();
+    delegate.logMethodCall(method);
+  }
+
+  @Override
+  public void logClientError(ClientMethod<?> method, Throwable cause) {
+    metrics.forMethod(method.serviceName(), method.name()).failures.incrementAndGet();
+    delegate.logClientError(method, cause);
+  }
+
+  @Override
+  public void logServerError(String serviceName, String methodName, Throwable cause) {
+    metrics.forMethod(serviceName, methodName).failures.incrementAndGet();
+    delegate.logServerError(serviceName, methodName, cause);
+  }
+
+  @Override
+  public <O extends Message> void logLinkError(ClientMethod<O> method, Throwable cause) {
+    metrics.forMethod(method.serviceName(), method.name()).linkFailures.incrementAndGet();
+    delegate.logLinkError(method, cause);
+  }
+
+  @Override
+  public <O extends Message> void logSuccess(ClientMethod<O> clientMethod) {
+    metrics.forMethod(clientMethod.serviceName(), clientMethod.name())
+        .successes.incrementAndGet();
+    delegate.logSuccess(clientMethod);
+  }
+}
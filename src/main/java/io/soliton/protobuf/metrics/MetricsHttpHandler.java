@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Serves the metrics of a server over HTTP, on a dedicated path.
+ * <p/>
+ * <p>This handler is meant to be installed ahead of the RPC handler of an
+ * HTTP server: requests for other paths are passed along untouched.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class MetricsHttpHandler extends SimpleChannelInboundHandler<HttpRequest> {
+
+  private final String path;
+  private final PrometheusExporter exporter;
+
+  /**
+   * Exhaustive constructor.
+   *
+   * @param path the HTTP path on which the metrics are served
+   * @param exporter the exporter rendering the metrics
+   */
+  public MetricsHttpHandler(String path, PrometheusExporter exporter) {
+    Preconditions.checkArgument(path.startsWith("/"));
+    this.path = path;
+    this.exporter = Preconditions.checkNotNull(exporter);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isSharable() {
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>Only requests for the metrics path are accepted.</p>
+   */
+  @Override
+  public boolean acceptInboundMessage(Object message) throws Exception {
+    if (!(message instanceof HttpRequest)) {
+      return false;
+    }
+    String uri = ((HttpRequest) message).getUri();
+    if (!uri.startsWith(path)) {
+      return false;
+    }
+    return uri.length() == path.length() || uri.charAt(path.length()) == '?';
+  }
+
+  @Override
+  protected void channelRead0(ChannelHandlerContext context, HttpRequest request)
+      throws Exception {
+    FullHttpResponse response;
+    if (request.getMethod().equals(HttpMethod.GET)) {
+      ByteBuf content = Unpooled.copiedBuffer(exporter.scrape(), Charsets.UTF_8);
+      response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+          content);
+      response.headers().set(HttpHeaders.Names.CONTENT_TYPE, PrometheusExporter.CONTENT_TYPE);
+    } else {
+      response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+          HttpResponseStatus.METHOD_NOT_ALLOWED);
+    }
+    response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, response.content().readableBytes());
+    ChannelFuture written = context.writeAndFlush(response);
+    if (!HttpHeaders.isKeepAlive(request)) {
+      written.addListener(ChannelFutureListener.CLOSE);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import io.soliton.protobuf.ServerLogger;
+import io.soliton.protobuf.ServerMethod;
+import io.soliton.protobuf.Service;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import com.google.protobuf.Message;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link ServerLogger} counting the events it receives in a
+ * {@link RpcMetrics} registry, before forwarding them to another logger.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class MetricsServerLogger implements ServerLogger {
+
+  private final RpcMetrics metrics;
+  private final ServerLogger delegate;
+
+  // Most events only identify the method, not the service it belongs to.
+  private final ConcurrentMap<ServerMethod<?, ?>, MethodMetrics> methods =
+      new MapMaker().weakKeys().makeMap();
+
+  /**
+   * Exhaustive constructor.
+   *
+   * @param metrics the registry in which to count events
+   * @param delegate the logger to which events are forwarded
+   */
+  public MetricsServerLogger(RpcMetrics metrics, ServerLogger delegate) {
+    this.metrics = Preconditions.checkNotNull(metrics);
+    this.delegate = Preconditions.checkNotNull(delegate);
+  }
+
+  @Override
+  public void logMethodCall(Service service,
+      ServerMethod<? extends Message, ? extends Message> method) {
+    MethodMetrics methodMetrics = methods.get(method);
+    if (methodMetrics == null) {
+      methodMetrics = metrics.forMethod(service.fullName(), method.name());
+      methods.put(method, methodMetrics);
+    }
+    methodMetrics.calls.incrementAndGet();
+    delegate.logMethodCall(service, method);
+  }
+
+  @Override
+  public void logServerFailure(ServerMethod<?, ?> serverMethod, Throwable throwable) {
+    MethodMetrics methodMetrics = methods.get(serverMethod);
+    if (methodMetrics != null) {
+      methodMetrics.failures.incrementAndGet();
+    }
+    delegate.logServerFailure(serverMethod, throwable);
+  }
+
+  @Override
+  public void logLinkFailure(ServerMethod<?, ?> serverMethod, Throwable cause) {
+    MethodMetrics methodMetrics = methods.get(serverMethod);
+    if (methodMetrics != null) {
+      methodMetrics.linkFailures.incrementAndGet();
+    }
+    delegate.logLinkFailure(serverMethod, cause);
+  }
+
+  @Override
+  public void logServerSuccess(ServerMethod<?, ?> serverMethod) {
+    MethodMetrics methodMetrics = methods.get(serverMethod);
+    if (methodMetrics != null) {
+      methodMetrics.successes.incrementAndGet();
+    }
+    delegate.logServerSuccess(serverMethod);
+  }
+
+  @Override
+  public void logUnknownService(Service service) {
+    metrics.recordUnknownService();
+    delegate.logUnknownService(service);
+  }
+
+  @Override
+  public void logClientError(Throwable throwable) {
+    metrics.recordClientError();
+    delegate.logClientError(throwable);
+  }
+
+  @Override
+  public void logUnknownMethod(Service service, String method) {
+    metrics.recordUnknownMethod();
+    delegate.logUnknownMethod(service, method);
+  }
+}
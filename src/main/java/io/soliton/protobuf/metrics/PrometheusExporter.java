@@ -0,0 +1,213 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders the metrics of a server in the Prometheus text exposition format.
+ * <p/>
+ * <p>Besides the content of a {@link RpcMetrics} registry, the output
+ * includes the number of tasks pending on each event loop of the server,
+ * and the state of the JVM's buffer pools.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class PrometheusExporter {
+
+  /**
+   * The content type of the exposition format.
+   */
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final RpcMetrics metrics;
+  private final ImmutableMap<String, EventLoopGroup> eventLoopGroups;
+
+  /**
+   * Exhaustive constructor.
+   *
+   * @param metrics the registry whose content to export
+   * @param eventLoopGroups the event loop groups of the server, keyed by a
+   * name used to label their metrics
+   */
+  public PrometheusExporter(RpcMetrics metrics, Map<String, EventLoopGroup> eventLoopGroups) {
+    this.metrics = Preconditions.checkNotNull(metrics);
+    this.eventLoopGroups = ImmutableMap.copyOf(eventLoopGroups);
+  }
+
+  /**
+   * Returns the current state of the exported metrics.
+   */
+  public String scrape() {
+    StringBuilder output = new StringBuilder();
+    RpcMetrics.Snapshot snapshot = metrics.snapshot();
+    writeMethods(output, snapshot.methods());
+
+    header(output, "piezo_unknown_services_total", "counter",
+        "Requests received for unknown services.");
+    sample(output, "piezo_unknown_services_total", "", snapshot.unknownServices());
+    header(output, "piezo_unknown_methods_total", "counter",
+        "Requests received for unknown methods.");
+    sample(output, "piezo_unknown_methods_total", "", snapshot.unknownMethods());
+    header(output, "piezo_client_errors_total", "counter",
+        "Requests which could not be decoded.");
+    sample(output, "piezo_client_errors_total", "", snapshot.clientErrors());
+    header(output, "piezo_round_trip_time_seconds", "summary",
+        "Round-trip time of keepalive pings.");
+    summary(output, "piezo_round_trip_time_seconds", "", snapshot.roundTripTime());
+
+    writeEventLoops(output);
+    writeBufferPools(output);
+    return output.toString();
+  }
+
+  private void writeMethods(StringBuilder output, List<MethodMetrics.Snapshot> methods) {
+    header(output, "piezo_calls_total", "counter", "Calls made to a method.");
+    for (MethodMetrics.Snapshot method : methods) {
+      sample(output, "piezo_calls_total", labels(method), method.calls());
+    }
+    header(output, "piezo_successes_total", "counter", "Calls which completed successfully.");
+    for (MethodMetrics.Snapshot method : methods) {
+      sample(output, "piezo_successes_total", labels(method), method.successes());
+    }
+    header(output, "piezo_failures_total", "counter", "Calls which failed.");
+    for (MethodMetrics.Snapshot method : methods) {
+      sample(output, "piezo_failures_total", labels(method), method.failures());
+    }
+    header(output, "piezo_link_failures_total", "counter",
+        "Calls whose request or response could not be transmitted.");
+    for (MethodMetrics.Snapshot method : methods) {
+      sample(output, "piezo_link_failures_total", labels(method), method.linkFailures());
+    }
+    header(output, "piezo_in_flight", "gauge", "Calls currently in flight.");
+    for (MethodMetrics.Snapshot method : methods) {
+      sample(output, "piezo_in_flight", labels(method), method.inFlight());
+    }
+    header(output, "piezo_request_bytes_total", "counter", "Size of the serialized requests.");
+    for (MethodMetrics.Snapshot method : methods) {
+      sample(output, "piezo_request_bytes_total", labels(method), method.requestBytes());
+    }
+    header(output, "piezo_response_bytes_total", "counter", "Size of the serialized responses.");
+    for (MethodMetrics.Snapshot method : methods) {
+      sample(output, "piezo_response_bytes_total", labels(method), method.responseBytes());
+    }
+
+    header(output, "piezo_queue_time_seconds", "summary",
+        "Time calls waited for before being dispatched.");
+    for (MethodMetrics.Snapshot method : methods) {
+      summary(output, "piezo_queue_time_seconds", labels(method), method.queueTime());
+    }
+    header(output, "piezo_execution_time_seconds", "summary",
+        "Time between the dispatch of calls and the availability of their result.");
+    for (MethodMetrics.Snapshot method : methods) {
+      summary(output, "piezo_execution_time_seconds", labels(method), method.executionTime());
+    }
+    header(output, "piezo_latency_seconds", "summary", "End-to-end latency of calls.");
+    for (MethodMetrics.Snapshot method : methods) {
+      summary(output, "piezo_latency_seconds", labels(method), method.latency());
+    }
+  }
+
+  private void writeEventLoops(StringBuilder output) {
+    header(output, "piezo_event_loop_pending_tasks", "gauge",
+        "Tasks waiting to be executed by an event loop.");
+    for (Map.Entry<String, EventLoopGroup> group : eventLoopGroups.entrySet()) {
+      int index = 0;
+      for (EventExecutor executor : group.getValue()) {
+        if (executor instanceof SingleThreadEventExecutor) {
+          String labels = String.format("group=\"%s\",loop=\"%d\"",
+              escape(group.getKey()), index);
+          sample(output, "piezo_event_loop_pending_tasks", labels,
+              ((SingleThreadEventExecutor) executor).pendingTasks());
+        }
+        index++;
+      }
+    }
+  }
+
+  private void writeBufferPools(StringBuilder output) {
+    List<BufferPoolMXBean> pools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+    header(output, "piezo_buffer_pool_buffers", "gauge", "Buffers allocated in a JVM pool.");
+    for (BufferPoolMXBean pool : pools) {
+      sample(output, "piezo_buffer_pool_buffers", poolLabels(pool), pool.getCount());
+    }
+    header(output, "piezo_buffer_pool_used_bytes", "gauge",
+        "Memory used by the buffers of a JVM pool.");
+    for (BufferPoolMXBean pool : pools) {
+      sample(output, "piezo_buffer_pool_used_bytes", poolLabels(pool), pool.getMemoryUsed());
+    }
+    header(output, "piezo_buffer_pool_capacity_bytes", "gauge",
+        "Total capacity of the buffers of a JVM pool.");
+    for (BufferPoolMXBean pool : pools) {
+      sample(output, "piezo_buffer_pool_capacity_bytes", poolLabels(pool),
+          pool.getTotalCapacity());
+    }
+  }
+
+  private static void header(StringBuilder output, String name, String type, String help) {
+    output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder output, String name, String labels, long value) {
+    output.append(name);
+    if (!labels.isEmpty()) {
+      output.append('{').append(labels).append('}');
+    }
+    output.append(' ').append(value).append('\n');
+  }
+
+  private static void summary(StringBuilder output, String name, String labels,
+      Histogram.Snapshot histogram) {
+    String separator = labels.isEmpty() ? "" : ",";
+    for (double quantile : QUANTILES) {
+      output.append(name).append('{').append(labels).append(separator).append("quantile=\"")
+          .append(quantile).append("\"} ")
+          .append(histogram.percentile(quantile * 100) / NANOS_PER_SECOND).append('\n');
+    }
+    output.append(name).append("_sum{").append(labels).append("} ")
+        .append(histogram.sum() / NANOS_PER_SECOND).append('\n');
+    output.append(name).append("_count{").append(labels).append("} ")
+        .append(histogram.count()).append('\n');
+  }
+
+  private static String labels(MethodMetrics.Snapshot method) {
+    return String.format("service=\"%s\",method=\"%s\"", escape(method.service()),
+        escape(method.method()));
+  }
+
+  private static String poolLabels(BufferPoolMXBean pool) {
+    return String.format("pool=\"%s\"", escape(pool.getName()));
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import io.soliton.protobuf.ClientLogger;
+import io.soliton.protobuf.ServerLogger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the metrics collected by a client or a server, broken down by
+ * service and method.
+ * <p/>
+ * <p>The metrics of a method are created upon its first call. A consistent
+ * view of all of them can be obtained at any time through
+ * {@link #snapshot()}, e.g. to be exported to a monitoring system.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class RpcMetrics {
+
+  private static final RpcMetrics DISABLED = new RpcMetrics(false);
+
+  private final boolean enabled;
+  private final ConcurrentMap<String, ConcurrentMap<String, MethodMetrics>> services =
+      new MapMaker().makeMap();
+  private final AtomicLong unknownServices = new AtomicLong();
+  private final AtomicLong unknownMethods = new AtomicLong();
+  private final AtomicLong clientErrors = new AtomicLong();
+  private final Histogram roundTripTime = new Histogram();
+
+  /**
+   * Returns a new, empty registry.
+   */
+  public static RpcMetrics create() {
+    return new RpcMetrics(true);
+  }
+
+  /**
+   * Returns a registry which doesn't record anything.
+   */
+  public static RpcMetrics disabled() {
+    return DISABLED;
+  }
+
+  private RpcMetrics(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Returns whether this registry records metrics.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the metrics of the given method, creating them if necessary.
+   *
+   * @param service the full name of the service the method belongs to
+   * @param method the name of the method
+   */
+  public MethodMetrics forMethod(String service, String method) {
+    ConcurrentMap<String, MethodMetrics> methods = services.get(service);
+    if (methods == null) {
+      ConcurrentMap<String, MethodMetrics> created = new MapMaker().makeMap();
+      methods = services.putIfAbsent(service, created);
+      if (methods == null) {
+        methods = created;
+      }
+    }
+    MethodMetrics metrics = methods.get(method);
+    if (metrics == null) {
+      MethodMetrics created = new MethodMetrics(service, method);
+      metrics = methods.putIfAbsent(method, created);
+      if (metrics == null) {
+        metrics = created;
+      }
+    }
+    return metrics;
+  }
+
+  /**
+   * Starts timing a new call to the given method.
+   *
+   * @param service the full name of the service the method belongs to
+   * @param method the name of the method
+   * @param requestSize the size of the serialized request
+   * @return the timer of the call, which doesn't record anything if this
+   * registry is disabled
+   */
+  public CallTimer startCall(String service, String method, long requestSize) {
+    if (!enabled) {
+      return CallTimer.noop();
+    }
+    return forMethod(service, method).startCall(requestSize);
+  }
+
+  /**
+   * Returns a logger counting events in this registry before forwarding them
+   * to the given logger, or the given logger itself if this registry is
+   * disabled.
+   *
+   * @param serverLogger the logger to forward events to
+   */
+  public ServerLogger decorate(ServerLogger serverLogger) {
+    return enabled ? new MetricsServerLogger(this, serverLogger) : serverLogger;
+  }
+
+  /**
+   * Returns a logger counting events in this registry before forwarding them
+   * to the given logger, or the given logger itself if this registry is
+   * disabled.
+   *
+   * @param clientLogger the logger to forward events to
+   */
+  public ClientLogger decorate(ClientLogger clientLogger) {
+    return enabled ? new MetricsClientLogger(this, clientLogger) : clientLogger;
+  }
+
+  /**
+   * Returns a point-in-time copy of all the metrics of this registry.
+   */
+  public Snapshot snapshot() {
+    ImmutableList.Builder<MethodMetrics.Snapshot> methods = ImmutableList.builder();
+    for (ConcurrentMap<String, MethodMetrics> service : services.values()) {
+      for (MethodMetrics method : service.values()) {
+        methods.add(method.snapshot());
+      }
+    }
+    return new Snapshot(methods.build(), unknownServices.get(), unknownMethods.get(),
+        clientErrors.get(), roundTripTime.snapshot());
+  }
+
+  /**
+   * Records the round-trip time of a keepalive ping.
+   *
+   * @param nanos the time between the sending of the ping and the reception
+   * of its answer
+   */
+  public void recordRoundTrip(long nanos) {
+    if (enabled) {
+      roundTripTime.record(nanos);
+    }
+  }
+
+  void recordUnknownService() {
+    unknownServices.incrementAndGet();
+  }
+
+  void recordUnknownMethod() {
+    unknownMethods.incrementAndGet();
+  }
+
+  void recordClientError() {
+    clientErrors.incrementAndGet();
+  }
+
+  /**
+   * An immutable copy of the state of a {@link RpcMetrics} registry.
+   */
+  public static final class Snapshot {
+
+    private final ImmutableList<MethodMetrics.Snapshot> methods;
+    private final long unknownServices;
+    private final long unknownMethods;
+    private final long clientErrors;
+    private final Histogram.Snapshot roundTripTime;
+
+    private Snapshot(ImmutableList<MethodMetrics.Snapshot> methods, long unknownServices,
+        long unknownMethods, long clientErrors, Histogram.Snapshot roundTripTime) {
+      this.methods = methods;
+      this.unknownServices = unknownServices;
+      this.unknownMethods = unknownMethods;
+      this.clientErrors = clientErrors;
+      this.roundTripTime = roundTripTime;
+    }
+
+    /**
+     * Returns the metrics of each method called so far.
+     */
+    public ImmutableList<MethodMetrics.Snapshot> methods() {
+      return methods;
+    }
+
+    /**
+     * Returns the number of requests received for unknown services.
+     */
+    public long unknownServices() {
+      return unknownServices;
+    }
+
+    /**
+     * Returns the number of requests received for unknown methods.
+     */
+    public long unknownMethods() {
+      return unknownMethods;
+    }
+
+    /**
+     * Returns the number of requests which couldn't be decoded.
+     */
+    public long clientErrors() {
+      return clientErrors;
+    }
+
+    /**
+     * Returns the distribution of the round-trip times of keepalive pings,
+     * in nanoseconds.
+     */
+    public Histogram.Snapshot roundTripTime() {
+      return roundTripTime;
+    }
+  }
+}
@@ -22,28 +22,35 @@ import io.soliton.protobuf.ClientLogger;
 import io.soliton.protobuf.ClientMethod;
 import io.soliton.protobuf.Envelope;
 import io.soliton.protobuf.EnvelopeFuture;
+import io.soliton.protobuf.FlowControlPolicy;
+import io.soliton.protobuf.KeepAlivePolicy;
 import io.soliton.protobuf.NullClientLogger;
+import io.soliton.protobuf.ReconnectManager;
+import io.soliton.protobuf.ReconnectPolicy;
+import io.soliton.protobuf.TlsConfig;
+import io.soliton.protobuf.metrics.CallTimer;
+import io.soliton.protobuf.metrics.RpcMetrics;
 
 import com.google.common.base.Preconditions;
 import com.google.common.net.HostAndPort;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.Message;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.HttpRequest;
-import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
 /**
@@ -56,12 +63,10 @@ public class QuartzClient implements Client {
 
   private static final Logger logger = Logger.getLogger(QuartzClient.class.getCanonicalName());
 
-  private Channel channel;
-  private QuartzClientHandler handler;
+  private final ReconnectManager reconnectManager;
+  private final QuartzClientHandler handler;
   private final ClientLogger clientLogger;
-  private final ChannelOpener channelOpener;
-  private final AtomicBoolean refuseNewRequests = new AtomicBoolean(false);
-  private final AtomicBoolean shouldCreateNewChannel = new AtomicBoolean(false);
+  private final RpcMetrics metrics;
 
   /**
    * Returns a new builder for quartz clients, configured to connect to the
@@ -73,20 +78,29 @@ public class QuartzClient implements Client {
     return new Builder(remoteAddress);
   }
 
+  /**
+   * Constructor recording no metrics.
+   */
+  QuartzClient(ReconnectManager reconnectManager, QuartzClientHandler handler,
+      ClientLogger clientLogger) {
+    this(reconnectManager, handler, clientLogger, RpcMetrics.disabled());
+  }
+
   /**
    * Protected exhaustive constructor.
    *
-   * @param channel the opened channel to the remote server
+   * @param reconnectManager the manager of the connection to the remote server
    * @param handler the client-side handler in charge of handling responses
    * @param clientLogger the logger to use for monitoring client-side
+   * @param metrics the registry in which to record the metrics of calls
    */
-  QuartzClient(Channel channel, QuartzClientHandler handler, ClientLogger clientLogger,
-      ChannelOpener channelOpener) {
-    this.channel = channel;
+  QuartzClient(ReconnectManager reconnectManager, QuartzClientHandler handler,
+      ClientLogger clientLogger, RpcMetrics metrics) {
+    this.reconnectManager = reconnectManager;
     this.handler = handler;
     this.clientLogger = clientLogger;
-    this.channelOpener = channelOpener;
-    channel.closeFuture().addListener(new ChannelCloser());
+    this.metrics = metrics;
+    handler.setReconnectManager(reconnectManager);
   }
 
   /**
@@ -95,76 +109,91 @@ public class QuartzClient implements Client {
   @Override
   public <O extends Message> ListenableFuture<O> encodeMethodCall(final ClientMethod<O> method,
       Message input) {
-    // Channel was manually closed earlier
-    if (refuseNewRequests.get()) {
+    // Client was manually closed earlier
+    if (reconnectManager.isClosed()) {
       return Futures.immediateFailedFuture(new RuntimeException("Client is closed"));
     }
 
-    // Channel was closed by the server - we make an attempt to reopen.
-    if (shouldCreateNewChannel.get()) {
-      try {
-        reopenChannel();
-        channel.closeFuture().addListener(new ChannelCloser());
-      } catch (IOException ioe) {
-        return Futures.immediateFailedFuture(ioe);
-      }
-    }
-
-    // Normal operation mode
     clientLogger.logMethodCall(method);
+    final CallTimer timer = metrics.startCall(method.serviceName(), method.name(),
+        input.getSerializedSize());
     final EnvelopeFuture<O> output = handler.newProvisionalResponse(method);
-    Envelope request = Envelope.newBuilder()
+    final Envelope request = Envelope.newBuilder()
         .setRequestId(output.requestId())
         .setService(method.serviceName())
         .setMethod(method.name())
         .setPayload(input.toByteString())
         .build();
 
-    HttpRequest httpRequest = handler.convertRequest(request);
-    channel.writeAndFlush(httpRequest).addListener(new GenericFutureListener<ChannelFuture>() {
+    reconnectManager.write(new ReconnectManager.PendingWrite() {
 
-      public void operationComplete(ChannelFuture future) {
-        if (!future.isSuccess()) {
-          clientLogger.logLinkError(method, future.cause());
-          handler.finish(output.requestId());
-          output.setException(future.cause());
+      @Override
+      public void write(Channel channel) {
+        if (output.isDone()) {
+          // Cancelled while waiting for the connection to be restored
+          return;
         }
+        timer.dispatched();
+        output.bind(channel);
+        HttpRequest httpRequest = handler.convertRequest(request, channel);
+        channel.writeAndFlush(httpRequest).addListener(
+            new GenericFutureListener<ChannelFuture>() {
+
+              public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                  fail(future.cause());
+                }
+              }
+
+            });
       }
 
-    });
+      @Override
+      public void fail(Throwable cause) {
+        clientLogger.logLinkError(method, cause);
+        handler.finish(output.requestId());
+        output.setException(cause);
+      }
+    }, output);
+    timer.completeWith(output);
 
     return output;
   }
 
+  /**
+   * Returns the round-trip time of the last keepalive ping answered by the
+   * server, in nanoseconds, or {@code -1} if none was.
+   *
+   * @see Builder#setKeepAlivePolicy(KeepAlivePolicy)
+   */
+  public long roundTripNanos() {
+    return handler.roundTripNanos();
+  }
+
   /**
    * Shuts down this client and releases the underlying associated resources.
    *
    * <p>This operation is synchronous.</p>
    */
   public void close() {
-    refuseNewRequests.set(true);
-    channel.close().awaitUninterruptibly();
-    channel.eventLoop().shutdownGracefully().awaitUninterruptibly();
-  }
-
-  private synchronized void reopenChannel() throws IOException{
-    if (shouldCreateNewChannel.get()) {
-      logger.info("Detected server-side channel closure, reopening");
-      handler = new QuartzClientHandler();
-      channel = channelOpener.newChannel(handler);
-      shouldCreateNewChannel.set(false);
-    }
+    reconnectManager.close().awaitUninterruptibly();
   }
 
   /**
    * Configurable builder for instances of {@link QuartzClient}.
    */
-  public static final class Builder implements ChannelOpener {
+  public static final class Builder {
 
     private final HostAndPort remoteAddress;
     private SSLContext sslContext;
+    private TlsConfig tlsConfig;
     private String path = QuartzProtocol.DEFAULT_PATH;
     private ClientLogger clientLogger = new NullClientLogger();
+    private ReconnectPolicy reconnectPolicy = ReconnectPolicy.defaults();
+    private FlowControlPolicy flowControlPolicy = FlowControlPolicy.defaults();
+    private RpcMetrics metrics = RpcMetrics.disabled();
+    private KeepAlivePolicy keepAlivePolicy = KeepAlivePolicy.disabled();
+    private boolean lazyConnect = false;
 
     private Builder(HostAndPort remoteAddress) {
       this.remoteAddress = Preconditions.checkNotNull(remoteAddress);
@@ -195,6 +224,18 @@ public class QuartzClient implements Client {
       return this;
     }
 
+    /**
+     * Secures the connection to the server as per the given configuration,
+     * taking precedence over any {@link SSLContext} set.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTlsConfig(TlsConfig tlsConfig) {
+      Preconditions.checkArgument(tlsConfig.isClient());
+      this.tlsConfig = tlsConfig;
+      return this;
+    }
+
     /**
      * Sets the monitoring hook to be used by the client.
      *
@@ -206,83 +247,118 @@ public class QuartzClient implements Client {
       return this;
     }
 
-    @Override
-    public Channel newChannel(QuartzClientHandler handler) throws IOException {
-      Bootstrap bootstrap = new Bootstrap();
-      bootstrap.group(new NioEventLoopGroup());
-      bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
-      bootstrap.channel(NioSocketChannel.class);
-      handler.setPath(path);
-      handler.setClientLogger(clientLogger);
-      ChannelInitializer<Channel> channelInitializer = sslContext == null ?
-          ChannelInitializers.httpClient(handler) :
-          ChannelInitializers.secureHttpClient(handler, sslContext);
-      bootstrap.handler(channelInitializer);
-
-      ChannelFuture future = bootstrap.connect(remoteAddress.getHostText(), remoteAddress.getPort());
-      future.awaitUninterruptibly();
-      if (future.isSuccess()) {
-        logger.info("Piezo client successfully connected to " + remoteAddress.toString());
-        handler.setChannel(future.channel());
-      } else {
-        logger.warning("Piezo client failed to connect to " + remoteAddress.toString());
-        throw new IOException(future.cause());
-      }
-      return future.channel();
+    /**
+     * Sets the policy driving the reconnection of the client when the
+     * connection to the server is lost.
+     *
+     * @return {@code this} object
+     */
+    public Builder setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+      this.reconnectPolicy = Preconditions.checkNotNull(reconnectPolicy);
+      return this;
     }
 
     /**
-     * Returns a new connected {@link QuartzClient} based on the configuration
-     * of this builder.
+     * Sets the policy bounding the number of requests outstanding with the
+     * server.
      *
-     * @throws IOException if the client failed to connect to the server
+     * @return {@code this} object
      */
-    public QuartzClient build() throws IOException {
-      QuartzClientHandler handler = new QuartzClientHandler();
-      return new QuartzClient(newChannel(handler), handler, clientLogger, this);
+    public Builder setFlowControlPolicy(FlowControlPolicy flowControlPolicy) {
+      this.flowControlPolicy = Preconditions.checkNotNull(flowControlPolicy);
+      return this;
     }
-  }
 
-  /**
-   *
-   */
-  private interface ChannelOpener {
+    /**
+     * Sets the registry in which the client records the metrics of the calls
+     * it makes.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMetrics(RpcMetrics metrics) {
+      this.metrics = Preconditions.checkNotNull(metrics);
+      return this;
+    }
 
     /**
-     * Returns a new channel that will install the given handler as the last in
-     * the channel pipeline.
+     * Sets the policy driving the keepalive pings sent to the server.
+     * Disabled by default.
      *
-     * @param handler the handler to install as last in the pipeline
-     * @throws IOException
+     * @return {@code this} object
      */
-    public Channel newChannel(QuartzClientHandler handler) throws IOException;
-  }
+    public Builder setKeepAlivePolicy(KeepAlivePolicy keepAlivePolicy) {
+      this.keepAlivePolicy = Preconditions.checkNotNull(keepAlivePolicy);
+      return this;
+    }
 
-  /**
-   * In charge of properly handling channel closures.
-   */
-  private final class ChannelCloser implements GenericFutureListener<Future<? super Void>> {
+    /**
+     * Sets whether the client should connect to the server upon its first
+     * method call rather than when it is built.
+     *
+     * @return {@code this} object
+     */
+    public Builder setLazyConnect(boolean lazyConnect) {
+      this.lazyConnect = lazyConnect;
+      return this;
+    }
 
-    @Override
-    public void operationComplete(Future<? super Void> future) throws Exception {
-      if (refuseNewRequests.get()) {
-        // Channel was closed by the client
-        return;
-      }
-      // Save the reference, since it might get overwritten
-      QuartzClientHandler previousHandler = handler;
-      shouldCreateNewChannel.getAndSet(true);
-
-      for (Map.Entry<Long, EnvelopeFuture<? extends Message>> inFlightRequest :
-          previousHandler.inFlightRequests().entrySet()) {
-        inFlightRequest.getValue().setException(
-            new Exception("Channel was closed by the remote end"));
+    /**
+     * Returns a new connected {@link QuartzClient}, as configured by this object.
+     * <p/>
+     * <p>Unless lazy connection is enabled, this operation blocks until the
+     * client is connected.</p>
+     *
+     * @throws IOException in case of a connection error.
+     */
+    public QuartzClient build() throws IOException {
+      try {
+        return Uninterruptibles.getUninterruptibly(buildAsync());
+      } catch (ExecutionException ee) {
+        logger.warning("Piezo client failed to connect to " + remoteAddress.toString());
+        throw new IOException(ee.getCause());
       }
+    }
 
-      if (future instanceof ChannelFuture) {
-        ChannelFuture channelFuture = (ChannelFuture) future;
-        channelFuture.channel().eventLoop().shutdownGracefully();
+    /**
+     * Returns a handle on a new {@link QuartzClient}, as configured by this object,
+     * completed once the client is connected to the remote server.
+     * <p/>
+     * <p>This operation does not block. If lazy connection is enabled, the
+     * returned handle is already completed.</p>
+     */
+    public ListenableFuture<QuartzClient> buildAsync() {
+      final Bootstrap bootstrap = new Bootstrap();
+      EventLoopGroup eventLoopGroup = new NioEventLoopGroup();
+      bootstrap.group(eventLoopGroup);
+      bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
+      bootstrap.channel(NioSocketChannel.class);
+      QuartzClientHandler handler = new QuartzClientHandler();
+      handler.setPath(path);
+      handler.setClientLogger(clientLogger);
+      handler.setKeepAlivePolicy(keepAlivePolicy);
+      handler.setMetrics(metrics);
+      ChannelInitializer<Channel> channelInitializer;
+      if (tlsConfig != null) {
+        channelInitializer = ChannelInitializers.secureHttpClient(handler, tlsConfig,
+            remoteAddress);
+      } else {
+        channelInitializer = sslContext == null ?
+            ChannelInitializers.httpClient(handler) :
+            ChannelInitializers.secureHttpClient(handler, sslContext);
       }
+      bootstrap.handler(channelInitializer);
+
+      ReconnectManager reconnectManager = new ReconnectManager(new ReconnectManager.Connector() {
+
+        @Override
+        public ChannelFuture connect() {
+          return bootstrap.connect(remoteAddress.getHostText(), remoteAddress.getPort());
+        }
+      }, eventLoopGroup, reconnectPolicy, flowControlPolicy);
+
+      QuartzClient client = new QuartzClient(reconnectManager, handler,
+          metrics.decorate(clientLogger), metrics);
+      return lazyConnect ? Futures.immediateFuture(client) : reconnectManager.open(client);
     }
   }
 }
@@ -20,11 +20,15 @@ import io.soliton.protobuf.Envelope;
 import io.soliton.protobuf.EnvelopeClientHandler;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.MapMaker;
 import com.google.protobuf.InvalidProtocolBufferException;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
@@ -32,11 +36,12 @@ import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.codec.http.QueryStringEncoder;
+import io.netty.util.AttributeKey;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Client-side handler in charge of decoding and dispatching the responses
@@ -46,13 +51,18 @@ import java.net.InetSocketAddress;
  */
 class QuartzClientHandler extends EnvelopeClientHandler<HttpRequest, HttpResponse> {
 
+  private static final AttributeKey<HttpHeaders> HEADERS = AttributeKey.valueOf(
+      QuartzClientHandler.class.getName() + ".headers");
+
+  private final ConcurrentMap<String, ConcurrentMap<String, String>> uris =
+      new MapMaker().makeMap();
   private String path;
 
   /**
    * {@inheritDoc}
    */
   @Override
-  public HttpRequest convertRequest(Envelope request) {
+  public HttpRequest convertRequest(Envelope request, Channel channel) {
     ByteBuf requestBuffer = Unpooled.buffer(request.getSerializedSize());
     try {
       OutputStream outputStream = new ByteBufOutputStream(requestBuffer);
@@ -62,18 +72,28 @@ class QuartzClientHandler extends EnvelopeClientHandler<HttpRequest, HttpRespons
       // deliberately ignored, as the underlying operation doesn't involve I/O
     }
 
-    String host = ((InetSocketAddress) channel().remoteAddress()).getAddress().getHostAddress();
-    String uriPath = String.format("%s%s/%s", path, request.getService(), request.getMethod());
-
     FullHttpRequest httpRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,
-        HttpMethod.POST, new QueryStringEncoder(uriPath).toString(), requestBuffer);
-    httpRequest.headers().set(HttpHeaders.Names.HOST, host);
-    httpRequest.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        HttpMethod.POST, uri(request.getService(), request.getMethod()), requestBuffer);
+    httpRequest.headers().set(headers(channel));
     httpRequest.headers().set(HttpHeaders.Names.CONTENT_LENGTH, requestBuffer.readableBytes());
-    httpRequest.headers().set(HttpHeaders.Names.CONTENT_TYPE, QuartzProtocol.CONTENT_TYPE);
     return httpRequest;
   }
 
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>A draining server asks its clients to close their connection: the
+   * next requests are then sent on a new one.</p>
+   */
+  @Override
+  public void channelRead0(ChannelHandlerContext context, HttpResponse response)
+      throws Exception {
+    if (!HttpHeaders.isKeepAlive(response) && context.channel() == channel()) {
+      goAway(context.channel());
+    }
+    super.channelRead0(context, response);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -93,6 +113,48 @@ class QuartzClientHandler extends EnvelopeClientHandler<HttpRequest, HttpRespons
     }
   }
 
+  /**
+   * Returns the URI at which the given method is served.
+   * <p/>
+   * <p>URIs are computed once per method and reused by subsequent
+   * requests.</p>
+   */
+  private String uri(String service, String method) {
+    ConcurrentMap<String, String> serviceUris = uris.get(service);
+    if (serviceUris == null) {
+      serviceUris = new MapMaker().makeMap();
+      ConcurrentMap<String, String> existing = uris.putIfAbsent(service, serviceUris);
+      if (existing != null) {
+        serviceUris = existing;
+      }
+    }
+    String uri = serviceUris.get(method);
+    if (uri == null) {
+      uri = path + service + "/" + method;
+      serviceUris.put(method, uri);
+    }
+    return uri;
+  }
+
+  /**
+   * Returns the headers shared by all requests sent on the given channel.
+   * <p/>
+   * <p>The headers are built on the first request of each connection and
+   * must not be modified: they are copied into each request.</p>
+   */
+  private static HttpHeaders headers(Channel channel) {
+    HttpHeaders headers = channel.attr(HEADERS).get();
+    if (headers == null) {
+      headers = new DefaultHttpHeaders();
+      headers.set(HttpHeaders.Names.HOST,
+          ((InetSocketAddress) channel.remoteAddress()).getAddress().getHostAddress());
+      headers.set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+      headers.set(HttpHeaders.Names.CONTENT_TYPE, QuartzProtocol.CONTENT_TYPE);
+      channel.attr(HEADERS).set(headers);
+    }
+    return headers;
+  }
+
   public void setPath(String path) {
     this.path = path;
   }
@@ -21,14 +21,14 @@ package io.soliton.protobuf.quartz;
  *
  * @author Julien Silland (julien@soliton.io)
  */
-class QuartzProtocol {
+public final class QuartzProtocol {
 
   /**
    * Non-instantiable class.
    */
   private QuartzProtocol() { }
 
-  static final String DEFAULT_PATH = "/quartz/";
+  public static final String DEFAULT_PATH = "/quartz/";
 
   static final String CONTENT_TYPE = "application/octet-stream";
 }
@@ -17,16 +17,27 @@
 package io.soliton.protobuf.quartz;
 
 import io.soliton.protobuf.AbstractRpcServer;
+import io.soliton.protobuf.AdmissionController;
 import io.soliton.protobuf.ChannelInitializers;
+import io.soliton.protobuf.DispatchTable;
 import io.soliton.protobuf.NullServerLogger;
+import io.soliton.protobuf.ResponseCache;
 import io.soliton.protobuf.ServerLogger;
+import io.soliton.protobuf.TlsConfig;
+import io.soliton.protobuf.metrics.MetricsHttpHandler;
+import io.soliton.protobuf.metrics.PrometheusExporter;
+import io.soliton.protobuf.metrics.RpcMetrics;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 import javax.net.ssl.SSLContext;
 
 /**
@@ -63,7 +74,16 @@ public abstract class QuartzServer extends AbstractRpcServer {
     private final int port;
     private String path = QuartzProtocol.DEFAULT_PATH;
     private SSLContext sslContext;
+    private TlsConfig tlsConfig;
     private ServerLogger serverLogger = new NullServerLogger();
+    private AdmissionController admissionController = AdmissionController.unlimited();
+    private RpcMetrics metrics = RpcMetrics.disabled();
+    private boolean includeStackTraces = false;
+    private final Set<String> coalescedMethods = Sets.newHashSet();
+    private ResponseCache responseCache = ResponseCache.disabled();
+    private long drainTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+    private long idleTimeoutMillis = 0;
+    private String metricsPath;
 
     private Builder(int port) {
       Preconditions.checkArgument(port > 0 && port < 65536);
@@ -82,6 +102,18 @@ public abstract class QuartzServer extends AbstractRpcServer {
       return this;
     }
 
+    /**
+     * Secures the connections of the server as per the given configuration,
+     * taking precedence over any {@link SSLContext} set.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTlsConfig(TlsConfig tlsConfig) {
+      Preconditions.checkArgument(!tlsConfig.isClient());
+      this.tlsConfig = tlsConfig;
+      return this;
+    }
+
     /**
      * Sets the URI path prefix that should be validated when receiving
      * requests.
@@ -106,20 +138,130 @@ public abstract class QuartzServer extends AbstractRpcServer {
       return this;
     }
 
+    /**
+     * Sets the controller deciding which incoming calls should be shed when
+     * the server is overloaded.
+     *
+     * @param admissionController the admission controller
+     * @return {@code this} instance
+     */
+    public Builder setAdmissionController(AdmissionController admissionController) {
+      this.admissionController = Preconditions.checkNotNull(admissionController);
+      return this;
+    }
+
+    /**
+     * Sets the registry in which the server records the metrics of the calls
+     * it serves.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMetrics(RpcMetrics metrics) {
+      this.metrics = Preconditions.checkNotNull(metrics);
+      return this;
+    }
+
+    /**
+     * Sets the HTTP path on which the server exposes its metrics, in the
+     * Prometheus text format. Metrics are not exposed unless a path is set.
+     *
+     * @return {@code this} instance
+     */
+    public Builder setMetricsPath(String metricsPath) {
+      Preconditions.checkNotNull(metricsPath);
+      Preconditions.checkArgument(metricsPath.startsWith("/"));
+      this.metricsPath = metricsPath;
+      return this;
+    }
+
+    /**
+     * Sets whether the stack traces of failed method invocations should be
+     * sent to clients. Disabled by default.
+     *
+     * @return {@code this} object
+     */
+    public Builder setIncludeStackTraces(boolean includeStackTraces) {
+      this.includeStackTraces = includeStackTraces;
+      return this;
+    }
+
+    /**
+     * Makes concurrent calls to the given method with identical payloads
+     * share a single invocation. The method's result should only depend on
+     * its parameter.
+     *
+     * @param service the full name of the service
+     * @param method the name of the method
+     * @return {@code this} object
+     */
+    public Builder addCoalescedMethod(String service, String method) {
+      coalescedMethods.add(DispatchTable.fullName(Preconditions.checkNotNull(service),
+          Preconditions.checkNotNull(method)));
+      return this;
+    }
+
+    /**
+     * Sets the cache in which the server keeps the serialized responses of
+     * cacheable methods.
+     *
+     * @return {@code this} object
+     */
+    public Builder setResponseCache(ResponseCache responseCache) {
+      this.responseCache = Preconditions.checkNotNull(responseCache);
+      return this;
+    }
+
+    /**
+     * Sets the maximum time to wait for in-flight requests to complete when
+     * the server is shut down. Defaults to ten seconds.
+     *
+     * @return {@code this} object
+     */
+    public Builder setDrainTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout >= 0);
+      this.drainTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the time without receiving any message after which a connection
+     * is closed. Disabled by default.
+     *
+     * @param timeout the idle timeout, or zero to keep idle connections open
+     * @return {@code this} object
+     */
+    public Builder setIdleTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout >= 0);
+      this.idleTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
     /**
      * Instantiates and returns a new server which has bound to the configured
      * TPC port.
      */
     public QuartzServer build() {
-      return new QuartzServer(port) {
+      QuartzServer server = new QuartzServer(port) {
         protected ChannelInitializer<? extends Channel> channelInitializer() {
+          QuartzServerHandler handler = new QuartzServerHandler(serviceGroup(), path,
+              metrics.decorate(serverLogger), admissionController, metrics);
+          handler.setIncludeStackTraces(includeStackTraces);
+          handler.setCoalescedMethods(coalescedMethods);
+          handler.setResponseCache(responseCache);
+          handler.setIdleTimeout(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+          MetricsHttpHandler metricsHandler = metricsPath == null ? null :
+              new MetricsHttpHandler(metricsPath,
+                  new PrometheusExporter(metrics, eventLoopGroups()));
+          if (tlsConfig != null) {
+            return ChannelInitializers.secureHttpServer(handler, metricsHandler, tlsConfig);
+          }
           return sslContext == null ?
-              ChannelInitializers.httpServer(new QuartzServerHandler(serviceGroup(), path,
-                  serverLogger)) :
-              ChannelInitializers.secureHttpServer(new QuartzServerHandler(serviceGroup(), path,
-                  serverLogger), sslContext);
+              ChannelInitializers.httpServer(handler, metricsHandler) :
+              ChannelInitializers.secureHttpServer(handler, metricsHandler, sslContext);
         }
       };
+      server.setDrainTimeout(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+      return server;
     }
   }
 }
@@ -16,15 +16,18 @@
 
 package io.soliton.protobuf.quartz;
 
+import io.soliton.protobuf.AdmissionController;
 import io.soliton.protobuf.Envelope;
 import io.soliton.protobuf.EnvelopeServerHandler;
 import io.soliton.protobuf.ServerLogger;
 import io.soliton.protobuf.ServiceGroup;
+import io.soliton.protobuf.metrics.RpcMetrics;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
@@ -45,9 +48,10 @@ import java.net.URISyntaxException;
  *
  * @author Julien Silland (julien@soliton.io)
  */
-class QuartzServerHandler extends EnvelopeServerHandler<HttpRequest, HttpResponse> {
+public class QuartzServerHandler extends EnvelopeServerHandler<HttpRequest, HttpResponse> {
 
   private final String path;
+  private volatile boolean goingAway;
 
   /**
    * Creates new handler that will dispatch requests to the services registered
@@ -55,9 +59,13 @@ class QuartzServerHandler extends EnvelopeServerHandler<HttpRequest, HttpRespons
    *
    * @param serviceGroup the group of services to surface.
    * @param path the HTTP path this handler should handle request on.
+   * @param serverLogger the object to log server operations to
+   * @param admissionController the controller deciding which calls to shed
+   * @param metrics the registry in which to record the metrics of calls
    */
-  QuartzServerHandler(ServiceGroup serviceGroup, String path, ServerLogger serverLogger) {
-    super(serviceGroup, serverLogger);
+  public QuartzServerHandler(ServiceGroup serviceGroup, String path, ServerLogger serverLogger,
+      AdmissionController admissionController, RpcMetrics metrics) {
+    super(serviceGroup, serverLogger, admissionController, metrics);
     this.path = path;
   }
 
@@ -91,6 +99,17 @@ class QuartzServerHandler extends EnvelopeServerHandler<HttpRequest, HttpRespons
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * <p>HTTP doesn't allow unsolicited responses: instead, all subsequent
+   * responses ask their client to close the connection.</p>
+   */
+  @Override
+  public void goAway(Channel channel) {
+    goingAway = true;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -109,6 +128,9 @@ class QuartzServerHandler extends EnvelopeServerHandler<HttpRequest, HttpRespons
         HttpResponseStatus.OK, responseBuffer);
     httpResponse.headers().set(HttpHeaders.Names.CONTENT_LENGTH, responseBuffer.readableBytes());
     httpResponse.headers().set(HttpHeaders.Names.CONTENT_TYPE, QuartzProtocol.CONTENT_TYPE);
+    if (goingAway) {
+      httpResponse.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+    }
     return httpResponse;
   }
 }
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.shm;
+
+import com.google.common.base.Preconditions;
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A single-producer, single-consumer queue of variable-length frames laid
+ * out in a region of shared memory.
+ * <p/>
+ * <p>The region starts with the positions of the consumer and of the
+ * producer, each on its own cache line, followed by the frames. Positions
+ * grow monotonically and are mapped to the data area modulo its capacity,
+ * which must be a power of two. Each frame is prefixed by its length and
+ * aligned on eight bytes; a frame which doesn't fit before the end of the
+ * data area is preceded by a padding marker and written at its start.</p>
+ * <p/>
+ * <p>The producer and the consumer may live in different processes, each
+ * mapping the region on its own. Frames are published by writing the
+ * producer position after their content, and released by writing the
+ * consumer position after reading them. {@link ByteBuffer} provides no
+ * ordered access to memory, so positions are accessed through
+ * {@link Unsafe} at the address of the region: they are written with
+ * release semantics, ordering them after the accesses to the frames, and
+ * read with acquire semantics, ordering them before.</p>
+ * <p/>
+ * <p>{@link #offer(byte[])} must only be called by one thread at a time,
+ * and so must {@link #poll()}.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+final class RingBuffer {
+
+  static final int HEADER_SIZE = 128;
+
+  private static final int HEAD_OFFSET = 0;
+  private static final int TAIL_OFFSET = 64;
+  private static final int LENGTH_SIZE = 4;
+  private static final int ALIGNMENT = 8;
+  private static final int PADDING = -1;
+
+  private static final Unsafe UNSAFE;
+  private static final long ADDRESS_OFFSET;
+
+  static {
+    try {
+      Field field = Unsafe.class.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      UNSAFE = (Unsafe) field.get(null);
+      ADDRESS_OFFSET = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+    } catch (ReflectiveOperationException roe) {
+      throw new ExceptionInInitializerError(roe);
+    }
+  }
+
+  // Referenced for as long as the ring is used, as it unmaps the region once collected
+  private final ByteBuffer buffer;
+  private final long address;
+  private final ByteBuffer producerView;
+  private final ByteBuffer consumerView;
+  private final int capacity;
+  private final int mask;
+
+  // Owned by the producer
+  private long tail;
+  private long cachedHead;
+
+  // Owned by the consumer
+  private long head;
+  private long cachedTail;
+
+  /**
+   * Wraps the given region of shared memory, picking up the positions it
+   * records.
+   *
+   * @param buffer the region, a direct buffer which should span
+   * {@link #HEADER_SIZE} bytes plus a power of two
+   */
+  RingBuffer(ByteBuffer buffer) {
+    Preconditions.checkArgument(buffer.isDirect(), "The buffer must be direct");
+    this.buffer = buffer;
+    this.address = UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+    this.capacity = buffer.capacity() - HEADER_SIZE;
+    Preconditions.checkArgument(capacity >= ALIGNMENT && Integer.bitCount(capacity) == 1,
+        "The capacity of the buffer must be a power of two");
+    this.mask = capacity - 1;
+    this.producerView = buffer.duplicate();
+    this.consumerView = buffer.duplicate();
+    this.head = UNSAFE.getLongVolatile(null, address + HEAD_OFFSET);
+    this.tail = UNSAFE.getLongVolatile(null, address + TAIL_OFFSET);
+    this.cachedHead = head;
+    this.cachedTail = tail;
+  }
+
+  /**
+   * Returns the size of the region needed for a ring of the given capacity.
+   */
+  static int regionSize(int capacity) {
+    return HEADER_SIZE + capacity;
+  }
+
+  /**
+   * Returns the maximum size of the frames this buffer can hold.
+   * <p/>
+   * <p>Frames are bounded by half the capacity so that one always fits once
+   * the buffer is drained, wherever the padding before it falls.</p>
+   */
+  int maxFrameSize() {
+    return capacity / 2 - LENGTH_SIZE;
+  }
+
+  /**
+   * Appends a frame to this buffer.
+   *
+   * @param frame the content of the frame
+   * @return {@code false} if there wasn't enough room for the frame
+   */
+  boolean offer(byte[] frame) {
+    Preconditions.checkArgument(frame.length <= maxFrameSize(), "Frame is too large");
+    int recordSize = align(LENGTH_SIZE + frame.length);
+    int index = (int) (tail & mask);
+    int contiguous = capacity - index;
+    int required = recordSize <= contiguous ? recordSize : contiguous + recordSize;
+    if (tail + required - cachedHead > capacity) {
+      cachedHead = UNSAFE.getLongVolatile(null, address + HEAD_OFFSET);
+      if (tail + required - cachedHead > capacity) {
+        return false;
+      }
+    }
+
+    if (recordSize > contiguous) {
+      producerView.putInt(HEADER_SIZE + index, PADDING);
+      index = 0;
+    }
+    producerView.putInt(HEADER_SIZE + index, frame.length);
+    producerView.position(HEADER_SIZE + index + LENGTH_SIZE);
+    producerView.put(frame);
+    tail += required;
+    UNSAFE.putOrderedLong(null, address + TAIL_OFFSET, tail);
+    return true;
+  }
+
+  /**
+   * Removes the oldest frame from this buffer.
+   *
+   * @return the content of the frame, or {@code null} if the buffer is empty
+   */
+  byte[] poll() {
+    if (head == cachedTail) {
+      cachedTail = UNSAFE.getLongVolatile(null, address + TAIL_OFFSET);
+      if (head == cachedTail) {
+        return null;
+      }
+    }
+
+    int index = (int) (head & mask);
+    int length = consumerView.getInt(HEADER_SIZE + index);
+    if (length == PADDING) {
+      head += capacity - index;
+      index = 0;
+      length = consumerView.getInt(HEADER_SIZE);
+    }
+    byte[] frame = new byte[length];
+    consumerView.position(HEADER_SIZE + index + LENGTH_SIZE);
+    consumerView.get(frame);
+    head += align(LENGTH_SIZE + length);
+    UNSAFE.putOrderedLong(null, address + HEAD_OFFSET, head);
+    return frame;
+  }
+
+  private static int align(int size) {
+    return (size + ALIGNMENT - 1) & -ALIGNMENT;
+  }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.shm;
+
+import io.soliton.protobuf.Client;
+import io.soliton.protobuf.ClientLogger;
+import io.soliton.protobuf.ClientMethod;
+import io.soliton.protobuf.Control;
+import io.soliton.protobuf.Envelope;
+import io.soliton.protobuf.EnvelopeFuture;
+import io.soliton.protobuf.NullClientLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of {@link Client} calling a {@link SharedMemoryServer}
+ * running in another process on the same host.
+ * <p/>
+ * <p>Requests are written to the shared file by the calling thread, and
+ * responses are read by a daemon thread owned by the client, which waits
+ * for them as dictated by its {@link WaitStrategy}. Calls made while the
+ * ring of requests is full fail right away rather than blocking the
+ * caller.</p>
+ * <p/>
+ * <p>Only one client may be attached to a given file at any time: building
+ * another one fails until the first is closed, or its process exits.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class SharedMemoryClient implements Client {
+
+  private static final Logger logger = Logger.getLogger(
+      SharedMemoryClient.class.getCanonicalName());
+
+  private final ConcurrentMap<Long, EnvelopeFuture<? extends Message>> inFlightRequests =
+      new ConcurrentHashMap<>();
+  private final SharedMemoryRegion region;
+  private final RingBuffer requests;
+  private final RingBuffer responses;
+  private final WaitStrategy waitStrategy;
+  private final ClientLogger clientLogger;
+  private final Thread poller;
+  private volatile boolean closed;
+
+  /**
+   * Returns a new builder of clients communicating through the given file.
+   *
+   * @param file the file created by the server
+   */
+  public static Builder newClient(File file) {
+    return new Builder(file);
+  }
+
+  private SharedMemoryClient(SharedMemoryRegion region, WaitStrategy waitStrategy,
+      ClientLogger clientLogger) {
+    this.region = region;
+    this.requests = region.requests();
+    this.responses = region.responses();
+    this.waitStrategy = waitStrategy;
+    this.clientLogger = clientLogger;
+    this.poller = new Thread(new Poller(), "shared-memory-client");
+    poller.setDaemon(true);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public <O extends Message> ListenableFuture<O> encodeMethodCall(ClientMethod<O> method,
+      Message input) {
+    clientLogger.logMethodCall(method);
+    long requestId = ThreadLocalRandom.current().nextLong();
+    EnvelopeFuture<O> output = new EnvelopeFuture<>(requestId, method, new Cancel(requestId),
+        clientLogger);
+    inFlightRequests.put(requestId, output);
+    Envelope request = Envelope.newBuilder()
+        .setRequestId(requestId)
+        .setService(method.serviceName())
+        .setMethod(method.name())
+        .setPayload(input.toByteString())
+        .build();
+    IOException failure = null;
+    if (closed) {
+      failure = new IOException("Client is closed");
+    } else if (request.getSerializedSize() > requests.maxFrameSize()) {
+      failure = new IOException("Request exceeds the maximum frame size");
+    } else if (!offer(request)) {
+      failure = new IOException("Request ring is full");
+    }
+    if (failure != null) {
+      inFlightRequests.remove(requestId);
+      clientLogger.logClientError(method, failure);
+      return Futures.immediateFailedFuture(failure);
+    }
+    return output;
+  }
+
+  /**
+   * Shuts down this client, failing the calls still in flight, and lets
+   * another client attach to the file.
+   */
+  public void close() {
+    closed = true;
+    poller.interrupt();
+    try {
+      region.close();
+    } catch (IOException ioe) {
+      logger.warning(String.format("Failed to detach from the shared file: %s",
+          ioe.getMessage()));
+    }
+    for (Long requestId : inFlightRequests.keySet()) {
+      EnvelopeFuture<? extends Message> future = inFlightRequests.remove(requestId);
+      if (future != null) {
+        future.setException(new IOException("Client was closed"));
+      }
+    }
+  }
+
+  /**
+   * Writes a request to the server. Requests may be issued by any thread,
+   * while the ring only supports a single producer: writes are thus
+   * serialized.
+   */
+  private boolean offer(Envelope request) {
+    synchronized (requests) {
+      return requests.offer(request.toByteArray());
+    }
+  }
+
+  /**
+   * Reads the responses of the server and completes the matching calls.
+   */
+  private final class Poller implements Runnable {
+
+    @Override
+    public void run() {
+      int attempt = 0;
+      while (!closed) {
+        byte[] frame = responses.poll();
+        if (frame == null) {
+          waitStrategy.idle(attempt);
+          attempt = attempt == Integer.MAX_VALUE ? attempt : attempt + 1;
+          continue;
+        }
+        attempt = 0;
+        Envelope response;
+        try {
+          response = Envelope.parseFrom(frame);
+        } catch (InvalidProtocolBufferException ipbe) {
+          logger.warning(String.format("Dropping malformed response: %s", ipbe.getMessage()));
+          continue;
+        }
+        EnvelopeFuture<? extends Message> future =
+            inFlightRequests.remove(response.getRequestId());
+        // Acknowledgements of cancellations don't match any call in flight
+        if (future != null) {
+          future.setResponse(response);
+        }
+      }
+    }
+  }
+
+  /**
+   * Notifies the server that a call was cancelled.
+   */
+  private final class Cancel implements Runnable {
+
+    private final long requestId;
+
+    private Cancel(long requestId) {
+      this.requestId = requestId;
+    }
+
+    @Override
+    public void run() {
+      if (inFlightRequests.remove(requestId) != null && !closed) {
+        offer(Envelope.newBuilder()
+            .setRequestId(requestId)
+            .setControl(Control.newBuilder().setCancel(true))
+            .build());
+      }
+    }
+  }
+
+  /**
+   * Configurable builder of {@link SharedMemoryClient} instances.
+   */
+  public static final class Builder {
+
+    private final File file;
+    private WaitStrategy waitStrategy = WaitStrategy.spinThenPark(1000, 50,
+        TimeUnit.MICROSECONDS);
+    private ClientLogger clientLogger = new NullClientLogger();
+
+    private Builder(File file) {
+      this.file = Preconditions.checkNotNull(file);
+    }
+
+    /**
+     * Sets how the client should wait for responses.
+     *
+     * @return {@code this} object
+     */
+    public Builder setWaitStrategy(WaitStrategy waitStrategy) {
+      this.waitStrategy = Preconditions.checkNotNull(waitStrategy);
+      return this;
+    }
+
+    /**
+     * Sets the logger to which monitorable events should be reported.
+     *
+     * @return {@code this} object
+     */
+    public Builder setClientLogger(ClientLogger clientLogger) {
+      this.clientLogger = Preconditions.checkNotNull(clientLogger);
+      return this;
+    }
+
+    /**
+     * Returns a new client, as configured by this builder.
+     *
+     * @throws IOException if the file can't be mapped, e.g. because the server
+     * hasn't created it yet, or if another client is attached to it
+     */
+    public SharedMemoryClient build() throws IOException {
+      SharedMemoryClient client = new SharedMemoryClient(SharedMemoryRegion.open(file),
+          waitStrategy, clientLogger);
+      client.poller.start();
+      return client;
+    }
+  }
+}
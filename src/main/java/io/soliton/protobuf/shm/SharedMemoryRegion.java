@@ -0,0 +1,158 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.shm;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The memory-mapped file through which a client and a server exchange
+ * frames.
+ * <p/>
+ * <p>The file starts with a short header identifying it and recording the
+ * capacity of its rings, followed by the ring carrying requests and then
+ * by the ring carrying responses.</p>
+ * <p/>
+ * <p>A client attaching to the file holds an exclusive lock on it until it
+ * is closed, or its process exits, which keeps other clients from
+ * attaching to it concurrently.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+final class SharedMemoryRegion implements Closeable {
+
+  private static final int MAGIC = 0x5069657a;
+  private static final int FILE_HEADER_SIZE = 64;
+
+  private final RingBuffer requests;
+  private final RingBuffer responses;
+  private final Closeable attachment;
+
+  /**
+   * Creates the file backing a new region, replacing any previous one.
+   * <p/>
+   * <p>The new region is laid out in a file of its own before being moved
+   * into place, rather than by truncating the previous file: clients still
+   * attached to the previous file keep a valid mapping of it.</p>
+   *
+   * @param file the file to create
+   * @param capacity the capacity of each ring, a power of two
+   */
+  static SharedMemoryRegion create(File file, int capacity) throws IOException {
+    Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+        "The capacity of the rings must be a power of two");
+    File staging = File.createTempFile(file.getName(), ".tmp",
+        file.getAbsoluteFile().getParentFile());
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(staging, "rw")) {
+      randomAccessFile.setLength(FILE_HEADER_SIZE + 2L * RingBuffer.regionSize(capacity));
+      randomAccessFile.writeInt(MAGIC);
+      randomAccessFile.writeInt(capacity);
+      SharedMemoryRegion region = map(randomAccessFile.getChannel(), capacity, null);
+      // Atomic moves are renames, which replace the previous file on POSIX systems
+      Files.move(staging.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      return region;
+    } finally {
+      Files.deleteIfExists(staging.toPath());
+    }
+  }
+
+  /**
+   * Maps the file of an existing region, on behalf of its only client.
+   *
+   * @param file the file created by the server
+   * @throws IOException if the file isn't a region, or if another client
+   * is attached to it
+   */
+  static SharedMemoryRegion open(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      if (randomAccessFile.length() < FILE_HEADER_SIZE || randomAccessFile.readInt() != MAGIC) {
+        throw new IOException(String.format("%s is not a shared memory region", file));
+      }
+      int capacity = randomAccessFile.readInt();
+      if (!tryLock(randomAccessFile.getChannel())) {
+        throw new IOException(String.format("Another client is attached to %s", file));
+      }
+      // The lock is held until the file is closed
+      return map(randomAccessFile.getChannel(), capacity, randomAccessFile);
+    } catch (IOException | RuntimeException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  private static boolean tryLock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock() != null;
+    } catch (OverlappingFileLockException ofle) {
+      // Held by another client of this process
+      return false;
+    }
+  }
+
+  private static SharedMemoryRegion map(FileChannel channel, int capacity,
+      Closeable attachment) throws IOException {
+    int regionSize = RingBuffer.regionSize(capacity);
+    // Mappings remain valid once the channel is closed
+    MappedByteBuffer requests = channel.map(FileChannel.MapMode.READ_WRITE,
+        FILE_HEADER_SIZE, regionSize);
+    MappedByteBuffer responses = channel.map(FileChannel.MapMode.READ_WRITE,
+        FILE_HEADER_SIZE + regionSize, regionSize);
+    return new SharedMemoryRegion(new RingBuffer(requests), new RingBuffer(responses),
+        attachment);
+  }
+
+  private SharedMemoryRegion(RingBuffer requests, RingBuffer responses, Closeable attachment) {
+    this.requests = requests;
+    this.responses = responses;
+    this.attachment = attachment;
+  }
+
+  /**
+   * Returns the ring through which the client sends its requests.
+   */
+  RingBuffer requests() {
+    return requests;
+  }
+
+  /**
+   * Returns the ring through which the server sends its responses.
+   */
+  RingBuffer responses() {
+    return responses;
+  }
+
+  /**
+   * Releases the lock held by the client of this region, if any. The rings
+   * remain mapped.
+   */
+  @Override
+  public void close() throws IOException {
+    if (attachment != null) {
+      attachment.close();
+    }
+  }
+}
@@ -0,0 +1,351 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.shm;
+
+import io.soliton.protobuf.AdmissionController;
+import io.soliton.protobuf.DefaultServiceGroup;
+import io.soliton.protobuf.DispatchTable;
+import io.soliton.protobuf.Envelope;
+import io.soliton.protobuf.EnvelopeDispatcher;
+import io.soliton.protobuf.ErrorCode;
+import io.soliton.protobuf.NullServerLogger;
+import io.soliton.protobuf.ResponseCache;
+import io.soliton.protobuf.RpcException;
+import io.soliton.protobuf.Server;
+import io.soliton.protobuf.ServerLogger;
+import io.soliton.protobuf.ServiceGroup;
+import io.soliton.protobuf.metrics.RpcMetrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of {@link Server} serving a client running in another
+ * process on the same host, through a memory-mapped file.
+ * <p/>
+ * <p>Upon startup, the server creates the file and lays out two
+ * {@link RingBuffer}s in it: one carrying the requests of the client, the
+ * other carrying the responses of the server. Each ring has a single
+ * producer and a single consumer, so a file serves a single
+ * {@link SharedMemoryClient}; serving several clients takes as many
+ * servers.</p>
+ * <p/>
+ * <p>Requests are read and dispatched on the server's own thread, which
+ * waits for new requests as dictated by its {@link WaitStrategy}. They are
+ * processed by the same {@link EnvelopeDispatcher} as the requests of the
+ * other transports, and thus subject to the same admission control,
+ * metrics, coalescing and caching.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class SharedMemoryServer extends AbstractExecutionThreadService implements Server {
+
+  private static final Logger logger = Logger.getLogger(
+      SharedMemoryServer.class.getCanonicalName());
+
+  private final ServiceGroup serviceGroup = new DefaultServiceGroup();
+  private final EnvelopeDispatcher dispatcher;
+  private final RingResponder responder = new RingResponder();
+  private final File file;
+  private final int ringCapacity;
+  private final WaitStrategy waitStrategy;
+  private final long responseTimeoutNanos;
+  private RingBuffer requests;
+  private RingBuffer responses;
+
+  /**
+   * Returns a new builder of servers communicating through the given file.
+   *
+   * @param file the file to create, and to replace if it exists
+   */
+  public static Builder newServer(File file) {
+    return new Builder(file);
+  }
+
+  private SharedMemoryServer(Builder builder) {
+    this.file = builder.file;
+    this.ringCapacity = builder.ringCapacity;
+    this.waitStrategy = builder.waitStrategy;
+    this.responseTimeoutNanos = builder.responseTimeoutNanos;
+    // Responses are written by the thread completing the invocation
+    this.dispatcher = new EnvelopeDispatcher(serviceGroup,
+        builder.metrics.decorate(builder.serverLogger), builder.admissionController,
+        builder.metrics, MoreExecutors.sameThreadExecutor());
+    dispatcher.setIncludeStackTraces(builder.includeStackTraces);
+    dispatcher.setCoalescedMethods(builder.coalescedMethods);
+    dispatcher.setResponseCache(builder.responseCache);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ServiceGroup serviceGroup() {
+    return serviceGroup;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void startUp() throws IOException {
+    SharedMemoryRegion region = SharedMemoryRegion.create(file, ringCapacity);
+    requests = region.requests();
+    responses = region.responses();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void run() {
+    int attempt = 0;
+    while (isRunning()) {
+      byte[] frame = requests.poll();
+      if (frame == null) {
+        waitStrategy.idle(attempt);
+        attempt = attempt == Integer.MAX_VALUE ? attempt : attempt + 1;
+        continue;
+      }
+      attempt = 0;
+      try {
+        dispatcher.dispatch(Envelope.parseFrom(frame), responder);
+      } catch (InvalidProtocolBufferException ipbe) {
+        logger.warning(String.format("Dropping malformed request: %s", ipbe.getMessage()));
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void shutDown() {
+    for (ListenableFuture<?> pending : dispatcher.pendingRequests().values()) {
+      pending.cancel(true);
+    }
+    dispatcher.pendingRequests().clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected String serviceName() {
+    return String.format("SharedMemoryServer [%s]", file);
+  }
+
+  /**
+   * Writes responses to the ring read by the client.
+   * <p/>
+   * <p>Responses may be produced by any thread, while the ring only supports
+   * a single producer: writes are thus serialized. A response for which no
+   * room was found within the configured timeout, e.g. because the client
+   * stopped reading, is dropped.</p>
+   */
+  private final class RingResponder implements EnvelopeDispatcher.Responder {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void respond(Envelope response, FutureCallback<Void> callback) {
+      byte[] frame = response.toByteArray();
+      if (frame.length > responses.maxFrameSize()) {
+        logger.warning(String.format("Response to request %d exceeds the maximum frame size",
+            response.getRequestId()));
+        frame = Envelope.newBuilder()
+            .setRequestId(response.getRequestId())
+            .setControl(new RpcException(ErrorCode.APPLICATION_ERROR,
+                "Response exceeds the maximum frame size").toControl())
+            .build()
+            .toByteArray();
+      }
+
+      long deadline = System.nanoTime() + responseTimeoutNanos;
+      int attempt = 0;
+      while (!offer(frame)) {
+        // The lock isn't held while waiting, so that the wait of one response is bounded
+        if (!isRunning() || System.nanoTime() - deadline >= 0) {
+          logger.warning(String.format("Dropping response to request %d, the ring is full",
+              response.getRequestId()));
+          if (callback != null) {
+            callback.onFailure(new IOException("Response ring is full"));
+          }
+          return;
+        }
+        waitStrategy.idle(attempt);
+        attempt = attempt == Integer.MAX_VALUE ? attempt : attempt + 1;
+      }
+      if (callback != null) {
+        callback.onSuccess(null);
+      }
+    }
+
+    private boolean offer(byte[] frame) {
+      synchronized (responses) {
+        return responses.offer(frame);
+      }
+    }
+  }
+
+  /**
+   * Configurable builder of {@link SharedMemoryServer} instances.
+   */
+  public static final class Builder {
+
+    private final File file;
+    private int ringCapacity = 1 << 20;
+    private WaitStrategy waitStrategy = WaitStrategy.spinThenPark(1000, 50,
+        TimeUnit.MICROSECONDS);
+    private long responseTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    private ServerLogger serverLogger = new NullServerLogger();
+    private AdmissionController admissionController = AdmissionController.unlimited();
+    private RpcMetrics metrics = RpcMetrics.disabled();
+    private boolean includeStackTraces = false;
+    private final Set<String> coalescedMethods = Sets.newHashSet();
+    private ResponseCache responseCache = ResponseCache.disabled();
+
+    private Builder(File file) {
+      this.file = Preconditions.checkNotNull(file);
+    }
+
+    /**
+     * Sets the capacity, in bytes, of each of the two rings. Defaults to one
+     * mebibyte.
+     *
+     * @param ringCapacity a power of two
+     * @return {@code this} object
+     */
+    public Builder setRingCapacity(int ringCapacity) {
+      Preconditions.checkArgument(ringCapacity >= 64 && Integer.bitCount(ringCapacity) == 1,
+          "The capacity of the rings must be a power of two of at least 64");
+      this.ringCapacity = ringCapacity;
+      return this;
+    }
+
+    /**
+     * Sets how the server should wait for requests, and for room to write
+     * its responses.
+     *
+     * @return {@code this} object
+     */
+    public Builder setWaitStrategy(WaitStrategy waitStrategy) {
+      this.waitStrategy = Preconditions.checkNotNull(waitStrategy);
+      return this;
+    }
+
+    /**
+     * Sets the maximum time to wait for room to write a response, after
+     * which the response is dropped. Defaults to one second.
+     *
+     * @return {@code this} object
+     */
+    public Builder setResponseTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout >= 0);
+      this.responseTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the monitoring logger to log server operations to.
+     *
+     * @return {@code this} object
+     */
+    public Builder setServerLogger(ServerLogger serverLogger) {
+      this.serverLogger = Preconditions.checkNotNull(serverLogger);
+      return this;
+    }
+
+    /**
+     * Sets the controller deciding which incoming calls should be shed when
+     * the server is overloaded.
+     *
+     * @return {@code this} object
+     */
+    public Builder setAdmissionController(AdmissionController admissionController) {
+      this.admissionController = Preconditions.checkNotNull(admissionController);
+      return this;
+    }
+
+    /**
+     * Sets the registry in which the server records the metrics of the calls
+     * it serves.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMetrics(RpcMetrics metrics) {
+      this.metrics = Preconditions.checkNotNull(metrics);
+      return this;
+    }
+
+    /**
+     * Sets whether the stack traces of failed method invocations should be
+     * sent to clients. Disabled by default.
+     *
+     * @return {@code this} object
+     */
+    public Builder setIncludeStackTraces(boolean includeStackTraces) {
+      this.includeStackTraces = includeStackTraces;
+      return this;
+    }
+
+    /**
+     * Makes concurrent calls to the given method with identical payloads
+     * share a single invocation. The method's result should only depend on
+     * its parameter.
+     *
+     * @param service the full name of the service
+     * @param method the name of the method
+     * @return {@code this} object
+     */
+    public Builder addCoalescedMethod(String service, String method) {
+      coalescedMethods.add(DispatchTable.fullName(Preconditions.checkNotNull(service),
+          Preconditions.checkNotNull(method)));
+      return this;
+    }
+
+    /**
+     * Sets the cache in which the server keeps the serialized responses of
+     * cacheable methods.
+     *
+     * @return {@code this} object
+     */
+    public Builder setResponseCache(ResponseCache responseCache) {
+      this.responseCache = Preconditions.checkNotNull(responseCache);
+      return this;
+    }
+
+    /**
+     * Returns a new server, as configured by this builder.
+     */
+    public SharedMemoryServer build() {
+      return new SharedMemoryServer(this);
+    }
+  }
+}
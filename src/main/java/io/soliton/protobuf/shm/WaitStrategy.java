@@ -0,0 +1,87 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.shm;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides how a thread waiting for frames to read, or for room to write
+ * them, should spend its time.
+ * <p/>
+ * <p>Spinning yields the lowest latency at the cost of a dedicated core,
+ * while parking frees the core up but delays the reaction to new frames by
+ * the parking period, in addition to the scheduler's own latency.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public abstract class WaitStrategy {
+
+  /**
+   * Returns a strategy which keeps the waiting thread spinning.
+   */
+  public static WaitStrategy busySpin() {
+    return new SpinThenParkStrategy(Integer.MAX_VALUE, 0);
+  }
+
+  /**
+   * Returns a strategy which parks the waiting thread for the given period
+   * between two attempts.
+   */
+  public static WaitStrategy parking(long duration, TimeUnit unit) {
+    return new SpinThenParkStrategy(0, unit.toNanos(duration));
+  }
+
+  /**
+   * Returns a strategy which first spins for the given number of attempts,
+   * then parks the waiting thread for the given period between two
+   * attempts.
+   */
+  public static WaitStrategy spinThenPark(int spins, long duration, TimeUnit unit) {
+    return new SpinThenParkStrategy(spins, unit.toNanos(duration));
+  }
+
+  /**
+   * Invoked each time an attempt to read or write a frame fails.
+   *
+   * @param attempt the number of consecutive failed attempts so far,
+   * starting at zero
+   */
+  public abstract void idle(int attempt);
+
+  private static final class SpinThenParkStrategy extends WaitStrategy {
+
+    private final int spins;
+    private final long parkNanos;
+
+    private SpinThenParkStrategy(int spins, long parkNanos) {
+      Preconditions.checkArgument(spins >= 0);
+      Preconditions.checkArgument(parkNanos >= 0);
+      this.spins = spins;
+      this.parkNanos = parkNanos;
+    }
+
+    @Override
+    public void idle(int attempt) {
+      if (attempt >= spins) {
+        LockSupport.parkNanos(parkNanos);
+      }
+    }
+  }
+}
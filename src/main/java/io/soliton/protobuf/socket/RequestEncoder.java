@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.socket;
+
+import io.soliton.protobuf.ClientMethod;
+import io.soliton.protobuf.Envelope;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.MapMaker;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serializes requests straight into the buffers written to the network,
+ * without building an intermediate {@link Envelope}.
+ * <p/>
+ * <p>The names of each method are encoded once, and their bytes copied
+ * into each subsequent request. The payload is serialized in place, rather
+ * than into a {@link com.google.protobuf.ByteString} of its own. The fields
+ * are laid out in the order {@link Envelope#writeTo} uses, such that the
+ * encoded requests are identical to serialized envelopes.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+final class RequestEncoder {
+
+  // Client methods are singletons of their stub, compare them by identity
+  private final ConcurrentMap<ClientMethod<?>, byte[]> methodHeaders =
+      new MapMaker().weakKeys().makeMap();
+
+  /**
+   * Encodes a request.
+   *
+   * @param allocator the allocator of the channel the request is written to
+   * @param requestId the unique identifier of the request
+   * @param method the method being invoked
+   * @param methodId the identifier advertised by the server for the method,
+   * or {@code null} to address it by name
+   * @param payload the parameter of the method
+   * @return a buffer holding the serialized envelope
+   */
+  ByteBuf encode(ByteBufAllocator allocator, long requestId, ClientMethod<?> method,
+      Integer methodId, Message payload) {
+    byte[] methodHeader = methodId == null ? methodHeader(method) : null;
+    int size = CodedOutputStream.computeInt64Size(Envelope.REQUEST_ID_FIELD_NUMBER, requestId)
+        + (methodHeader == null ? 0 : methodHeader.length)
+        + CodedOutputStream.computeMessageSize(Envelope.PAYLOAD_FIELD_NUMBER, payload)
+        + (methodId == null ? 0 :
+            CodedOutputStream.computeUInt32Size(Envelope.METHOD_ID_FIELD_NUMBER, methodId));
+
+    ByteBuf buffer = allocator.heapBuffer(size, size);
+    CodedOutputStream output = CodedOutputStream.newInstance(buffer.array(),
+        buffer.arrayOffset() + buffer.writerIndex(), size);
+    try {
+      output.writeInt64(Envelope.REQUEST_ID_FIELD_NUMBER, requestId);
+      if (methodHeader != null) {
+        output.writeRawBytes(methodHeader);
+      }
+      // Messages and bytes fields share the same encoding
+      output.writeMessage(Envelope.PAYLOAD_FIELD_NUMBER, payload);
+      if (methodId != null) {
+        output.writeUInt32(Envelope.METHOD_ID_FIELD_NUMBER, methodId);
+      }
+      output.checkNoSpaceLeft();
+    } catch (IOException | RuntimeException e) {
+      buffer.release();
+      throw Throwables.propagate(e);
+    }
+    return buffer.writerIndex(buffer.writerIndex() + size);
+  }
+
+  /**
+   * Returns the service and method fields addressing the given method.
+   */
+  private byte[] methodHeader(ClientMethod<?> method) {
+    byte[] methodHeader = methodHeaders.get(method);
+    if (methodHeader == null) {
+      methodHeader = new byte[
+          CodedOutputStream.computeStringSize(Envelope.SERVICE_FIELD_NUMBER, method.serviceName())
+          + CodedOutputStream.computeStringSize(Envelope.METHOD_FIELD_NUMBER, method.name())];
+      CodedOutputStream output = CodedOutputStream.newInstance(methodHeader);
+      try {
+        output.writeString(Envelope.SERVICE_FIELD_NUMBER, method.serviceName());
+        output.writeString(Envelope.METHOD_FIELD_NUMBER, method.name());
+      } catch (IOException ioe) {
+        // Deliberately propagated, as the underlying operation doesn't involve I/O
+        throw Throwables.propagate(ioe);
+      }
+      methodHeaders.put(method, methodHeader);
+    }
+    return methodHeader;
+  }
+}
@@ -22,26 +22,37 @@ import io.soliton.protobuf.ClientLogger;
 import io.soliton.protobuf.ClientMethod;
 import io.soliton.protobuf.Envelope;
 import io.soliton.protobuf.EnvelopeFuture;
+import io.soliton.protobuf.FlowControlPolicy;
+import io.soliton.protobuf.KeepAlivePolicy;
 import io.soliton.protobuf.NullClientLogger;
+import io.soliton.protobuf.ReconnectManager;
+import io.soliton.protobuf.ReconnectPolicy;
+import io.soliton.protobuf.TlsConfig;
+import io.soliton.protobuf.Transport;
+import io.soliton.protobuf.metrics.CallTimer;
+import io.soliton.protobuf.metrics.RpcMetrics;
 
 import com.google.common.base.Preconditions;
 import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.Message;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.util.concurrent.GenericFutureListener;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
 /**
  * A simple client implementation connecting to a remote server over a
- * TCP socket.
+ * TCP socket or a Unix domain socket.
  * <p/>
  * <p>This client uses a proprietary binary protocol to communicate with
  * an instance of {@link RpcServer}.</p>
@@ -53,9 +64,11 @@ public class RpcClient implements Client {
   private static final Logger logger = Logger.getLogger(
       RpcClient.class.getCanonicalName());
 
-  private final Channel channel;
+  private final ReconnectManager reconnectManager;
   private final RpcClientHandler handler;
   private final ClientLogger clientLogger;
+  private final RpcMetrics metrics;
+  private final RequestEncoder encoder = new RequestEncoder();
 
   /**
    * Returns a new configurable builder of {@link RpcClient} instances.
@@ -63,64 +76,180 @@ public class RpcClient implements Client {
    * @param remoteAddress the address of the remote server to connect to
    */
   public static Builder newClient(HostAndPort remoteAddress) {
-    return new Builder(remoteAddress);
+    return new Builder(Preconditions.checkNotNull(remoteAddress), null, Transport.NIO);
+  }
+
+  /**
+   * Returns a new configurable builder of {@link RpcClient} instances
+   * connecting to a server bound to a Unix domain socket. Such clients are
+   * built upon {@link Transport#EPOLL}.
+   *
+   * @param socketAddress the path of the socket the server is bound to
+   */
+  public static Builder newClient(DomainSocketAddress socketAddress) {
+    return new Builder(null, Preconditions.checkNotNull(socketAddress), Transport.EPOLL);
+  }
+
+  /**
+   * Constructor recording no metrics.
+   */
+  RpcClient(ReconnectManager reconnectManager, RpcClientHandler handler,
+      ClientLogger clientLogger) {
+    this(reconnectManager, handler, clientLogger, RpcMetrics.disabled());
   }
 
   /**
    * Exhaustive constructor.
    *
-   * @param channel the connected channel to the remote server
+   * @param reconnectManager the manager of the connection to the remote server
    * @param handler the handler in charge of decoding and dispatching server
    * responses
    * @param clientLogger the monitoring logger to which events should be
    * reported
+   * @param metrics the registry in which to record the metrics of calls
    */
-  RpcClient(Channel channel, RpcClientHandler handler, ClientLogger clientLogger) {
-    this.channel = channel;
+  RpcClient(ReconnectManager reconnectManager, RpcClientHandler handler,
+      ClientLogger clientLogger, RpcMetrics metrics) {
+    this.reconnectManager = reconnectManager;
     this.handler = handler;
     this.clientLogger = clientLogger;
-    handler.setChannel(channel);
+    this.metrics = metrics;
     handler.setClientLogger(clientLogger);
+    handler.setReconnectManager(reconnectManager);
   }
 
   /**
    * {@inheritDoc}
    */
   @Override
-  public <O extends Message> ListenableFuture<O> encodeMethodCall(final ClientMethod<O> method,
+  public <O extends Message> ListenableFuture<O> encodeMethodCall(ClientMethod<O> method,
       Message input) {
     clientLogger.logMethodCall(method);
-    final EnvelopeFuture<O> output = handler.newProvisionalResponse(method);
-    Envelope request = Envelope.newBuilder()
-        .setRequestId(output.requestId())
-        .setService(method.serviceName())
-        .setMethod(method.name())
-        .setPayload(input.toByteString())
-        .build();
-    // TODO(julien): might be nice to couple the future returned from writeAndFlush
-    // into the one returned to the user, so that calling cancel on the userland
-    // future may also cancel the outgoing request if it isn't done yet.
-    channel.writeAndFlush(request).addListener(new GenericFutureListener<ChannelFuture>() {
-
-      public void operationComplete(ChannelFuture future) {
-        if (!future.isSuccess()) {
-          clientLogger.logLinkError(method, future.cause());
-          handler.finish(output.requestId());
-          output.setException(future.cause());
-        }
+    CallTimer timer = metrics.startCall(method.serviceName(), method.name(),
+        input.getSerializedSize());
+    EnvelopeFuture<O> output = handler.newProvisionalResponse(method);
+    reconnectManager.write(new Call<>(method, input, output, timer), output);
+    timer.completeWith(output);
+    return output;
+  }
+
+  /**
+   * Returns the round-trip time of the last keepalive ping answered by the
+   * server, in nanoseconds, or {@code -1} if none was.
+   *
+   * @see Builder#setKeepAlivePolicy(KeepAlivePolicy)
+   */
+  public long roundTripNanos() {
+    return handler.roundTripNanos();
+  }
+
+  /**
+   * Shuts down this client and releases the underlying associated resources.
+   */
+  public void close() {
+    reconnectManager.close();
+  }
+
+  /**
+   * An outgoing method call, waiting to be written to the server.
+   * <p/>
+   * <p>The request is serialized straight into the buffer written to the
+   * channel and the call listens to the outcome of its own write, such that
+   * the path from the caller to the network allocates as few objects as
+   * possible.</p>
+   */
+  private final class Call<O extends Message> implements ReconnectManager.PendingWrite,
+      GenericFutureListener<ChannelFuture> {
+
+    private final ClientMethod<O> method;
+    private final Message input;
+    private final EnvelopeFuture<O> output;
+    private final CallTimer timer;
+
+    private Call(ClientMethod<O> method, Message input, EnvelopeFuture<O> output,
+        CallTimer timer) {
+      this.method = method;
+      this.input = input;
+      this.output = output;
+      this.timer = timer;
+    }
+
+    @Override
+    public void write(Channel channel) {
+      if (output.isDone()) {
+        // Cancelled while waiting for the connection to be restored
+        return;
       }
+      timer.dispatched();
+      output.bind(channel);
+      // TODO(julien): might be nice to couple the future returned from writeAndFlush
+      // into the one returned to the user, so that calling cancel on the userland
+      // future may also cancel the outgoing request if it isn't done yet.
+      channel.writeAndFlush(encoder.encode(channel.alloc(), output.requestId(), method,
+          handler.methodId(method), input)).addListener(this);
+    }
 
-    });
-    return output;
+    @Override
+    public void operationComplete(ChannelFuture future) {
+      if (!future.isSuccess()) {
+        fail(future.cause());
+      }
+    }
+
+    @Override
+    public void fail(Throwable cause) {
+      clientLogger.logLinkError(method, cause);
+      handler.finish(output.requestId());
+      output.setException(cause);
+    }
   }
 
   public static final class Builder {
 
+    // Exactly one of these addresses is set
     private final HostAndPort remoteAddress;
+    private final DomainSocketAddress socketAddress;
+    private Transport transport;
+    private TlsConfig tlsConfig;
     private ClientLogger clientLogger = new NullClientLogger();
+    private ReconnectPolicy reconnectPolicy = ReconnectPolicy.defaults();
+    private FlowControlPolicy flowControlPolicy = FlowControlPolicy.defaults();
+    private RpcMetrics metrics = RpcMetrics.disabled();
+    private KeepAlivePolicy keepAlivePolicy = KeepAlivePolicy.disabled();
+    private boolean lazyConnect = false;
+    private boolean useMethodIds = true;
 
-    private Builder(HostAndPort remoteAddress) {
-      this.remoteAddress = Preconditions.checkNotNull(remoteAddress);
+    private Builder(HostAndPort remoteAddress, DomainSocketAddress socketAddress,
+        Transport transport) {
+      this.remoteAddress = remoteAddress;
+      this.socketAddress = socketAddress;
+      this.transport = transport;
+    }
+
+    /**
+     * Sets the I/O implementation the client should be built upon. Defaults to
+     * {@link Transport#NIO}, or to {@link Transport#EPOLL} for clients
+     * connecting to a Unix domain socket.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTransport(Transport transport) {
+      this.transport = Preconditions.checkNotNull(transport);
+      return this;
+    }
+
+    /**
+     * Secures the connection to the server as per the given configuration.
+     * Not supported over Unix domain sockets, which don't leave the host.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTlsConfig(TlsConfig tlsConfig) {
+      Preconditions.checkState(remoteAddress != null,
+          "TLS isn't supported over Unix domain sockets");
+      Preconditions.checkArgument(tlsConfig.isClient());
+      this.tlsConfig = tlsConfig;
+      return this;
     }
 
     /**
@@ -134,28 +263,127 @@ public class RpcClient implements Client {
     }
 
     /**
-     * Returns a new connected {@link RpcClient}, as configured by this object
+     * Sets the policy driving the reconnection of the client when the
+     * connection to the server is lost.
+     *
+     * @return {@code this} object
+     */
+    public Builder setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+      this.reconnectPolicy = Preconditions.checkNotNull(reconnectPolicy);
+      return this;
+    }
+
+    /**
+     * Sets the policy bounding the number of requests outstanding with the
+     * server.
+     *
+     * @return {@code this} object
+     */
+    public Builder setFlowControlPolicy(FlowControlPolicy flowControlPolicy) {
+      this.flowControlPolicy = Preconditions.checkNotNull(flowControlPolicy);
+      return this;
+    }
+
+    /**
+     * Sets the registry in which the client records the metrics of the calls
+     * it makes.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMetrics(RpcMetrics metrics) {
+      this.metrics = Preconditions.checkNotNull(metrics);
+      return this;
+    }
+
+    /**
+     * Sets the policy driving the keepalive pings sent to the server.
+     * Disabled by default.
+     *
+     * @return {@code this} object
+     */
+    public Builder setKeepAlivePolicy(KeepAlivePolicy keepAlivePolicy) {
+      this.keepAlivePolicy = Preconditions.checkNotNull(keepAlivePolicy);
+      return this;
+    }
+
+    /**
+     * Sets whether the client should connect to the server upon its first
+     * method call rather than when it is built.
+     *
+     * @return {@code this} object
+     */
+    public Builder setLazyConnect(boolean lazyConnect) {
+      this.lazyConnect = lazyConnect;
+      return this;
+    }
+
+    /**
+     * Sets whether the client should address methods by the integer
+     * identifiers advertised by the server, rather than by name, once they
+     * are known. Enabled by default.
+     *
+     * @return {@code this} object
+     */
+    public Builder setUseMethodIds(boolean useMethodIds) {
+      this.useMethodIds = useMethodIds;
+      return this;
+    }
+
+    /**
+     * Returns a new connected {@link RpcClient}, as configured by this object.
+     * <p/>
+     * <p>Unless lazy connection is enabled, this operation blocks until the
+     * client is connected.</p>
      *
      * @throws IOException in case of a connection error.
      */
     public RpcClient build() throws IOException {
-      Preconditions.checkNotNull(remoteAddress);
-      Bootstrap bootstrap = new Bootstrap();
-      bootstrap.group(new NioEventLoopGroup());
+      try {
+        return Uninterruptibles.getUninterruptibly(buildAsync());
+      } catch (ExecutionException ee) {
+        logger.warning("Piezo client failed to connect to " +
+            (remoteAddress != null ? remoteAddress.toString() : socketAddress.path()));
+        throw new IOException(ee.getCause());
+      }
+    }
+
+    /**
+     * Returns a handle on a new {@link RpcClient}, as configured by this object,
+     * completed once the client is connected to the remote server.
+     * <p/>
+     * <p>This operation does not block. If lazy connection is enabled, the
+     * returned handle is already completed.</p>
+     */
+    public ListenableFuture<RpcClient> buildAsync() {
+      final Bootstrap bootstrap = new Bootstrap();
+      EventLoopGroup eventLoopGroup = transport.newEventLoopGroup();
+      bootstrap.group(eventLoopGroup);
       bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
-      bootstrap.channel(NioSocketChannel.class);
+      bootstrap.channel(remoteAddress != null ?
+          transport.channelClass() : transport.domainSocketChannelClass());
       RpcClientHandler handler = new RpcClientHandler();
-      bootstrap.handler(ChannelInitializers.protoBuf(Envelope.getDefaultInstance(), handler));
-
-      ChannelFuture future = bootstrap.connect(remoteAddress.getHostText(), remoteAddress.getPort());
-      future.awaitUninterruptibly();
-      if (future.isSuccess()) {
-        logger.info("Piezo client successfully connected to " + remoteAddress.toString());
-      } else {
-        logger.warning("Piezo client failed to connect to " + remoteAddress.toString());
-        throw new IOException(future.cause());
-      }
-      return new RpcClient(future.channel(), handler, clientLogger);
+      handler.setUseMethodIds(useMethodIds);
+      handler.setKeepAlivePolicy(keepAlivePolicy);
+      handler.setMetrics(metrics);
+      bootstrap.handler(tlsConfig == null ?
+          ChannelInitializers.protoBuf(Envelope.getDefaultInstance(), handler) :
+          ChannelInitializers.secureProtoBuf(Envelope.getDefaultInstance(), handler, tlsConfig,
+              remoteAddress));
+
+      ReconnectManager reconnectManager = new ReconnectManager(new ReconnectManager.Connector() {
+
+        @Override
+        public ChannelFuture connect() {
+          if (remoteAddress == null) {
+            return bootstrap.connect(socketAddress);
+          }
+          return bootstrap.connect(remoteAddress.getHostText(), remoteAddress.getPort());
+        }
+      }, eventLoopGroup, reconnectPolicy, flowControlPolicy);
+
+      RpcClient client = new RpcClient(reconnectManager, handler,
+          metrics.decorate(clientLogger), metrics);
+      return lazyConnect ? Futures.immediateFuture(client) : reconnectManager.open(client);
     }
   }
 }
@@ -19,6 +19,8 @@ package io.soliton.protobuf.socket;
 import io.soliton.protobuf.Envelope;
 import io.soliton.protobuf.EnvelopeClientHandler;
 
+import io.netty.channel.Channel;
+
 /**
  * Client handler in charge of decoding the server's response and dispatching
  * it to the relevant client.
@@ -28,7 +30,7 @@ import io.soliton.protobuf.EnvelopeClientHandler;
 class RpcClientHandler extends EnvelopeClientHandler<Envelope, Envelope> {
 
   @Override
-  public Envelope convertRequest(Envelope request) {
+  public Envelope convertRequest(Envelope request, Channel channel) {
     return request;
   }
 
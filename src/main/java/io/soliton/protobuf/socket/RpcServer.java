@@ -17,20 +17,31 @@
 package io.soliton.protobuf.socket;
 
 import io.soliton.protobuf.AbstractRpcServer;
+import io.soliton.protobuf.AdmissionController;
 import io.soliton.protobuf.ChannelInitializers;
+import io.soliton.protobuf.DispatchTable;
 import io.soliton.protobuf.Envelope;
 import io.soliton.protobuf.NullServerLogger;
+import io.soliton.protobuf.ResponseCache;
 import io.soliton.protobuf.ServerLogger;
+import io.soliton.protobuf.TlsConfig;
+import io.soliton.protobuf.Transport;
+import io.soliton.protobuf.metrics.RpcMetrics;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple implementation of {@link io.soliton.protobuf.Server} using a TCP
- * transport.
+ * or Unix domain socket transport.
  *
  * <p>This server uses a proprietary binary protocol to communicate with
  * instances of {@link RpcClient}.</p>
@@ -45,21 +56,37 @@ public class RpcServer extends AbstractRpcServer {
    * @param port the port the server should bind to
    */
   public static Builder newServer(int port) {
-    return new Builder(port);
+    Preconditions.checkArgument(port > 0 && port < 65536);
+    return new Builder(new InetSocketAddress(port), Transport.NIO);
+  }
+
+  /**
+   * Returns a new builder for configuring instances of this class, bound to
+   * a Unix domain socket. Such servers are built upon
+   * {@link Transport#EPOLL}.
+   *
+   * @param socketAddress the path of the socket the server should bind to
+   */
+  public static Builder newServer(DomainSocketAddress socketAddress) {
+    return new Builder(socketAddress, Transport.EPOLL);
   }
 
   /**
-   * Creates a new server configure to bind to the given TCP port.
+   * Creates a new server configure to bind to the given address.
    *
-   * @param port the TCP port to bind to
+   * @param localAddress the TCP port or Unix domain socket to bind to
+   * @param transport the I/O implementation to build upon
    */
-  private RpcServer(int port) {
-    super(port, NioServerSocketChannel.class, new NioEventLoopGroup(), new NioEventLoopGroup());
+  private RpcServer(SocketAddress localAddress, Transport transport) {
+    super(localAddress, localAddress instanceof DomainSocketAddress ?
+            transport.serverDomainSocketChannelClass() : transport.serverChannelClass(),
+        transport.newEventLoopGroup(), transport.newEventLoopGroup());
   }
 
   protected ChannelInitializer<? extends Channel> channelInitializer() {
     return ChannelInitializers.protoBuf(Envelope.getDefaultInstance(),
-        new RpcServerHandler(serviceGroup(), new NullServerLogger()));
+        new RpcServerHandler(serviceGroup(), new NullServerLogger(),
+            AdmissionController.unlimited(), RpcMetrics.disabled()));
   }
 
   /**
@@ -69,12 +96,44 @@ public class RpcServer extends AbstractRpcServer {
    */
   public static class Builder {
 
-    private final int port;
+    private final SocketAddress localAddress;
+    private Transport transport;
+    private TlsConfig tlsConfig;
     private ServerLogger serverLogger = new NullServerLogger();
+    private AdmissionController admissionController = AdmissionController.unlimited();
+    private RpcMetrics metrics = RpcMetrics.disabled();
+    private boolean includeStackTraces = false;
+    private final Set<String> coalescedMethods = Sets.newHashSet();
+    private ResponseCache responseCache = ResponseCache.disabled();
+    private long drainTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+    private long idleTimeoutMillis = 0;
+
+    private Builder(SocketAddress localAddress, Transport transport) {
+      this.localAddress = Preconditions.checkNotNull(localAddress);
+      this.transport = transport;
+    }
 
-    private Builder(int port) {
-      Preconditions.checkArgument(port > 0 && port < 65536);
-      this.port = port;
+    /**
+     * Secures the connections of the server as per the given configuration.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTlsConfig(TlsConfig tlsConfig) {
+      Preconditions.checkArgument(!tlsConfig.isClient());
+      this.tlsConfig = tlsConfig;
+      return this;
+    }
+
+    /**
+     * Sets the I/O implementation the server should be built upon. Defaults to
+     * {@link Transport#NIO}, or to {@link Transport#EPOLL} for servers bound
+     * to a Unix domain socket.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTransport(Transport transport) {
+      this.transport = Preconditions.checkNotNull(transport);
+      return this;
     }
 
     /**
@@ -88,16 +147,111 @@ public class RpcServer extends AbstractRpcServer {
       return this;
     }
 
+    /**
+     * Sets the controller deciding which incoming calls should be shed when
+     * the server is overloaded.
+     *
+     * @param admissionController the admission controller
+     * @return {@code this} instance
+     */
+    public Builder setAdmissionController(AdmissionController admissionController) {
+      this.admissionController = Preconditions.checkNotNull(admissionController);
+      return this;
+    }
+
+    /**
+     * Sets the registry in which the server records the metrics of the calls
+     * it serves.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMetrics(RpcMetrics metrics) {
+      this.metrics = Preconditions.checkNotNull(metrics);
+      return this;
+    }
+
+    /**
+     * Sets whether the stack traces of failed method invocations should be
+     * sent to clients. Disabled by default.
+     *
+     * @return {@code this} object
+     */
+    public Builder setIncludeStackTraces(boolean includeStackTraces) {
+      this.includeStackTraces = includeStackTraces;
+      return this;
+    }
+
+    /**
+     * Makes concurrent calls to the given method with identical payloads
+     * share a single invocation. The method's result should only depend on
+     * its parameter.
+     *
+     * @param service the full name of the service
+     * @param method the name of the method
+     * @return {@code this} object
+     */
+    public Builder addCoalescedMethod(String service, String method) {
+      coalescedMethods.add(DispatchTable.fullName(Preconditions.checkNotNull(service),
+          Preconditions.checkNotNull(method)));
+      return this;
+    }
+
+    /**
+     * Sets the cache in which the server keeps the serialized responses of
+     * cacheable methods.
+     *
+     * @return {@code this} object
+     */
+    public Builder setResponseCache(ResponseCache responseCache) {
+      this.responseCache = Preconditions.checkNotNull(responseCache);
+      return this;
+    }
+
+    /**
+     * Sets the maximum time to wait for in-flight requests to complete when
+     * the server is shut down. Defaults to ten seconds.
+     *
+     * @return {@code this} object
+     */
+    public Builder setDrainTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout >= 0);
+      this.drainTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the time without receiving any message after which a connection
+     * is closed. Disabled by default.
+     *
+     * @param timeout the idle timeout, or zero to keep idle connections open
+     * @return {@code this} object
+     */
+    public Builder setIdleTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout >= 0);
+      this.idleTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
     /**
      * Construct a new {@link RpcServer}, as per this builder's configuration
      */
     public RpcServer build() {
-      return new RpcServer(port) {
+      RpcServer server = new RpcServer(localAddress, transport) {
         protected ChannelInitializer<? extends Channel> channelInitializer() {
-          return ChannelInitializers.protoBuf(Envelope.getDefaultInstance(),
-              new RpcServerHandler(serviceGroup(), serverLogger));
+          RpcServerHandler handler = new RpcServerHandler(serviceGroup(),
+              metrics.decorate(serverLogger), admissionController, metrics);
+          handler.setIncludeStackTraces(includeStackTraces);
+          handler.setCoalescedMethods(coalescedMethods);
+          handler.setResponseCache(responseCache);
+          handler.setIdleTimeout(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+          return tlsConfig == null ?
+              ChannelInitializers.protoBuf(Envelope.getDefaultInstance(), handler) :
+              ChannelInitializers.secureProtoBuf(Envelope.getDefaultInstance(), handler,
+                  tlsConfig, null);
         }
       };
+      server.setDrainTimeout(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+      return server;
     }
   }
 }
@@ -16,10 +16,12 @@
 
 package io.soliton.protobuf.socket;
 
+import io.soliton.protobuf.AdmissionController;
 import io.soliton.protobuf.Envelope;
 import io.soliton.protobuf.EnvelopeServerHandler;
 import io.soliton.protobuf.ServerLogger;
 import io.soliton.protobuf.ServiceGroup;
+import io.soliton.protobuf.metrics.RpcMetrics;
 
 /**
  * Handler implementing the decoding and dispatching of RPC calls in
@@ -27,10 +29,11 @@ import io.soliton.protobuf.ServiceGroup;
  *
  * @author Julien Silland (julien@soliton.io)
  */
-class RpcServerHandler extends EnvelopeServerHandler<Envelope, Envelope> {
+public class RpcServerHandler extends EnvelopeServerHandler<Envelope, Envelope> {
 
-  RpcServerHandler(ServiceGroup serviceGroup, ServerLogger serverLogger) {
-    super(serviceGroup, serverLogger);
+  public RpcServerHandler(ServiceGroup serviceGroup, ServerLogger serverLogger,
+      AdmissionController admissionController, RpcMetrics metrics) {
+    super(serviceGroup, serverLogger, admissionController, metrics);
   }
 
   /**
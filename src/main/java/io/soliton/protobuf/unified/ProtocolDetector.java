@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.unified;
+
+import io.soliton.protobuf.ChannelInitializers;
+import io.soliton.protobuf.Envelope;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Inspects the first bytes received on a connection to tell HTTP requests
+ * apart from length-prefixed protocol buffer frames, then replaces itself
+ * with the handlers of the detected protocol.
+ * <p/>
+ * <p>Frames are prefixed by a four-byte big-endian length and are bounded to
+ * 10 MB, so their first byte is always zero. HTTP requests start with the
+ * ASCII name of their method.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+final class ProtocolDetector extends ByteToMessageDecoder {
+
+  private static final int PREFIX_LENGTH = 4;
+  private static final String[] HTTP_METHOD_PREFIXES = {
+      "GET ", "POST", "PUT ", "HEAD", "DELE", "OPTI", "PATC", "TRAC", "CONN"
+  };
+
+  private final SimpleChannelInboundHandler<Envelope> envelopeHandler;
+  private final SimpleChannelInboundHandler<HttpRequest> quartzHandler;
+  private final SimpleChannelInboundHandler<HttpRequest> jsonRpcHandler;
+  private final ChannelHandler interceptor;
+
+  /**
+   * Exhaustive constructor. All handlers must be sharable.
+   *
+   * @param envelopeHandler the handler of protocol buffer connections
+   * @param quartzHandler the first handler of HTTP requests, passing those
+   * outside of its path on to the next one
+   * @param jsonRpcHandler the handler of the HTTP requests left over by
+   * {@code quartzHandler}
+   * @param interceptor a handler given the first chance to process HTTP
+   * requests, or {@code null}
+   */
+  ProtocolDetector(SimpleChannelInboundHandler<Envelope> envelopeHandler,
+      SimpleChannelInboundHandler<HttpRequest> quartzHandler,
+      SimpleChannelInboundHandler<HttpRequest> jsonRpcHandler, ChannelHandler interceptor) {
+    this.envelopeHandler = envelopeHandler;
+    this.quartzHandler = quartzHandler;
+    this.jsonRpcHandler = jsonRpcHandler;
+    this.interceptor = interceptor;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void decode(ChannelHandlerContext context, ByteBuf in, List<Object> out) {
+    if (in.readableBytes() < PREFIX_LENGTH) {
+      return;
+    }
+    ChannelPipeline pipeline = context.pipeline();
+    if (isHttp(in.toString(in.readerIndex(), PREFIX_LENGTH, StandardCharsets.US_ASCII))) {
+      ChannelInitializers.addHttpServerHandlers(pipeline, quartzHandler, interceptor);
+      pipeline.addLast("jsonRpcHandler", jsonRpcHandler);
+    } else {
+      ChannelInitializers.addProtoBufHandlers(pipeline, Envelope.getDefaultInstance(),
+          envelopeHandler);
+    }
+    // Bytes buffered so far are handed over to the newly installed handlers
+    pipeline.remove(this);
+  }
+
+  private static boolean isHttp(String prefix) {
+    for (String method : HTTP_METHOD_PREFIXES) {
+      if (method.equals(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
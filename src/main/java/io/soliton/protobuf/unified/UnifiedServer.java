@@ -0,0 +1,296 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.unified;
+
+import io.soliton.protobuf.AbstractRpcServer;
+import io.soliton.protobuf.AdmissionController;
+import io.soliton.protobuf.DispatchTable;
+import io.soliton.protobuf.EnvelopeServerHandler;
+import io.soliton.protobuf.NullServerLogger;
+import io.soliton.protobuf.ResponseCache;
+import io.soliton.protobuf.ServerLogger;
+import io.soliton.protobuf.TlsConfig;
+import io.soliton.protobuf.Transport;
+import io.soliton.protobuf.json.JsonRpcProtocol;
+import io.soliton.protobuf.json.JsonRpcServerHandler;
+import io.soliton.protobuf.metrics.MetricsHttpHandler;
+import io.soliton.protobuf.metrics.PrometheusExporter;
+import io.soliton.protobuf.metrics.RpcMetrics;
+import io.soliton.protobuf.quartz.QuartzProtocol;
+import io.soliton.protobuf.quartz.QuartzServerHandler;
+import io.soliton.protobuf.socket.RpcServerHandler;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server surfacing its services over the binary socket protocol, Quartz
+ * and JSON-RPC, all on a single port.
+ * <p/>
+ * <p>The protocol of each connection is detected from its first bytes:
+ * HTTP requests are served as Quartz calls when their path falls under the
+ * Quartz path, and as JSON-RPC calls otherwise, while other connections
+ * are expected to carry length-prefixed {@link io.soliton.protobuf.Envelope}
+ * messages. All protocols share the same services, event loops, admission
+ * controller and metrics, so that clients of either protocol can be served
+ * by a single server, rather than one per protocol.</p>
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public abstract class UnifiedServer extends AbstractRpcServer {
+
+  /**
+   * Returns a new builder to configure instances of unified server.
+   *
+   * @param port the port this server should bind to
+   */
+  public static Builder newServer(int port) {
+    return new Builder(port);
+  }
+
+  private UnifiedServer(int port, Transport transport) {
+    super(port, transport.serverChannelClass(), transport.newEventLoopGroup(),
+        transport.newEventLoopGroup());
+  }
+
+  /**
+   * Configurable builder of {@link UnifiedServer} instances.
+   */
+  public static final class Builder {
+
+    private final int port;
+    private Transport transport = Transport.NIO;
+    private String quartzPath = QuartzProtocol.DEFAULT_PATH;
+    private String jsonRpcPath = JsonRpcProtocol.DEFAULT_RPC_PATH;
+    private TlsConfig tlsConfig;
+    private ServerLogger serverLogger = new NullServerLogger();
+    private AdmissionController admissionController = AdmissionController.unlimited();
+    private RpcMetrics metrics = RpcMetrics.disabled();
+    private boolean includeStackTraces = false;
+    private final Set<String> coalescedMethods = Sets.newHashSet();
+    private ResponseCache responseCache = ResponseCache.disabled();
+    private long drainTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+    private long idleTimeoutMillis = 0;
+    private String metricsPath;
+
+    private Builder(int port) {
+      Preconditions.checkArgument(port > 0 && port < 65536);
+      this.port = port;
+    }
+
+    /**
+     * Sets the I/O implementation the server should be built upon. Defaults to
+     * {@link Transport#NIO}.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTransport(Transport transport) {
+      this.transport = Preconditions.checkNotNull(transport);
+      return this;
+    }
+
+    /**
+     * Sets the URI path prefix of Quartz requests.
+     *
+     * @return {@code this} object
+     */
+    public Builder setQuartzPath(String quartzPath) {
+      Preconditions.checkNotNull(quartzPath);
+      Preconditions.checkArgument(quartzPath.startsWith("/"));
+      this.quartzPath = quartzPath;
+      return this;
+    }
+
+    /**
+     * Sets the URI path of JSON-RPC requests.
+     *
+     * @return {@code this} object
+     */
+    public Builder setJsonRpcPath(String jsonRpcPath) {
+      Preconditions.checkNotNull(jsonRpcPath);
+      Preconditions.checkArgument(jsonRpcPath.startsWith("/"));
+      this.jsonRpcPath = jsonRpcPath;
+      return this;
+    }
+
+    /**
+     * Secures the connections of the server as per the given configuration,
+     * whatever their protocol.
+     *
+     * @return {@code this} object
+     */
+    public Builder setTlsConfig(TlsConfig tlsConfig) {
+      Preconditions.checkArgument(!tlsConfig.isClient());
+      this.tlsConfig = tlsConfig;
+      return this;
+    }
+
+    /**
+     * Sets the monitoring logger to log server operations to.
+     *
+     * @return {@code this} object
+     */
+    public Builder setServerLogger(ServerLogger serverLogger) {
+      this.serverLogger = Preconditions.checkNotNull(serverLogger);
+      return this;
+    }
+
+    /**
+     * Sets the controller deciding which incoming calls should be shed when
+     * the server is overloaded.
+     *
+     * @return {@code this} object
+     */
+    public Builder setAdmissionController(AdmissionController admissionController) {
+      this.admissionController = Preconditions.checkNotNull(admissionController);
+      return this;
+    }
+
+    /**
+     * Sets the registry in which the server records the metrics of the calls
+     * it serves.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMetrics(RpcMetrics metrics) {
+      this.metrics = Preconditions.checkNotNull(metrics);
+      return this;
+    }
+
+    /**
+     * Sets the HTTP path on which the server exposes its metrics, in the
+     * Prometheus text format. Metrics are not exposed unless a path is set.
+     *
+     * @return {@code this} object
+     */
+    public Builder setMetricsPath(String metricsPath) {
+      Preconditions.checkNotNull(metricsPath);
+      Preconditions.checkArgument(metricsPath.startsWith("/"));
+      this.metricsPath = metricsPath;
+      return this;
+    }
+
+    /**
+     * Sets whether the stack traces of failed method invocations should be
+     * sent to socket and Quartz clients. Disabled by default.
+     *
+     * @return {@code this} object
+     */
+    public Builder setIncludeStackTraces(boolean includeStackTraces) {
+      this.includeStackTraces = includeStackTraces;
+      return this;
+    }
+
+    /**
+     * Makes concurrent socket and Quartz calls to the given method with
+     * identical payloads share a single invocation. The method's result
+     * should only depend on its parameter.
+     *
+     * @param service the full name of the service
+     * @param method the name of the method
+     * @return {@code this} object
+     */
+    public Builder addCoalescedMethod(String service, String method) {
+      coalescedMethods.add(DispatchTable.fullName(Preconditions.checkNotNull(service),
+          Preconditions.checkNotNull(method)));
+      return this;
+    }
+
+    /**
+     * Sets the cache in which the server keeps the serialized responses of
+     * cacheable methods called over the socket protocol or Quartz.
+     *
+     * @return {@code this} object
+     */
+    public Builder setResponseCache(ResponseCache responseCache) {
+      this.responseCache = Preconditions.checkNotNull(responseCache);
+      return this;
+    }
+
+    /**
+     * Sets the maximum time to wait for in-flight requests to complete when
+     * the server is shut down. Defaults to ten seconds.
+     *
+     * @return {@code this} object
+     */
+    public Builder setDrainTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout >= 0);
+      this.drainTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the time without receiving any message after which a socket or
+     * Quartz connection is closed. Disabled by default.
+     *
+     * @param timeout the idle timeout, or zero to keep idle connections open
+     * @return {@code this} object
+     */
+    public Builder setIdleTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout >= 0);
+      this.idleTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Returns a new server, as configured by this builder.
+     */
+    public UnifiedServer build() {
+      UnifiedServer server = new UnifiedServer(port, transport) {
+        @Override
+        protected ChannelInitializer<? extends Channel> channelInitializer() {
+          ServerLogger logger = metrics.decorate(serverLogger);
+          final RpcServerHandler envelopeHandler = new RpcServerHandler(serviceGroup(), logger,
+              admissionController, metrics);
+          final QuartzServerHandler quartzHandler = new QuartzServerHandler(serviceGroup(),
+              quartzPath, logger, admissionController, metrics);
+          for (EnvelopeServerHandler<?, ?> handler :
+              ImmutableList.<EnvelopeServerHandler<?, ?>>of(envelopeHandler, quartzHandler)) {
+            handler.setIncludeStackTraces(includeStackTraces);
+            handler.setCoalescedMethods(coalescedMethods);
+            handler.setResponseCache(responseCache);
+            handler.setIdleTimeout(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+          }
+          final JsonRpcServerHandler jsonRpcHandler = new JsonRpcServerHandler(this, jsonRpcPath,
+              logger, admissionController, metrics);
+          final MetricsHttpHandler metricsHandler = metricsPath == null ? null :
+              new MetricsHttpHandler(metricsPath,
+                  new PrometheusExporter(metrics, eventLoopGroups()));
+          return new ChannelInitializer<Channel>() {
+
+            @Override
+            protected void initChannel(Channel channel) throws Exception {
+              if (tlsConfig != null) {
+                channel.pipeline().addLast("ssl", tlsConfig.newHandler(channel.alloc(), null));
+              }
+              channel.pipeline().addLast("protocolDetector", new ProtocolDetector(
+                  envelopeHandler, quartzHandler, jsonRpcHandler, metricsHandler));
+            }
+          };
+        }
+      };
+      server.setDrainTimeout(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+      return server;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link BlockingExecutors}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class BlockingExecutorsTest {
+
+  @Test
+  public void testConcurrentBlockingInvocations() throws Exception {
+    ListeningExecutorService executor = BlockingExecutors.newExecutor(10);
+    final CountDownLatch started = new CountDownLatch(10);
+    final Thread caller = Thread.currentThread();
+
+    // Each invocation blocks until all of them are running
+    List<ListenableFuture<Boolean>> invocations = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      invocations.add(executor.submit(new Callable<Boolean>() {
+
+        @Override
+        public Boolean call() throws Exception {
+          started.countDown();
+          Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+          return Thread.currentThread() != caller;
+        }
+      }));
+    }
+    for (Boolean offCaller : Futures.allAsList(invocations).get(5, TimeUnit.SECONDS)) {
+      Assert.assertTrue(offCaller);
+    }
+    executor.shutdown();
+  }
+
+  @Test
+  public void testCancelInterruptsInvocation() throws Exception {
+    ListeningExecutorService executor = BlockingExecutors.newExecutor(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    ListenableFuture<?> invocation = executor.submit(new Runnable() {
+
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ie) {
+          interrupted.countDown();
+        }
+      }
+    });
+    Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+    invocation.cancel(true);
+    Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    executor.shutdown();
+  }
+}
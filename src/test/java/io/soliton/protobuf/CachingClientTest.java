@@ -0,0 +1,145 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import io.soliton.protobuf.testing.TestingSingleFile;
+import io.soliton.protobuf.testing.TimeRequest;
+import io.soliton.protobuf.testing.TimeResponse;
+import io.soliton.protobuf.testing.TimeService;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.Message;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CachingClient}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class CachingClientTest {
+
+  private static final TestingSingleFile.DnsRequest REQUEST =
+      TestingSingleFile.DnsRequest.newBuilder().setDomain("soliton.io").build();
+  private static final TestingSingleFile.DnsResponse RESPONSE =
+      TestingSingleFile.DnsResponse.newBuilder().setIpAddress(1234).build();
+
+  private final List<SettableFuture<Message>> calls = Lists.newArrayList();
+  private CachingClient client;
+
+  @Before
+  public void setUp() {
+    Client delegate = new Client() {
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public <O extends Message> ListenableFuture<O> encodeMethodCall(ClientMethod<O> method,
+          Message input) {
+        SettableFuture<Message> call = SettableFuture.create();
+        calls.add(call);
+        return (ListenableFuture<O>) call;
+      }
+    };
+    client = CachingClient.newBuilder(delegate)
+        .addService(TestingSingleFile.getDescriptor().findServiceByName("Dns"))
+        .build();
+  }
+
+  @Test
+  public void testCachedResponse() throws Exception {
+    TestingSingleFile.Dns.Interface stub = TestingSingleFile.Dns.newStub(client);
+    ListenableFuture<TestingSingleFile.DnsResponse> first = stub.resolve(REQUEST);
+    Assert.assertEquals(1, calls.size());
+    calls.get(0).set(RESPONSE);
+    Assert.assertEquals(RESPONSE, first.get());
+
+    // Another stub issuing an equal request is served from the cache
+    ListenableFuture<TestingSingleFile.DnsResponse> second =
+        TestingSingleFile.Dns.newStub(client).resolve(REQUEST.toBuilder().build());
+    Assert.assertTrue(second.isDone());
+    Assert.assertEquals(RESPONSE, second.get());
+    Assert.assertEquals(1, calls.size());
+    Assert.assertEquals(1, client.stats().hitCount());
+
+    stub.resolve(REQUEST.toBuilder().setDomain("example.com").build());
+    Assert.assertEquals(2, calls.size());
+
+    client.invalidateAll();
+    stub.resolve(REQUEST);
+    Assert.assertEquals(3, calls.size());
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    TestingSingleFile.Dns.Interface stub = TestingSingleFile.Dns.newStub(client);
+    ListenableFuture<TestingSingleFile.DnsResponse> first = stub.resolve(REQUEST);
+    ListenableFuture<TestingSingleFile.DnsResponse> second = stub.resolve(REQUEST);
+    Assert.assertEquals(1, calls.size());
+
+    // Cancelling one caller leaves the shared call untouched
+    first.cancel(true);
+    Assert.assertFalse(calls.get(0).isCancelled());
+    calls.get(0).set(RESPONSE);
+    Assert.assertEquals(RESPONSE, second.get());
+  }
+
+  @Test
+  public void testFailureNotCached() throws Exception {
+    TestingSingleFile.Dns.Interface stub = TestingSingleFile.Dns.newStub(client);
+    ListenableFuture<TestingSingleFile.DnsResponse> first = stub.resolve(REQUEST);
+    calls.get(0).setException(new RpcException(ErrorCode.APPLICATION_ERROR, "OMGWTF"));
+    try {
+      first.get();
+      Assert.fail();
+    } catch (ExecutionException ee) {
+      Assert.assertTrue(ee.getCause() instanceof RpcException);
+    }
+
+    stub.resolve(REQUEST);
+    Assert.assertEquals(2, calls.size());
+  }
+
+  @Test
+  public void testExpiration() throws Exception {
+    client = CachingClient.newBuilder(client)
+        .addMethod("soliton.piezo.testing.TimeService", "GetTime", 1, TimeUnit.NANOSECONDS)
+        .build();
+    TimeService.Interface stub = TimeService.newStub(client);
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    stub.getTime(request);
+    calls.get(0).set(TimeResponse.getDefaultInstance());
+    stub.getTime(request);
+    Assert.assertEquals(2, calls.size());
+  }
+
+  @Test
+  public void testNotCacheable() {
+    TimeService.Interface stub = TimeService.newStub(client);
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    stub.getTime(request);
+    calls.get(0).set(TimeResponse.getDefaultInstance());
+    stub.getTime(request);
+    Assert.assertEquals(2, calls.size());
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CallStream}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class CallStreamTest {
+
+  private static Iterator<Integer> range(int count) {
+    return ContiguousSet.create(Range.closedOpen(0, count), DiscreteDomain.integers()).iterator();
+  }
+
+  private static final class RecordingObserver implements CallStream.Observer<Integer, Integer> {
+
+    private final List<Integer> responses = Lists.newArrayList();
+    private final List<Integer> failures = Lists.newArrayList();
+
+    @Override
+    public void onResponse(Integer request, Integer response) {
+      responses.add(response);
+    }
+
+    @Override
+    public void onFailure(Integer request, Throwable cause) {
+      failures.add(request);
+    }
+  }
+
+  @Test
+  public void testWindow() throws Exception {
+    final List<SettableFuture<Integer>> calls = Lists.newArrayList();
+    final List<Integer> requests = Lists.newArrayList();
+    AsyncFunction<Integer, Integer> method = new AsyncFunction<Integer, Integer>() {
+      @Override
+      public ListenableFuture<Integer> apply(Integer request) {
+        SettableFuture<Integer> call = SettableFuture.create();
+        calls.add(call);
+        requests.add(request);
+        return call;
+      }
+    };
+    RecordingObserver observer = new RecordingObserver();
+    ListenableFuture<Long> completion = CallStream.start(range(10), method, 3, observer);
+
+    // Requests are only pulled as calls complete
+    Assert.assertEquals(3, calls.size());
+    calls.get(1).set(10);
+    Assert.assertEquals(4, calls.size());
+    Assert.assertEquals(Integer.valueOf(3), requests.get(3));
+
+    for (int i = 0; i < 10; i++) {
+      calls.get(i).set(i * 10);
+      int pending = 0;
+      for (SettableFuture<Integer> call : calls) {
+        pending += call.isDone() ? 0 : 1;
+      }
+      Assert.assertTrue(pending <= 3);
+    }
+    Assert.assertEquals(10, calls.size());
+    Assert.assertEquals(Long.valueOf(10), completion.get(0, TimeUnit.SECONDS));
+    Assert.assertEquals(10, observer.responses.size());
+  }
+
+  @Test
+  public void testSynchronousCalls() throws Exception {
+    AsyncFunction<Integer, Integer> method = new AsyncFunction<Integer, Integer>() {
+      @Override
+      public ListenableFuture<Integer> apply(Integer request) {
+        return Futures.immediateFuture(request);
+      }
+    };
+    RecordingObserver observer = new RecordingObserver();
+
+    // Calls completing right away must not grow the stack
+    ListenableFuture<Long> completion = CallStream.start(range(100000), method, 8, observer);
+    Assert.assertEquals(Long.valueOf(100000), completion.get(0, TimeUnit.SECONDS));
+    Assert.assertEquals(100000, observer.responses.size());
+  }
+
+  @Test
+  public void testFailedCalls() throws Exception {
+    AsyncFunction<Integer, Integer> method = new AsyncFunction<Integer, Integer>() {
+      @Override
+      public ListenableFuture<Integer> apply(Integer request) throws Exception {
+        if (request % 2 == 0) {
+          throw new IllegalStateException();
+        }
+        return Futures.immediateFailedFuture(new RpcException(ErrorCode.APPLICATION_ERROR, ""));
+      }
+    };
+    RecordingObserver observer = new RecordingObserver();
+    ListenableFuture<Long> completion = CallStream.start(range(5), method, 2, observer);
+    Assert.assertEquals(Long.valueOf(5), completion.get(0, TimeUnit.SECONDS));
+    Assert.assertEquals(Lists.newArrayList(0, 1, 2, 3, 4), observer.failures);
+  }
+
+  @Test
+  public void testFailingSource() throws Exception {
+    Iterator<Integer> requests = new Iterator<Integer>() {
+      @Override
+      public boolean hasNext() {
+        return true;
+      }
+
+      @Override
+      public Integer next() {
+        throw new IllegalStateException();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+    ListenableFuture<Long> completion = CallStream.start(requests,
+        new AsyncFunction<Integer, Integer>() {
+          @Override
+          public ListenableFuture<Integer> apply(Integer request) {
+            return Futures.immediateFuture(request);
+          }
+        }, 2, new RecordingObserver());
+    try {
+      completion.get(0, TimeUnit.SECONDS);
+      Assert.fail();
+    } catch (ExecutionException ee) {
+      Assert.assertTrue(ee.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void testCancel() {
+    final List<SettableFuture<Integer>> calls = Lists.newArrayList();
+    AsyncFunction<Integer, Integer> method = new AsyncFunction<Integer, Integer>() {
+      @Override
+      public ListenableFuture<Integer> apply(Integer request) {
+        SettableFuture<Integer> call = SettableFuture.create();
+        calls.add(call);
+        return call;
+      }
+    };
+    ListenableFuture<Long> completion = CallStream.start(range(10), method, 2,
+        new RecordingObserver());
+    completion.cancel(false);
+    calls.get(0).set(0);
+    calls.get(1).set(1);
+    Assert.assertEquals(2, calls.size());
+  }
+}
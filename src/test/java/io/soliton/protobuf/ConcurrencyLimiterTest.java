@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ConcurrencyLimiter} and {@link AdmissionController}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class ConcurrencyLimiterTest {
+
+  @Test
+  public void testFixedLimit() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(2);
+    Assert.assertTrue(limiter.tryAcquire());
+    Assert.assertTrue(limiter.tryAcquire());
+    Assert.assertFalse(limiter.tryAcquire());
+    Assert.assertEquals(2, limiter.inFlight());
+
+    limiter.release(0);
+    Assert.assertEquals(1, limiter.inFlight());
+    Assert.assertTrue(limiter.tryAcquire());
+  }
+
+  @Test
+  public void testAimdLimit() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.aimd(2, 1, 3, 10, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(2, limiter.limit());
+
+    // Fast completions under load raise the limit, up to its upper bound
+    for (int i = 0; i < 4; i++) {
+      Assert.assertTrue(limiter.tryAcquire());
+      limiter.release(TimeUnit.MILLISECONDS.toNanos(1));
+      Assert.assertTrue(limiter.tryAcquire());
+      Assert.assertTrue(limiter.tryAcquire());
+      limiter.release(TimeUnit.MILLISECONDS.toNanos(1));
+      limiter.release(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    Assert.assertEquals(3, limiter.limit());
+
+    // Slow completions lower it, down to its lower bound
+    for (int i = 0; i < 20; i++) {
+      Assert.assertTrue(limiter.tryAcquire());
+      limiter.release(TimeUnit.MILLISECONDS.toNanos(100));
+    }
+    Assert.assertEquals(1, limiter.limit());
+  }
+
+  @Test
+  public void testAimdIncreasesOncePerWindow() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.aimd(10, 1, 100, 10, TimeUnit.MILLISECONDS);
+
+    // A full window of fast completions raises the limit by about one
+    for (int i = 0; i < 10; i++) {
+      Assert.assertTrue(limiter.tryAcquire());
+    }
+    Assert.assertFalse(limiter.tryAcquire());
+    for (int i = 0; i < 10; i++) {
+      limiter.release(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    Assert.assertTrue(limiter.limit() <= 11);
+  }
+
+  @Test
+  public void testAimdDecreasesOncePerWindow() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.aimd(100, 1, 200, 10, TimeUnit.MILLISECONDS);
+
+    // A burst of slow completions lowers the limit once
+    for (int i = 0; i < 22; i++) {
+      Assert.assertTrue(limiter.tryAcquire());
+      limiter.release(TimeUnit.MILLISECONDS.toNanos(100));
+    }
+    Assert.assertEquals(90, limiter.limit());
+
+    // Slow completions past the window lower it again
+    for (int i = 0; i < 90; i++) {
+      Assert.assertTrue(limiter.tryAcquire());
+      limiter.release(TimeUnit.MILLISECONDS.toNanos(100));
+    }
+    Assert.assertEquals(81, limiter.limit());
+  }
+
+  @Test
+  public void testAdmissionReleasesOuterLimiters() {
+    ConcurrencyLimiter global = ConcurrencyLimiter.fixed(10);
+    ConcurrencyLimiter method = ConcurrencyLimiter.fixed(1);
+    AdmissionController controller = AdmissionController.newBuilder()
+        .setGlobalLimiter(global)
+        .setMethodLimiter("Service", "Method", method)
+        .build();
+
+    AdmissionController.Permit permit = controller.tryAdmit("Service", "Method");
+    Assert.assertNotNull(permit);
+    Assert.assertNull(controller.tryAdmit("Service", "Method"));
+    Assert.assertEquals(1, global.inFlight());
+
+    Assert.assertNotNull(controller.tryAdmit("Service", "Other"));
+    Assert.assertEquals(2, global.inFlight());
+
+    permit.release();
+    Assert.assertEquals(0, method.inFlight());
+    Assert.assertEquals(1, global.inFlight());
+  }
+
+  @Test
+  public void testUnlimited() {
+    AdmissionController controller = AdmissionController.unlimited();
+    for (int i = 0; i < 100; i++) {
+      Assert.assertNotNull(controller.tryAdmit("Service", "Method"));
+    }
+  }
+}
@@ -16,6 +16,8 @@
 
 package io.soliton.protobuf;
 
+import io.soliton.protobuf.testing.TimeService;
+
 import com.google.common.collect.ImmutableMap;
 import com.google.protobuf.Message;
 import org.junit.Assert;
@@ -39,7 +41,7 @@ public class DefaultServiceGroupTest {
 
       @Override
       public ImmutableMap<String, ServerMethod<? extends Message, ? extends Message>> methods() {
-        return null;
+        return ImmutableMap.of();
       }
 
       @Override
@@ -59,4 +61,68 @@ public class DefaultServiceGroupTest {
     Assert.assertNull(group.lookupByName("Service"));
     Assert.assertNotNull(group.lookupByName("proto.package.Service"));
   }
+
+  @Test
+  public void testDispatchTable() {
+    DefaultServiceGroup group = new DefaultServiceGroup();
+    group.addService(TimeService.newService(new TimeServer()));
+    DispatchTable table = DispatchTable.of(group);
+    Assert.assertSame(group.dispatchTable(), table);
+
+    DispatchTable.Entry entry = table.lookup("soliton.piezo.testing.TimeService", "GetTime");
+    Assert.assertNotNull(entry);
+    Assert.assertEquals("soliton.piezo.testing.TimeService/GetTime", entry.fullName());
+    Assert.assertEquals("GetTime", entry.method().name());
+    Assert.assertSame(entry, table.lookup(entry.id()));
+    Assert.assertNull(table.lookup("soliton.piezo.testing.TimeService", "Unknown"));
+    Assert.assertNull(table.lookup(-1));
+  }
+
+  @Test
+  public void testRemoveService() {
+    DefaultServiceGroup group = new DefaultServiceGroup();
+    Service service = TimeService.newService(new TimeServer());
+    group.addService(service);
+    DispatchTable before = group.dispatchTable();
+    int id = before.lookup(service.fullName(), "GetTime").id();
+
+    Assert.assertSame(service, group.removeService(service.fullName()));
+    Assert.assertNull(group.lookupByName(service.fullName()));
+    Assert.assertNull(group.dispatchTable().lookup(id));
+    Assert.assertNull(group.removeService(service.fullName()));
+
+    // Snapshots handed out earlier are not affected
+    Assert.assertNotNull(before.lookup(id));
+
+    // Identifiers remain bound to the same method
+    group.addService(TimeService.newService(new TimeServer()));
+    Assert.assertEquals(id, group.dispatchTable().lookup(service.fullName(), "GetTime").id());
+  }
+
+  @Test
+  public void testDispatchTableOfOtherGroup() {
+    final Service service = TimeService.newService(new TimeServer());
+    ServiceGroup group = new ServiceGroup() {
+
+      @Override
+      public void addService(Service service) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Service lookupByName(String name) {
+        return service.fullName().equals(name) ? service : null;
+      }
+    };
+
+    // Methods of groups lacking a table of their own are looked up by name only
+    DispatchTable table = DispatchTable.of(group);
+    DispatchTable.Entry entry = table.lookup(service.fullName(), "GetTime");
+    Assert.assertNotNull(entry);
+    Assert.assertEquals("soliton.piezo.testing.TimeService/GetTime", entry.fullName());
+    Assert.assertEquals(-1, entry.id());
+    Assert.assertNull(table.lookup(service.fullName(), "Unknown"));
+    Assert.assertNull(table.lookup("Unknown", "GetTime"));
+    Assert.assertNull(table.lookup(0));
+  }
 }
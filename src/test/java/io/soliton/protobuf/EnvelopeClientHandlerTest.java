@@ -23,6 +23,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.protobuf.Message.Builder;
 import com.google.protobuf.Parser;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -43,7 +44,7 @@ public class EnvelopeClientHandlerTest {
       Envelope> {
 
     @Override
-    public Envelope convertRequest(Envelope request) {
+    public Envelope convertRequest(Envelope request, Channel channel) {
       return request;
     }
 
@@ -83,6 +84,7 @@ public class EnvelopeClientHandlerTest {
     handler.setChannel(channel);
     handler.setClientLogger(new NullClientLogger());
     EnvelopeFuture<TimeResponse> future = handler.newProvisionalResponse(CLIENT_METHOD);
+    future.bind(channel);
     future.cancel(true);
 
     ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
@@ -124,4 +126,90 @@ public class EnvelopeClientHandlerTest {
 
     latch.await(5, TimeUnit.SECONDS);
   }
+
+  @Test
+  public void testLearnMethodIdentifier() throws Exception {
+    EnvelopeClientHandler handler = new IdentityEnvelopeClientHandler();
+    Channel channel = Mockito.mock(Channel.class);
+    ChannelHandlerContext context = Mockito.mock(ChannelHandlerContext.class);
+    Mockito.when(context.channel()).thenReturn(channel);
+    handler.setChannel(channel);
+    handler.setClientLogger(new NullClientLogger());
+    handler.setUseMethodIds(true);
+    Assert.assertNull(handler.methodId(CLIENT_METHOD));
+
+    // Concurrent calls addressed by name: the first identifier received is kept
+    EnvelopeFuture<TimeResponse> first = handler.newProvisionalResponse(CLIENT_METHOD);
+    EnvelopeFuture<TimeResponse> second = handler.newProvisionalResponse(CLIENT_METHOD);
+    handler.channelRead0(context, Envelope.newBuilder()
+        .setRequestId(first.requestId())
+        .setPayload(TimeResponse.newBuilder().setTime(5L).build().toByteString())
+        .setMethodId(7)
+        .build());
+    handler.channelRead0(context, Envelope.newBuilder()
+        .setRequestId(second.requestId())
+        .setPayload(TimeResponse.newBuilder().setTime(5L).build().toByteString())
+        .setMethodId(8)
+        .build());
+    Assert.assertEquals(Integer.valueOf(7), handler.methodId(CLIENT_METHOD));
+  }
+
+  @Test
+  public void testChannelInactive() throws Exception {
+    EnvelopeClientHandler handler = new IdentityEnvelopeClientHandler();
+    Channel channel = Mockito.mock(Channel.class);
+    ChannelHandlerContext context = Mockito.mock(ChannelHandlerContext.class);
+    Mockito.when(context.channel()).thenReturn(channel);
+    handler.setChannel(channel);
+    handler.setClientLogger(new NullClientLogger());
+    EnvelopeFuture<TimeResponse> inFlight = handler.newProvisionalResponse(CLIENT_METHOD);
+    inFlight.bind(channel);
+    EnvelopeFuture<TimeResponse> unbound = handler.newProvisionalResponse(CLIENT_METHOD);
+
+    // Only the requests written to the closed channel are failed
+    handler.channelInactive(context);
+    Assert.assertTrue(inFlight.isDone());
+    Assert.assertFalse(unbound.isDone());
+    Assert.assertEquals(1, handler.inFlightRequests().size());
+  }
+
+  @Test
+  public void testGoAway() throws Exception {
+    EnvelopeClientHandler handler = new IdentityEnvelopeClientHandler();
+    Channel draining = Mockito.mock(Channel.class);
+    ChannelHandlerContext context = Mockito.mock(ChannelHandlerContext.class);
+    Mockito.when(context.channel()).thenReturn(draining);
+    handler.setChannel(draining);
+    handler.setClientLogger(new NullClientLogger());
+    handler.setUseMethodIds(true);
+    EnvelopeFuture<TimeResponse> inFlight = handler.newProvisionalResponse(CLIENT_METHOD);
+    inFlight.bind(draining);
+    EnvelopeFuture<TimeResponse> unbound = handler.newProvisionalResponse(CLIENT_METHOD);
+
+    handler.channelRead0(context, Envelope.newBuilder()
+        .setControl(Control.newBuilder().setGoAway(true))
+        .build());
+
+    // Identifiers advertised by the draining server aren't learned
+    handler.channelRead0(context, Envelope.newBuilder()
+        .setRequestId(inFlight.requestId())
+        .setPayload(TimeResponse.newBuilder().setTime(5L).build().toByteString())
+        .setMethodId(7)
+        .build());
+    Assert.assertEquals(5L, inFlight.get().getTime());
+    Assert.assertNull(handler.methodId(CLIENT_METHOD));
+
+    // Requests not yet written wait for the next connection
+    handler.channelInactive(context);
+    Assert.assertFalse(unbound.isDone());
+
+    // Cancellations go to the server the request was written to
+    Channel next = Mockito.mock(Channel.class);
+    handler.setChannel(next);
+    EnvelopeFuture<TimeResponse> cancelled = handler.newProvisionalResponse(CLIENT_METHOD);
+    cancelled.bind(draining);
+    cancelled.cancel(true);
+    Mockito.verify(draining).writeAndFlush(Mockito.any());
+    Mockito.verify(next, Mockito.never()).writeAndFlush(Mockito.any());
+  }
 }
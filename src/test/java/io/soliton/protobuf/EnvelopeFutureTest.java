@@ -115,6 +115,9 @@ public class EnvelopeFutureTest {
 
       @Override
       public void onFailure(Throwable t) {
+        Assert.assertTrue(t instanceof RpcException);
+        Assert.assertEquals(ErrorCode.OVERLOADED, ((RpcException) t).code());
+        Assert.assertEquals(100L, ((RpcException) t).retryAfterMillis());
         Assert.assertTrue(t.getMessage().contains("OMGWTF"));
         latch.countDown();
       }
@@ -123,6 +126,8 @@ public class EnvelopeFutureTest {
         new NullClientLogger());
     Control control = Control.newBuilder()
         .setError("OMGWTF")
+        .setErrorCode(ErrorCode.OVERLOADED)
+        .setRetryAfterMillis(100L)
         .build();
     Envelope response = Envelope.newBuilder()
         .setControl(control)
@@ -16,25 +16,37 @@
 
 package io.soliton.protobuf;
 
+import io.soliton.protobuf.metrics.MethodMetrics;
+import io.soliton.protobuf.metrics.RpcMetrics;
 import io.soliton.protobuf.testing.TimeRequest;
 import io.soliton.protobuf.testing.TimeResponse;
 import io.soliton.protobuf.testing.TimeService;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.GenericFutureListener;
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for {@link io.soliton.protobuf.EnvelopeServerHandler}
@@ -49,6 +61,16 @@ public class EnvelopeServerHandlerTest {
       super(services, serverLogger);
     }
 
+    public IdentityServerHandler(ServiceGroup services, ServerLogger serverLogger,
+        AdmissionController admissionController) {
+      super(services, serverLogger, admissionController);
+    }
+
+    public IdentityServerHandler(ServiceGroup services, ServerLogger serverLogger,
+        AdmissionController admissionController, RpcMetrics metrics) {
+      super(services, serverLogger, admissionController, metrics);
+    }
+
     @Override
     protected Envelope convertRequest(Envelope request) {
       return request;
@@ -60,6 +82,24 @@ public class EnvelopeServerHandlerTest {
     }
   }
 
+  private Channel channel;
+  private ChannelHandlerContext context;
+
+  @Before
+  public void setUp() {
+    channel = Mockito.mock(Channel.class);
+    Mockito.when(channel.writeAndFlush(Mockito.any()))
+        .thenReturn(Mockito.mock(ChannelFuture.class));
+    context = Mockito.mock(ChannelHandlerContext.class);
+    Mockito.when(context.channel()).thenReturn(channel);
+  }
+
+  private static ServiceGroup serviceGroup(Service service) {
+    ServiceGroup services = new DefaultServiceGroup();
+    services.addService(service);
+    return services;
+  }
+
   @Test
   public void testNormalExecution() throws Exception {
     Envelope request = Envelope.newBuilder()
@@ -69,16 +109,13 @@ public class EnvelopeServerHandlerTest {
         .setPayload(TimeRequest.newBuilder().setTimezone("UTC").build().toByteString())
         .build();
 
-    Channel channel = Mockito.mock(Channel.class);
-    ChannelHandlerContext context = Mockito.mock(ChannelHandlerContext.class);
-    Mockito.when(context.channel()).thenReturn(channel);
 
     final CountDownLatch latch = new CountDownLatch(1);
     final ServerMethod<TimeRequest, TimeResponse> serverMethod =
         new ServerMethod<TimeRequest, TimeResponse>() {
           @Override
           public String name() {
-            return null;
+            return "GetTime";
           }
 
           @Override
@@ -112,8 +149,10 @@ public class EnvelopeServerHandlerTest {
     Service service = Mockito.mock(Service.class);
     Mockito.when(service.fullName()).thenReturn("soliton.piezo.testing.TimeService");
     Mockito.when(service.lookup(Mockito.anyString())).thenAnswer(answer);
-    ServiceGroup services = new DefaultServiceGroup();
-    services.addService(service);
+    Mockito.when(service.methods()).thenReturn(
+        ImmutableMap.<String, ServerMethod<? extends Message, ? extends Message>>of(
+            "GetTime", serverMethod));
+    ServiceGroup services = serviceGroup(service);
     EnvelopeServerHandler handler = new IdentityServerHandler(services, new NullServerLogger());
 
     handler.channelRead0(context, request);
@@ -131,9 +170,6 @@ public class EnvelopeServerHandlerTest {
         .setPayload(TimeRequest.newBuilder().setTimezone("UTC").build().toByteString())
         .build();
 
-    Channel channel = Mockito.mock(Channel.class);
-    ChannelHandlerContext context = Mockito.mock(ChannelHandlerContext.class);
-    Mockito.when(context.channel()).thenReturn(channel);
 
     final ListenableFuture<TimeResponse> future = Mockito.mock(ListenableFuture.class);
     Mockito.when(future.cancel(Mockito.anyBoolean())).thenReturn(true);
@@ -142,7 +178,7 @@ public class EnvelopeServerHandlerTest {
         new ServerMethod<TimeRequest, TimeResponse>() {
           @Override
           public String name() {
-            return null;
+            return "GetTime";
           }
 
           @Override
@@ -174,8 +210,10 @@ public class EnvelopeServerHandlerTest {
     Service service = Mockito.mock(Service.class);
     Mockito.when(service.fullName()).thenReturn("soliton.piezo.testing.TimeService");
     Mockito.when(service.lookup(Mockito.anyString())).thenAnswer(answer);
-    ServiceGroup services = new DefaultServiceGroup();
-    services.addService(service);
+    Mockito.when(service.methods()).thenReturn(
+        ImmutableMap.<String, ServerMethod<? extends Message, ? extends Message>>of(
+            "GetTime", serverMethod));
+    ServiceGroup services = serviceGroup(service);
     EnvelopeServerHandler handler = new IdentityServerHandler(services, new NullServerLogger());
 
     handler.channelRead0(context, request);
@@ -203,9 +241,6 @@ public class EnvelopeServerHandlerTest {
         .setRequestId(1L)
         .setService("Unknown")
         .build();
-    Channel channel = Mockito.mock(Channel.class);
-    ChannelHandlerContext context = Mockito.mock(ChannelHandlerContext.class);
-    Mockito.when(context.channel()).thenReturn(channel);
 
     EnvelopeServerHandler handler = new IdentityServerHandler(
         new DefaultServiceGroup(), new NullServerLogger());
@@ -230,12 +265,8 @@ public class EnvelopeServerHandlerTest {
         .setService(timeService.fullName())
         .setMethod("Unknown")
         .build();
-    Channel channel = Mockito.mock(Channel.class);
-    ChannelHandlerContext context = Mockito.mock(ChannelHandlerContext.class);
-    Mockito.when(context.channel()).thenReturn(channel);
 
-    ServiceGroup services = new DefaultServiceGroup();
-    services.addService(timeService);
+    ServiceGroup services = serviceGroup(timeService);
 
     EnvelopeServerHandler handler = new IdentityServerHandler(services, new NullServerLogger());
     handler.channelRead0(context, request);
@@ -250,4 +281,369 @@ public class EnvelopeServerHandlerTest {
     Assert.assertTrue(response.getControl().hasError());
     Assert.assertTrue(response.getControl().getError().contains("method"));
   }
+
+  @Test
+  public void testOverloaded() throws Exception {
+    Service timeService = TimeService.newService(new TimeServer());
+    Envelope request = Envelope.newBuilder()
+        .setRequestId(1L)
+        .setService(timeService.fullName())
+        .setMethod("GetTime")
+        .setPayload(TimeRequest.newBuilder().setTimezone("UTC").build().toByteString())
+        .build();
+
+    ServiceGroup services = serviceGroup(timeService);
+
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(1);
+    Assert.assertTrue(limiter.tryAcquire());
+    AdmissionController admissionController = AdmissionController.newBuilder()
+        .setServiceLimiter(timeService.fullName(), limiter)
+        .setRetryAfter(250, TimeUnit.MILLISECONDS)
+        .build();
+
+    EnvelopeServerHandler handler = new IdentityServerHandler(services, new NullServerLogger(),
+        admissionController);
+    handler.channelRead0(context, request);
+
+    ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+    Mockito.verify(channel).writeAndFlush(captor.capture());
+
+    Object captured = captor.getValue();
+    Assert.assertTrue(captured instanceof Envelope);
+    Envelope response = (Envelope) captured;
+    Assert.assertEquals(1L, response.getRequestId());
+    Assert.assertTrue(response.getControl().hasError());
+    Assert.assertEquals(ErrorCode.OVERLOADED, response.getControl().getErrorCode());
+    Assert.assertEquals(250L, response.getControl().getRetryAfterMillis());
+    Assert.assertTrue(handler.pendingRequests().isEmpty());
+    Assert.assertEquals(1, limiter.inFlight());
+  }
+
+  @Test
+  public void testMethodIdentifiers() throws Exception {
+    Service timeService = TimeService.newService(new TimeServer());
+    ByteString payload = TimeRequest.newBuilder().setTimezone("UTC").build().toByteString();
+
+    ServiceGroup services = serviceGroup(timeService);
+    EnvelopeServerHandler handler = new IdentityServerHandler(services, new NullServerLogger());
+
+    handler.channelRead0(context, Envelope.newBuilder()
+        .setRequestId(1L)
+        .setService(timeService.fullName())
+        .setMethod("GetTime")
+        .setPayload(payload)
+        .build());
+    ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+    Mockito.verify(channel, Mockito.timeout(1000)).writeAndFlush(captor.capture());
+    Envelope response = (Envelope) captor.getValue();
+    Assert.assertFalse(response.hasControl());
+    Assert.assertTrue(response.hasMethodId());
+
+    handler.channelRead0(context, Envelope.newBuilder()
+        .setRequestId(2L)
+        .setMethodId(response.getMethodId())
+        .setPayload(payload)
+        .build());
+    Mockito.verify(channel, Mockito.timeout(1000).times(2)).writeAndFlush(captor.capture());
+    response = (Envelope) captor.getValue();
+    Assert.assertEquals(2L, response.getRequestId());
+    Assert.assertFalse(response.hasControl());
+    Assert.assertFalse(response.hasMethodId());
+
+    handler.channelRead0(context, Envelope.newBuilder()
+        .setRequestId(3L)
+        .setMethodId(response.getMethodId() + 1000)
+        .setPayload(payload)
+        .build());
+    Mockito.verify(channel, Mockito.times(3)).writeAndFlush(captor.capture());
+    response = (Envelope) captor.getValue();
+    Assert.assertEquals(3L, response.getRequestId());
+    Assert.assertTrue(response.getControl().hasError());
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    Service service = TimeService.newService(new TimeService.Interface() {
+
+      @Override
+      public ListenableFuture<TimeResponse> getTime(TimeRequest request) {
+        return Futures.immediateFailedFuture(new IllegalStateException("OMGWTF"));
+      }
+    });
+    Envelope request = Envelope.newBuilder()
+        .setRequestId(1L)
+        .setService(service.fullName())
+        .setMethod("GetTime")
+        .setPayload(TimeRequest.newBuilder().setTimezone("UTC").build().toByteString())
+        .build();
+
+    ServiceGroup services = serviceGroup(service);
+    EnvelopeServerHandler handler = new IdentityServerHandler(services, new NullServerLogger());
+
+    handler.channelRead0(context, request);
+    ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+    Mockito.verify(channel, Mockito.timeout(1000)).writeAndFlush(captor.capture());
+    Envelope response = (Envelope) captor.getValue();
+    Assert.assertEquals(1L, response.getRequestId());
+    Assert.assertEquals(ErrorCode.APPLICATION_ERROR, response.getControl().getErrorCode());
+    Assert.assertEquals("java.lang.IllegalStateException: OMGWTF",
+        response.getControl().getError());
+    Assert.assertFalse(response.getControl().hasErrorDetails());
+
+    handler.setIncludeStackTraces(true);
+    handler.channelRead0(context, request);
+    Mockito.verify(channel, Mockito.timeout(1000).times(2)).writeAndFlush(captor.capture());
+    response = (Envelope) captor.getValue();
+    Assert.assertTrue(response.getControl().getErrorDetails().contains("testFailure"));
+  }
+
+  @Test
+  public void testThrowingImplementation() throws Exception {
+    Service service = TimeService.newService(new TimeService.Interface() {
+
+      @Override
+      public ListenableFuture<TimeResponse> getTime(TimeRequest request) {
+        throw new IllegalStateException("OMGWTF");
+      }
+    });
+    Envelope request = Envelope.newBuilder()
+        .setRequestId(1L)
+        .setService(service.fullName())
+        .setMethod("GetTime")
+        .setPayload(TimeRequest.newBuilder().setTimezone("UTC").build().toByteString())
+        .build();
+
+    ServiceGroup services = serviceGroup(service);
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(1);
+    AdmissionController admissionController = AdmissionController.newBuilder()
+        .setServiceLimiter(service.fullName(), limiter)
+        .build();
+    EnvelopeServerHandler handler = new IdentityServerHandler(services, new NullServerLogger(),
+        admissionController);
+
+    // The permit of a throwing invocation is released, so the next one is admitted
+    for (int i = 1; i <= 2; i++) {
+      handler.channelRead0(context, request);
+      ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+      Mockito.verify(channel, Mockito.timeout(1000).times(i)).writeAndFlush(captor.capture());
+      Envelope response = (Envelope) captor.getValue();
+      Assert.assertEquals(ErrorCode.APPLICATION_ERROR, response.getControl().getErrorCode());
+    }
+    Assert.assertEquals(0, limiter.inFlight());
+    Assert.assertTrue(handler.pendingRequests().isEmpty());
+  }
+
+  @Test
+  public void testRpcExceptionWithoutMessage() throws Exception {
+    Service service = TimeService.newService(new TimeService.Interface() {
+
+      @Override
+      public ListenableFuture<TimeResponse> getTime(TimeRequest request) {
+        return Futures.immediateFailedFuture(new RpcException(ErrorCode.APPLICATION_ERROR, null));
+      }
+    });
+    Envelope request = Envelope.newBuilder()
+        .setRequestId(1L)
+        .setService(service.fullName())
+        .setMethod("GetTime")
+        .setPayload(TimeRequest.newBuilder().setTimezone("UTC").build().toByteString())
+        .build();
+
+    EnvelopeServerHandler handler = new IdentityServerHandler(serviceGroup(service),
+        new NullServerLogger());
+    handler.channelRead0(context, request);
+
+    ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+    Mockito.verify(channel, Mockito.timeout(1000)).writeAndFlush(captor.capture());
+    Envelope response = (Envelope) captor.getValue();
+    Assert.assertEquals(1L, response.getRequestId());
+    Assert.assertEquals(ErrorCode.APPLICATION_ERROR, response.getControl().getErrorCode());
+    Assert.assertEquals("APPLICATION_ERROR", response.getControl().getError());
+    Assert.assertTrue(handler.pendingRequests().isEmpty());
+  }
+
+  @Test
+  public void testCoalescedThrowingImplementation() throws Exception {
+    Service service = TimeService.newService(new TimeService.Interface() {
+
+      @Override
+      public ListenableFuture<TimeResponse> getTime(TimeRequest request) {
+        throw new IllegalStateException("OMGWTF");
+      }
+    });
+    Envelope request = Envelope.newBuilder()
+        .setRequestId(1L)
+        .setService(service.fullName())
+        .setMethod("GetTime")
+        .setPayload(TimeRequest.newBuilder().setTimezone("UTC").build().toByteString())
+        .build();
+
+    ServiceGroup services = serviceGroup(service);
+    EnvelopeServerHandler handler = new IdentityServerHandler(services, new NullServerLogger());
+    handler.setCoalescedMethods(ImmutableSet.of(service.fullName() + "/GetTime"));
+
+    // A throwing invocation doesn't leave later identical calls waiting on it
+    for (int i = 1; i <= 2; i++) {
+      handler.channelRead0(context, request);
+      ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+      Mockito.verify(channel, Mockito.timeout(1000).times(i)).writeAndFlush(captor.capture());
+      Envelope response = (Envelope) captor.getValue();
+      Assert.assertEquals(ErrorCode.APPLICATION_ERROR, response.getControl().getErrorCode());
+    }
+  }
+
+  @Test
+  public void testCoalescedInvocation() throws Exception {
+    final List<SettableFuture<TimeResponse>> invocations = Lists.newArrayList();
+    Service service = TimeService.newService(new TimeService.Interface() {
+
+      @Override
+      public ListenableFuture<TimeResponse> getTime(TimeRequest request) {
+        SettableFuture<TimeResponse> invocation = SettableFuture.create();
+        invocations.add(invocation);
+        return invocation;
+      }
+    });
+    ByteString payload = TimeRequest.newBuilder().setTimezone("UTC").build().toByteString();
+    ServiceGroup services = serviceGroup(service);
+    EnvelopeServerHandler handler = new IdentityServerHandler(services, new NullServerLogger());
+    handler.setCoalescedMethods(ImmutableSet.of(service.fullName() + "/GetTime"));
+
+    List<Channel> channels = Lists.newArrayList();
+    for (long requestId = 1; requestId <= 2; requestId++) {
+      Channel channel = Mockito.mock(Channel.class);
+      Mockito.when(channel.writeAndFlush(Mockito.any()))
+          .thenReturn(Mockito.mock(ChannelFuture.class));
+      ChannelHandlerContext context = Mockito.mock(ChannelHandlerContext.class);
+      Mockito.when(context.channel()).thenReturn(channel);
+      channels.add(channel);
+      handler.channelRead0(context, Envelope.newBuilder()
+          .setRequestId(requestId)
+          .setService(service.fullName())
+          .setMethod("GetTime")
+          .setPayload(payload)
+          .build());
+    }
+    Assert.assertEquals(1, invocations.size());
+
+    invocations.get(0).set(TimeResponse.newBuilder().setTime(1234L).build());
+    ByteString response = null;
+    for (int i = 0; i < channels.size(); i++) {
+      ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+      Mockito.verify(channels.get(i), Mockito.timeout(1000)).writeAndFlush(captor.capture());
+      Envelope envelope = (Envelope) captor.getValue();
+      Assert.assertEquals(i + 1, envelope.getRequestId());
+      if (response != null) {
+        // The response is serialized once
+        Assert.assertSame(response, envelope.getPayload());
+      }
+      response = envelope.getPayload();
+    }
+
+    // Later calls trigger a new invocation
+    handler.channelRead0(context, Envelope.newBuilder()
+        .setRequestId(3L)
+        .setService(service.fullName())
+        .setMethod("GetTime")
+        .setPayload(payload)
+        .build());
+    Assert.assertEquals(2, invocations.size());
+  }
+
+  @Test
+  public void testResponseCache() throws Exception {
+    final AtomicInteger invocations = new AtomicInteger();
+    Service service = TimeService.newService(new TimeService.Interface() {
+
+      @Override
+      public ListenableFuture<TimeResponse> getTime(TimeRequest request) {
+        invocations.incrementAndGet();
+        return Futures.immediateFuture(TimeResponse.newBuilder().setTime(1234L).build());
+      }
+    });
+    ServiceGroup services = serviceGroup(service);
+    ResponseCache responseCache = ResponseCache.newBuilder()
+        .addMethod(service.fullName(), "GetTime", 1, TimeUnit.MINUTES)
+        .build();
+    EnvelopeServerHandler handler = new IdentityServerHandler(services, new NullServerLogger());
+    handler.setResponseCache(responseCache);
+
+    Envelope request = Envelope.newBuilder()
+        .setRequestId(1L)
+        .setService(service.fullName())
+        .setMethod("GetTime")
+        .setPayload(TimeRequest.newBuilder().setTimezone("UTC").build().toByteString())
+        .build();
+    handler.channelRead0(context, request);
+    Mockito.verify(channel, Mockito.timeout(1000)).writeAndFlush(Mockito.any());
+
+    // Answered from the cache, before the handler returns
+    handler.channelRead0(context, request.toBuilder().setRequestId(2L).build());
+    ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+    Mockito.verify(channel, Mockito.times(2)).writeAndFlush(captor.capture());
+    Envelope response = (Envelope) captor.getValue();
+    Assert.assertEquals(2L, response.getRequestId());
+    Assert.assertEquals(1234L, TimeResponse.parseFrom(response.getPayload()).getTime());
+    Assert.assertEquals(1, invocations.get());
+    Assert.assertEquals(1, responseCache.stats().hitCount());
+
+    // Other payloads miss the cache
+    handler.channelRead0(context, request.toBuilder()
+        .setRequestId(3L)
+        .setPayload(TimeRequest.newBuilder().setTimezone("PST").build().toByteString())
+        .build());
+    Mockito.verify(channel, Mockito.timeout(1000).times(3)).writeAndFlush(Mockito.any());
+    Assert.assertEquals(2, invocations.get());
+  }
+
+  @Test
+  public void testResponseCacheHitMetrics() throws Exception {
+    // Completes the writes as soon as they are observed
+    final ChannelFuture written = Mockito.mock(ChannelFuture.class);
+    Mockito.when(written.isSuccess()).thenReturn(true);
+    Mockito.when(written.addListener(Mockito.<GenericFutureListener>any()))
+        .thenAnswer(new Answer<ChannelFuture>() {
+
+          @Override
+          @SuppressWarnings("unchecked")
+          public ChannelFuture answer(InvocationOnMock invocation) throws Throwable {
+            ((GenericFutureListener<ChannelFuture>) invocation.getArguments()[0])
+                .operationComplete(written);
+            return written;
+          }
+        });
+    Mockito.when(channel.writeAndFlush(Mockito.any())).thenReturn(written);
+
+    Service service = TimeService.newService(new TimeService.Interface() {
+
+      @Override
+      public ListenableFuture<TimeResponse> getTime(TimeRequest request) {
+        return Futures.immediateFuture(TimeResponse.newBuilder().setTime(1234L).build());
+      }
+    });
+    RpcMetrics metrics = RpcMetrics.create();
+    EnvelopeServerHandler handler = new IdentityServerHandler(serviceGroup(service),
+        metrics.decorate(new NullServerLogger()), AdmissionController.unlimited(), metrics);
+    handler.setResponseCache(ResponseCache.newBuilder()
+        .addMethod(service.fullName(), "GetTime", 1, TimeUnit.MINUTES)
+        .build());
+
+    Envelope request = Envelope.newBuilder()
+        .setRequestId(1L)
+        .setService(service.fullName())
+        .setMethod("GetTime")
+        .setPayload(TimeRequest.newBuilder().setTimezone("UTC").build().toByteString())
+        .build();
+    handler.channelRead0(context, request);
+    Mockito.verify(channel, Mockito.timeout(1000)).writeAndFlush(Mockito.any());
+    handler.channelRead0(context, request.toBuilder().setRequestId(2L).build());
+    Mockito.verify(channel, Mockito.times(2)).writeAndFlush(Mockito.any());
+
+    MethodMetrics.Snapshot snapshot = metrics.forMethod(service.fullName(), "GetTime").snapshot();
+    Assert.assertEquals(2, snapshot.calls());
+    Assert.assertEquals(2, snapshot.successes());
+    Assert.assertEquals(2, snapshot.latency().count());
+    Assert.assertEquals(2 * request.getPayload().size(), snapshot.requestBytes());
+    Assert.assertEquals(0, snapshot.inFlight());
+  }
 }
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import io.soliton.protobuf.testing.TestingSingleFile;
+import io.soliton.protobuf.testing.TimeRequest;
+import io.soliton.protobuf.testing.TimeService;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.Message;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link HedgingClient}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class HedgingClientTest {
+
+  private static final TestingSingleFile.DnsRequest REQUEST =
+      TestingSingleFile.DnsRequest.newBuilder().setDomain("soliton.io").build();
+  private static final TestingSingleFile.DnsResponse RESPONSE =
+      TestingSingleFile.DnsResponse.newBuilder().setIpAddress(1234).build();
+
+  private static class RecordingClient implements Client {
+
+    private final List<SettableFuture<Message>> calls =
+        Collections.synchronizedList(Lists.<SettableFuture<Message>>newArrayList());
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <O extends Message> ListenableFuture<O> encodeMethodCall(ClientMethod<O> method,
+        Message input) {
+      SettableFuture<Message> call = SettableFuture.create();
+      calls.add(call);
+      return (ListenableFuture<O>) call;
+    }
+  }
+
+  private static void awaitCalls(RecordingClient client, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (client.calls.size() < count) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void testHedge() throws Exception {
+    RecordingClient primary = new RecordingClient();
+    RecordingClient secondary = new RecordingClient();
+    HedgingClient client = HedgingClient.newBuilder(primary, secondary)
+        .addService(TestingSingleFile.getDescriptor().findServiceByName("Dns"))
+        .setMinHedgingDelay(10, TimeUnit.MILLISECONDS)
+        .build();
+
+    ListenableFuture<TestingSingleFile.DnsResponse> response =
+        TestingSingleFile.Dns.newStub(client).resolve(REQUEST);
+    Assert.assertEquals(1, primary.calls.size());
+    awaitCalls(secondary, 1);
+
+    secondary.calls.get(0).set(RESPONSE);
+    Assert.assertEquals(RESPONSE, response.get());
+    // The slower attempt is cancelled
+    Assert.assertTrue(primary.calls.get(0).isCancelled());
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+    RecordingClient primary = new RecordingClient();
+    RecordingClient secondary = new RecordingClient();
+    HedgingClient client = HedgingClient.newBuilder(primary, secondary)
+        .addMethod("soliton.piezo.testing.Dns", "Resolve")
+        .setMinHedgingDelay(1, TimeUnit.MINUTES)
+        .build();
+
+    ListenableFuture<TestingSingleFile.DnsResponse> response =
+        TestingSingleFile.Dns.newStub(client).resolve(REQUEST);
+    primary.calls.get(0).setException(new Exception("OMGWTF"));
+    Assert.assertEquals(1, secondary.calls.size());
+    secondary.calls.get(0).set(RESPONSE);
+    Assert.assertEquals(RESPONSE, response.get());
+  }
+
+  @Test
+  public void testNoRetryOnServerError() throws Exception {
+    RecordingClient primary = new RecordingClient();
+    RecordingClient secondary = new RecordingClient();
+    HedgingClient client = HedgingClient.newBuilder(primary, secondary)
+        .addMethod("soliton.piezo.testing.Dns", "Resolve")
+        .setMinHedgingDelay(1, TimeUnit.MINUTES)
+        .build();
+
+    ListenableFuture<TestingSingleFile.DnsResponse> response =
+        TestingSingleFile.Dns.newStub(client).resolve(REQUEST);
+    primary.calls.get(0).setException(new RpcException(ErrorCode.INVALID_REQUEST, "OMGWTF"));
+    try {
+      response.get();
+      Assert.fail();
+    } catch (ExecutionException ee) {
+      Assert.assertEquals(ErrorCode.INVALID_REQUEST, ((RpcException) ee.getCause()).code());
+    }
+    Assert.assertTrue(secondary.calls.isEmpty());
+    Assert.assertEquals(100, client.budget());
+  }
+
+  @Test
+  public void testRetryWhenOverloaded() throws Exception {
+    RecordingClient primary = new RecordingClient();
+    RecordingClient secondary = new RecordingClient();
+    HedgingClient client = HedgingClient.newBuilder(primary, secondary)
+        .addMethod("soliton.piezo.testing.Dns", "Resolve")
+        .setMinHedgingDelay(1, TimeUnit.MINUTES)
+        .build();
+
+    ListenableFuture<TestingSingleFile.DnsResponse> response =
+        TestingSingleFile.Dns.newStub(client).resolve(REQUEST);
+    long failedAt = System.nanoTime();
+    primary.calls.get(0).setException(
+        new RpcException(ErrorCode.OVERLOADED, "Server overloaded", null, 50L));
+    // The retry waits for the delay advised by the server
+    Assert.assertTrue(secondary.calls.isEmpty());
+    awaitCalls(secondary, 1);
+    Assert.assertTrue(System.nanoTime() - failedAt >= TimeUnit.MILLISECONDS.toNanos(50));
+    secondary.calls.get(0).set(RESPONSE);
+    Assert.assertEquals(RESPONSE, response.get());
+  }
+
+  @Test
+  public void testBudgetExhausted() throws Exception {
+    RecordingClient primary = new RecordingClient();
+    HedgingClient client = HedgingClient.newBuilder(primary)
+        .addMethod("soliton.piezo.testing.Dns", "Resolve")
+        .setBudget(0, 0)
+        .build();
+    Assert.assertEquals(0, client.budget());
+
+    ListenableFuture<TestingSingleFile.DnsResponse> response =
+        TestingSingleFile.Dns.newStub(client).resolve(REQUEST);
+    primary.calls.get(0).setException(new Exception("OMGWTF"));
+    try {
+      response.get();
+      Assert.fail();
+    } catch (ExecutionException ee) {
+      Assert.assertEquals("OMGWTF", ee.getCause().getMessage());
+    }
+    Assert.assertEquals(1, primary.calls.size());
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    RecordingClient primary = new RecordingClient();
+    HedgingClient client = HedgingClient.newBuilder(primary)
+        .addMethod("soliton.piezo.testing.Dns", "Resolve")
+        .build();
+    ListenableFuture<TestingSingleFile.DnsResponse> response =
+        TestingSingleFile.Dns.newStub(client).resolve(REQUEST);
+    response.cancel(true);
+    Assert.assertTrue(primary.calls.get(0).isCancelled());
+  }
+
+  @Test
+  public void testNotIdempotent() throws Exception {
+    RecordingClient primary = new RecordingClient();
+    HedgingClient client = HedgingClient.newBuilder(primary)
+        .addService(TestingSingleFile.getDescriptor().findServiceByName("Dns"))
+        .setMinHedgingDelay(0, TimeUnit.MILLISECONDS)
+        .build();
+    TimeService.newStub(client).getTime(TimeRequest.getDefaultInstance());
+    primary.calls.get(0).setException(new Exception("OMGWTF"));
+    Thread.sleep(20);
+    Assert.assertEquals(1, primary.calls.size());
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import org.mockito.Mockito;
+
+/**
+ * Mock channels and connections shared by the unit tests of clients.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public final class MockChannels {
+
+  /**
+   * Non-instantiable class.
+   */
+  private MockChannels() {
+  }
+
+  /**
+   * Returns a reconnect manager whose connection is the given mock channel.
+   */
+  public static ReconnectManager connectedManager(final Channel channel) {
+    Mockito.when(channel.isActive()).thenReturn(true);
+    Mockito.when(channel.isWritable()).thenReturn(true);
+    Mockito.when(channel.config()).thenReturn(Mockito.mock(ChannelConfig.class));
+    Mockito.when(channel.alloc()).thenReturn(UnpooledByteBufAllocator.DEFAULT);
+    Mockito.when(channel.pipeline()).thenReturn(Mockito.mock(ChannelPipeline.class));
+    Mockito.when(channel.closeFuture()).thenReturn(
+        new DefaultChannelPromise(channel, ImmediateEventExecutor.INSTANCE));
+    ReconnectManager reconnectManager = new ReconnectManager(new ReconnectManager.Connector() {
+      @Override
+      public ChannelFuture connect() {
+        return new DefaultChannelPromise(channel, ImmediateEventExecutor.INSTANCE).setSuccess();
+      }
+    }, Mockito.mock(EventLoopGroup.class), ReconnectPolicy.defaults());
+    reconnectManager.connect();
+    return reconnectManager;
+  }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import com.google.common.util.concurrent.SettableFuture;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link ReconnectManager}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class ReconnectManagerTest {
+
+  private NioEventLoopGroup eventLoopGroup;
+  private BlockingQueue<EmbeddedChannel> channels;
+  private ReconnectManager.Connector connector;
+
+  @Before
+  public void setUp() {
+    eventLoopGroup = new NioEventLoopGroup(1);
+    channels = new LinkedBlockingQueue<>();
+    connector = new ReconnectManager.Connector() {
+      @Override
+      public ChannelFuture connect() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        channels.add(channel);
+        return channel.newSucceededFuture();
+      }
+    };
+  }
+
+  @After
+  public void tearDown() {
+    eventLoopGroup.shutdownGracefully();
+  }
+
+  @Test
+  public void testWriteWhenConnected() throws Exception {
+    ReconnectManager manager = new ReconnectManager(connector, eventLoopGroup,
+        ReconnectPolicy.defaults());
+    Channel channel = manager.connect().get();
+
+    RecordingWrite write = new RecordingWrite();
+    manager.write(write);
+    Assert.assertSame(channel, write.channel.get());
+    Assert.assertNull(write.cause.get());
+  }
+
+  @Test
+  public void testBufferAndReconnect() throws Exception {
+    ReconnectPolicy policy = ReconnectPolicy.newBuilder()
+        .setInitialBackoff(0, TimeUnit.MILLISECONDS)
+        .build();
+    ReconnectManager manager = new ReconnectManager(connector, eventLoopGroup, policy);
+    manager.connect().get();
+    EmbeddedChannel first = channels.take();
+    first.close();
+
+    RecordingWrite write = new RecordingWrite();
+    manager.write(write);
+
+    EmbeddedChannel second = channels.poll(5, TimeUnit.SECONDS);
+    Assert.assertNotNull(second);
+    Assert.assertNotSame(first, second);
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (write.channel.get() == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertSame(second, write.channel.get());
+    Assert.assertEquals(0, manager.pendingWriteCount());
+  }
+
+  @Test
+  public void testGoAway() throws Exception {
+    ReconnectManager manager = new ReconnectManager(connector, eventLoopGroup,
+        ReconnectPolicy.defaults());
+    manager.connect().get();
+    EmbeddedChannel first = channels.take();
+
+    manager.goAway(first);
+    EmbeddedChannel second = channels.poll(5, TimeUnit.SECONDS);
+    Assert.assertNotNull(second);
+    Assert.assertSame(second, manager.channel());
+
+    // The server closing the former channel doesn't disrupt the new one
+    first.close();
+    RecordingWrite write = new RecordingWrite();
+    manager.write(write);
+    Assert.assertSame(second, write.channel.get());
+    Assert.assertNull(channels.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testFailFastWhenDisconnected() throws Exception {
+    ReconnectPolicy policy = ReconnectPolicy.newBuilder()
+        .setInitialBackoff(1, TimeUnit.SECONDS)
+        .setBufferWhileDisconnected(false)
+        .build();
+    ReconnectManager manager = new ReconnectManager(connector, eventLoopGroup, policy);
+    manager.connect().get();
+    channels.take().close();
+
+    RecordingWrite write = new RecordingWrite();
+    manager.write(write);
+    Assert.assertNull(write.channel.get());
+    Assert.assertNotNull(write.cause.get());
+  }
+
+  @Test
+  public void testBoundedQueue() throws Exception {
+    ReconnectPolicy policy = ReconnectPolicy.newBuilder()
+        .setInitialBackoff(1, TimeUnit.SECONDS)
+        .setMaxPendingRequests(1)
+        .build();
+    ReconnectManager manager = new ReconnectManager(connector, eventLoopGroup, policy);
+    manager.connect().get();
+    channels.take().close();
+
+    RecordingWrite first = new RecordingWrite();
+    RecordingWrite second = new RecordingWrite();
+    manager.write(first);
+    manager.write(second);
+    Assert.assertNull(first.cause.get());
+    Assert.assertNotNull(second.cause.get());
+    Assert.assertEquals(1, manager.pendingWriteCount());
+
+    manager.close();
+    Assert.assertNotNull(first.cause.get());
+    Assert.assertEquals(0, manager.pendingWriteCount());
+  }
+
+  @Test
+  public void testMaxOutstandingRequests() throws Exception {
+    FlowControlPolicy flowControlPolicy = FlowControlPolicy.newBuilder()
+        .setMaxOutstandingRequests(1)
+        .build();
+    ReconnectManager manager = new ReconnectManager(connector, eventLoopGroup,
+        ReconnectPolicy.defaults(), flowControlPolicy);
+    manager.connect().get();
+
+    SettableFuture<Void> firstResponse = SettableFuture.create();
+    RecordingWrite first = new RecordingWrite();
+    RecordingWrite second = new RecordingWrite();
+    manager.write(first, firstResponse);
+    manager.write(second, SettableFuture.<Void>create());
+    Assert.assertNotNull(first.channel.get());
+    Assert.assertNull(second.channel.get());
+    Assert.assertEquals(1, manager.pendingWriteCount());
+
+    firstResponse.set(null);
+    Assert.assertNotNull(second.channel.get());
+    Assert.assertEquals(0, manager.pendingWriteCount());
+    Assert.assertEquals(1, manager.outstandingRequestCount());
+  }
+
+  @Test
+  public void testDisconnectWhileQueued() throws Exception {
+    ReconnectPolicy policy = ReconnectPolicy.newBuilder()
+        .setInitialBackoff(0, TimeUnit.MILLISECONDS)
+        .build();
+    FlowControlPolicy flowControlPolicy = FlowControlPolicy.newBuilder()
+        .setMaxOutstandingRequests(1)
+        .build();
+    ReconnectManager manager = new ReconnectManager(connector, eventLoopGroup, policy,
+        flowControlPolicy);
+    manager.connect().get();
+    EmbeddedChannel first = channels.take();
+
+    SettableFuture<Void> firstResponse = SettableFuture.create();
+    RecordingWrite inFlight = new RecordingWrite();
+    RecordingWrite queued = new RecordingWrite();
+    manager.write(inFlight, firstResponse);
+    manager.write(queued, SettableFuture.<Void>create());
+    Assert.assertSame(first, inFlight.channel.get());
+    Assert.assertEquals(1, manager.pendingWriteCount());
+
+    // The call in flight fails with its connection, the queued one is carried over
+    first.close();
+    firstResponse.setException(new Exception("Channel was closed by the remote end"));
+    EmbeddedChannel second = channels.poll(5, TimeUnit.SECONDS);
+    Assert.assertNotNull(second);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (queued.channel.get() == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertSame(second, queued.channel.get());
+    Assert.assertNull(queued.cause.get());
+  }
+
+  @Test
+  public void testDisconnectWhileQueuedWithoutBuffering() throws Exception {
+    ReconnectPolicy policy = ReconnectPolicy.newBuilder()
+        .setInitialBackoff(1, TimeUnit.SECONDS)
+        .setBufferWhileDisconnected(false)
+        .build();
+    FlowControlPolicy flowControlPolicy = FlowControlPolicy.newBuilder()
+        .setMaxOutstandingRequests(1)
+        .build();
+    ReconnectManager manager = new ReconnectManager(connector, eventLoopGroup, policy,
+        flowControlPolicy);
+    manager.connect().get();
+
+    RecordingWrite queued = new RecordingWrite();
+    manager.write(new RecordingWrite(), SettableFuture.<Void>create());
+    manager.write(queued, SettableFuture.<Void>create());
+    Assert.assertEquals(1, manager.pendingWriteCount());
+
+    channels.take().close();
+    Assert.assertNull(queued.channel.get());
+    Assert.assertNotNull(queued.cause.get());
+    Assert.assertEquals(0, manager.pendingWriteCount());
+  }
+
+  @Test
+  public void testFailFastWhenSaturated() throws Exception {
+    FlowControlPolicy flowControlPolicy = FlowControlPolicy.newBuilder()
+        .setMaxOutstandingRequests(1)
+        .setFailFast(true)
+        .build();
+    ReconnectManager manager = new ReconnectManager(connector, eventLoopGroup,
+        ReconnectPolicy.defaults(), flowControlPolicy);
+    manager.connect().get();
+
+    RecordingWrite first = new RecordingWrite();
+    RecordingWrite second = new RecordingWrite();
+    manager.write(first, SettableFuture.<Void>create());
+    manager.write(second, SettableFuture.<Void>create());
+    Assert.assertNotNull(first.channel.get());
+    Assert.assertNotNull(second.cause.get());
+    Assert.assertEquals(0, manager.pendingWriteCount());
+  }
+
+  @Test
+  public void testResumeWhenWritable() throws Exception {
+    FlowControlPolicy flowControlPolicy = FlowControlPolicy.newBuilder()
+        .setWriteBufferWaterMarks(8, 16)
+        .build();
+    ReconnectManager manager = new ReconnectManager(connector, eventLoopGroup,
+        ReconnectPolicy.defaults(), flowControlPolicy);
+    EmbeddedChannel channel = (EmbeddedChannel) manager.connect().get();
+
+    channel.write(Unpooled.wrappedBuffer(new byte[32]));
+    Assert.assertFalse(channel.isWritable());
+
+    RecordingWrite write = new RecordingWrite();
+    manager.write(write, SettableFuture.<Void>create());
+    Assert.assertNull(write.channel.get());
+    Assert.assertEquals(1, manager.pendingWriteCount());
+
+    channel.flush();
+    channel.runPendingTasks();
+    Assert.assertTrue(channel.isWritable());
+    Assert.assertSame(channel, write.channel.get());
+    Assert.assertEquals(0, manager.pendingWriteCount());
+  }
+
+  private static final class RecordingWrite implements ReconnectManager.PendingWrite {
+
+    private final AtomicReference<Channel> channel = new AtomicReference<>();
+    private final AtomicReference<Throwable> cause = new AtomicReference<>();
+
+    @Override
+    public void write(Channel channel) {
+      this.channel.set(channel);
+    }
+
+    @Override
+    public void fail(Throwable cause) {
+      this.cause.set(cause);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ReconnectPolicy}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class ReconnectPolicyTest {
+
+  @Test
+  public void testExponentialBackoff() {
+    ReconnectPolicy policy = ReconnectPolicy.newBuilder()
+        .setInitialBackoff(100, TimeUnit.MILLISECONDS)
+        .setMaxBackoff(1, TimeUnit.SECONDS)
+        .setMultiplier(2.0)
+        .setJitter(0.0)
+        .build();
+    Assert.assertEquals(100L, policy.backoffMillis(0));
+    Assert.assertEquals(200L, policy.backoffMillis(1));
+    Assert.assertEquals(800L, policy.backoffMillis(3));
+    Assert.assertEquals(1000L, policy.backoffMillis(4));
+    Assert.assertEquals(1000L, policy.backoffMillis(100));
+  }
+
+  @Test
+  public void testJitter() {
+    ReconnectPolicy policy = ReconnectPolicy.newBuilder()
+        .setInitialBackoff(1000, TimeUnit.MILLISECONDS)
+        .setJitter(0.5)
+        .build();
+    for (int i = 0; i < 100; i++) {
+      long backoff = policy.backoffMillis(0);
+      Assert.assertTrue(backoff >= 500L && backoff <= 1500L);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.inprocess;
+
+import io.soliton.protobuf.AbstractEndToEndTest;
+import io.soliton.protobuf.Client;
+import io.soliton.protobuf.ErrorCode;
+import io.soliton.protobuf.RpcException;
+import io.soliton.protobuf.Server;
+import io.soliton.protobuf.TimeServer;
+import io.soliton.protobuf.testing.TimeRequest;
+import io.soliton.protobuf.testing.TimeResponse;
+import io.soliton.protobuf.testing.TimeService;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end tests for the in-process client-server pair.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class InProcessEndToEndTest extends AbstractEndToEndTest {
+
+  private InProcessServer server;
+
+  @Before
+  public void setUp() {
+    server = InProcessServer.create();
+  }
+
+  @Override
+  protected Server server() {
+    return server;
+  }
+
+  @Override
+  protected Client client() {
+    return InProcessClient.newClient(server).build();
+  }
+
+  @Test
+  public void testSerializeOnBoundary() throws Exception {
+    server.serviceGroup().addService(TimeService.newService(new TimeServer()));
+    InProcessClient client = InProcessClient.newClient(server)
+        .setSerializeOnBoundary(true)
+        .build();
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    Assert.assertTrue(TimeService.newStub(client).getTime(request)
+        .get(5, TimeUnit.SECONDS).getTime() > 0);
+  }
+
+  @Test
+  public void testSerializeOnBoundaryFailure() throws Exception {
+    server.serviceGroup().addService(TimeService.newService(new TimeService.Interface() {
+
+      @Override
+      public ListenableFuture<TimeResponse> getTime(TimeRequest request) {
+        throw new IllegalStateException("OMGWTF");
+      }
+    }));
+    InProcessClient client = InProcessClient.newClient(server)
+        .setSerializeOnBoundary(true)
+        .build();
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    try {
+      TimeService.newStub(client).getTime(request).get(5, TimeUnit.SECONDS);
+      Assert.fail();
+    } catch (ExecutionException ee) {
+      RpcException rpcException = (RpcException) ee.getCause();
+      Assert.assertEquals(ErrorCode.APPLICATION_ERROR, rpcException.code());
+      Assert.assertEquals("java.lang.IllegalStateException: OMGWTF", rpcException.getMessage());
+    }
+  }
+
+  @Test
+  public void testUnknownService() throws Exception {
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    try {
+      TimeService.newStub(client()).getTime(request).get(5, TimeUnit.SECONDS);
+      Assert.fail();
+    } catch (ExecutionException ee) {
+      Assert.assertEquals(ErrorCode.UNKNOWN_SERVICE, ((RpcException) ee.getCause()).code());
+    }
+
+    // Services added after the first call are picked up
+    server.serviceGroup().addService(TimeService.newService(new TimeServer()));
+    Assert.assertTrue(TimeService.newStub(client()).getTime(request)
+        .get(5, TimeUnit.SECONDS).getTime() > 0);
+  }
+}
@@ -17,6 +17,7 @@
 package io.soliton.protobuf.json;
 
 import io.soliton.protobuf.ClientMethod;
+import io.soliton.protobuf.MockChannels;
 import io.soliton.protobuf.NullClientLogger;
 import io.soliton.protobuf.testing.TimeRequest;
 import io.soliton.protobuf.testing.TimeResponse;
@@ -61,7 +62,7 @@ public class HttpJsonRpcClientTest {
     Mockito.when(success.isSuccess()).thenReturn(true);
     Mockito.when(channel.writeAndFlush(captor.capture())).thenReturn(success);
     JsonRpcClientHandler handler = new JsonRpcClientHandler();
-    HttpJsonRpcClient client = new HttpJsonRpcClient(channel, handler, "/rpc",
+    HttpJsonRpcClient client = new HttpJsonRpcClient(MockChannels.connectedManager(channel), handler, "/rpc",
         new NullClientLogger());
 
     ClientMethod<TimeResponse> method = Mockito.mock(ClientMethod.class);
@@ -95,7 +96,7 @@ public class HttpJsonRpcClientTest {
     Mockito.when(channel.writeAndFlush(captor.capture())).thenReturn(failure);
 
     JsonRpcClientHandler handler = new JsonRpcClientHandler();
-    HttpJsonRpcClient client = new HttpJsonRpcClient(channel, handler, "/rpc",
+    HttpJsonRpcClient client = new HttpJsonRpcClient(MockChannels.connectedManager(channel), handler, "/rpc",
         new NullClientLogger());
 
     ClientMethod<TimeResponse> method = Mockito.mock(ClientMethod.class);
@@ -18,6 +18,8 @@ package io.soliton.protobuf.json;
 
 import io.soliton.protobuf.Service;
 import io.soliton.protobuf.TimeServer;
+import io.soliton.protobuf.metrics.PrometheusExporter;
+import io.soliton.protobuf.metrics.RpcMetrics;
 import io.soliton.protobuf.testing.TimeService;
 
 import java.io.IOException;
@@ -34,6 +36,7 @@ import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
@@ -63,7 +66,10 @@ public class HttpJsonRpcServerTest {
 
   @BeforeClass
   public static void setUp() throws Exception {
-    server = HttpJsonRpcServer.newServer(findAvailablePort()).build();
+    server = HttpJsonRpcServer.newServer(findAvailablePort())
+        .setMetrics(RpcMetrics.create())
+        .setMetricsPath("/metrics")
+        .build();
     Service timeService = TimeService.newService(new TimeServer());
     server.serviceGroup().addService(timeService);
     server.startUp();
@@ -298,4 +304,23 @@ public class HttpJsonRpcServerTest {
     Assert.assertTrue(response.isError());
     Assert.assertEquals(400, response.error().status().code());
   }
+
+  @Test
+  public void testMetricsPath() throws IOException {
+    GenericUrl url = new GenericUrl();
+    url.setScheme("http");
+    url.setHost("localhost");
+    url.setPort(port);
+    url.setRawPath("/metrics");
+
+    HttpRequestFactory requestFactory = new NetHttpTransport().createRequestFactory();
+    HttpResponse httpResponse = requestFactory.buildGetRequest(url).execute();
+    Assert.assertEquals(HttpStatusCodes.STATUS_CODE_OK, httpResponse.getStatusCode());
+    Assert.assertEquals(PrometheusExporter.CONTENT_TYPE, httpResponse.getContentType());
+    String metrics = CharStreams.toString(
+        new InputStreamReader(httpResponse.getContent(), Charsets.UTF_8));
+    Assert.assertTrue(metrics.contains("# TYPE piezo_latency_seconds summary"));
+    Assert.assertTrue(metrics.contains("piezo_event_loop_pending_tasks{group=\"child\""));
+    Assert.assertTrue(metrics.contains("piezo_buffer_pool_used_bytes{pool=\"direct\"}"));
+  }
 }
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link Histogram}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class HistogramTest {
+
+  @Test
+  public void testBuckets() {
+    for (long value : new long[] {0, 1, 31, 32, 33, 63, 64, 1000, 123456789L}) {
+      int index = Histogram.bucketIndex(value);
+      Assert.assertTrue(value <= Histogram.bucketUpperBound(index));
+      if (index > 0) {
+        Assert.assertTrue(value > Histogram.bucketUpperBound(index - 1));
+      }
+    }
+    Assert.assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.bucketIndex(Long.MAX_VALUE >>> 23));
+  }
+
+  @Test
+  public void testPercentiles() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    Histogram.Snapshot snapshot = histogram.snapshot();
+    Assert.assertEquals(1000, snapshot.count());
+    Assert.assertEquals(1000000L, snapshot.max());
+    Assert.assertEquals(500500.0, snapshot.mean(), 0.001);
+
+    long median = snapshot.percentile(50);
+    Assert.assertTrue(median >= 500000L);
+    Assert.assertTrue(median <= 500000L * 1.04);
+
+    long p99 = snapshot.percentile(99);
+    Assert.assertTrue(p99 >= 990000L);
+    Assert.assertTrue(p99 <= 1000000L);
+    Assert.assertEquals(1000000L, snapshot.percentile(100));
+  }
+
+  @Test
+  public void testCountAtOrBelow() {
+    Histogram histogram = new Histogram();
+    histogram.record(5);
+    histogram.record(10);
+    histogram.record(-1);
+    Histogram.Snapshot snapshot = histogram.snapshot();
+    Assert.assertEquals(1, snapshot.countAtOrBelow(0));
+    Assert.assertEquals(2, snapshot.countAtOrBelow(9));
+    Assert.assertEquals(3, snapshot.countAtOrBelow(10));
+  }
+
+  @Test
+  public void testEmpty() {
+    Histogram.Snapshot snapshot = new Histogram().snapshot();
+    Assert.assertEquals(0, snapshot.count());
+    Assert.assertEquals(0, snapshot.percentile(99));
+    Assert.assertEquals(0.0, snapshot.mean(), 0.0);
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import com.google.common.collect.ImmutableMap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link PrometheusExporter}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class PrometheusExporterTest {
+
+  @Test
+  public void testScrape() {
+    RpcMetrics metrics = RpcMetrics.create();
+    MethodMetrics method = metrics.forMethod("soliton.\"Time\"Service", "GetTime");
+    method.calls.incrementAndGet();
+    method.latency.record(TimeUnit.MILLISECONDS.toNanos(2));
+
+    EventLoopGroup eventLoopGroup = new NioEventLoopGroup(2);
+    try {
+      PrometheusExporter exporter = new PrometheusExporter(metrics,
+          ImmutableMap.of("worker", eventLoopGroup));
+      String output = exporter.scrape();
+
+      String labels = "service=\"soliton.\\\"Time\\\"Service\",method=\"GetTime\"";
+      Assert.assertTrue(output.contains("# TYPE piezo_calls_total counter\n"));
+      Assert.assertTrue(output.contains("piezo_calls_total{" + labels + "} 1\n"));
+      Assert.assertTrue(output.contains("piezo_latency_seconds_count{" + labels + "} 1\n"));
+      Assert.assertTrue(output.contains("piezo_latency_seconds{" + labels + ",quantile=\"0.99\"}"));
+      Assert.assertTrue(output.contains(
+          "piezo_event_loop_pending_tasks{group=\"worker\",loop=\"1\"} 0\n"));
+      Assert.assertTrue(output.contains("piezo_unknown_services_total 0\n"));
+    } finally {
+      eventLoopGroup.shutdownGracefully();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.metrics;
+
+import io.soliton.protobuf.ClientLogger;
+import io.soliton.protobuf.ClientMethod;
+import io.soliton.protobuf.NullClientLogger;
+import io.soliton.protobuf.testing.TimeResponse;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Tests for {@link RpcMetrics}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class RpcMetricsTest {
+
+  @Test
+  public void testCallTimer() {
+    RpcMetrics metrics = RpcMetrics.create();
+    CallTimer timer = metrics.startCall("TimeService", "GetTime", 12);
+
+    MethodMetrics.Snapshot inFlight = metrics.forMethod("TimeService", "GetTime").snapshot();
+    Assert.assertEquals(1, inFlight.inFlight());
+    Assert.assertEquals(12, inFlight.requestBytes());
+
+    timer.dispatched();
+    SettableFuture<TimeResponse> response = SettableFuture.create();
+    timer.completeWith(response);
+    TimeResponse result = TimeResponse.newBuilder().setTime(42).build();
+    response.set(result);
+
+    RpcMetrics.Snapshot snapshot = metrics.snapshot();
+    Assert.assertEquals(1, snapshot.methods().size());
+    MethodMetrics.Snapshot method = snapshot.methods().get(0);
+    Assert.assertEquals("TimeService", method.service());
+    Assert.assertEquals("GetTime", method.method());
+    Assert.assertEquals(0, method.inFlight());
+    Assert.assertEquals(result.getSerializedSize(), method.responseBytes());
+    Assert.assertEquals(1, method.queueTime().count());
+    Assert.assertEquals(1, method.executionTime().count());
+    Assert.assertEquals(1, method.latency().count());
+  }
+
+  @Test
+  public void testDisabled() {
+    RpcMetrics metrics = RpcMetrics.disabled();
+    Assert.assertSame(CallTimer.noop(), metrics.startCall("TimeService", "GetTime", 12));
+    ClientLogger clientLogger = new NullClientLogger();
+    Assert.assertSame(clientLogger, metrics.decorate(clientLogger));
+    Assert.assertTrue(metrics.snapshot().methods().isEmpty());
+  }
+
+  @Test
+  public void testClientLogger() {
+    RpcMetrics metrics = RpcMetrics.create();
+    ClientLogger delegate = Mockito.mock(ClientLogger.class);
+    ClientLogger clientLogger = metrics.decorate(delegate);
+
+    ClientMethod<TimeResponse> method = Mockito.mock(ClientMethod.class);
+    Mockito.when(method.serviceName()).thenReturn("TimeService");
+    Mockito.when(method.name()).thenReturn("GetTime");
+
+    clientLogger.logMethodCall(method);
+    clientLogger.logSuccess(method);
+    clientLogger.logMethodCall(method);
+    clientLogger.logServerError("TimeService", "GetTime", new Exception());
+
+    MethodMetrics.Snapshot snapshot = metrics.forMethod("TimeService", "GetTime").snapshot();
+    Assert.assertEquals(2, snapshot.calls());
+    Assert.assertEquals(1, snapshot.successes());
+    Assert.assertEquals(1, snapshot.failures());
+    Mockito.verify(delegate, Mockito.times(2)).logMethodCall(method);
+    Mockito.verify(delegate).logSuccess(method);
+  }
+}
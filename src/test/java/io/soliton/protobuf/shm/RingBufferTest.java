@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.shm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for {@link RingBuffer}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class RingBufferTest {
+
+  private static RingBuffer newRingBuffer(int capacity) {
+    return new RingBuffer(ByteBuffer.allocateDirect(RingBuffer.regionSize(capacity)));
+  }
+
+  private static byte[] frame(int length, int seed) {
+    byte[] frame = new byte[length];
+    for (int i = 0; i < length; i++) {
+      frame[i] = (byte) (seed + i);
+    }
+    return frame;
+  }
+
+  @Test
+  public void testEmpty() {
+    Assert.assertNull(newRingBuffer(64).poll());
+  }
+
+  @Test
+  public void testFifo() {
+    RingBuffer ring = newRingBuffer(256);
+    Assert.assertTrue(ring.offer(frame(10, 1)));
+    Assert.assertTrue(ring.offer(frame(0, 2)));
+    Assert.assertTrue(ring.offer(frame(27, 3)));
+    Assert.assertArrayEquals(frame(10, 1), ring.poll());
+    Assert.assertArrayEquals(frame(0, 2), ring.poll());
+    Assert.assertArrayEquals(frame(27, 3), ring.poll());
+    Assert.assertNull(ring.poll());
+  }
+
+  @Test
+  public void testFull() {
+    RingBuffer ring = newRingBuffer(64);
+    // Each frame takes 16 bytes once prefixed and aligned
+    for (int i = 0; i < 4; i++) {
+      Assert.assertTrue(ring.offer(frame(12, i)));
+    }
+    Assert.assertFalse(ring.offer(frame(1, 4)));
+    Assert.assertArrayEquals(frame(12, 0), ring.poll());
+    Assert.assertTrue(ring.offer(frame(12, 4)));
+  }
+
+  @Test
+  public void testWrapAround() {
+    RingBuffer ring = newRingBuffer(64);
+    for (int i = 0; i < 100; i++) {
+      byte[] frame = frame(i % ring.maxFrameSize(), i);
+      Assert.assertTrue(ring.offer(frame));
+      Assert.assertArrayEquals(frame, ring.poll());
+    }
+    Assert.assertNull(ring.poll());
+  }
+
+  @Test
+  public void testPositionsSurviveRemapping() {
+    ByteBuffer region = ByteBuffer.allocateDirect(RingBuffer.regionSize(64));
+    RingBuffer producer = new RingBuffer(region);
+    Assert.assertTrue(producer.offer(frame(20, 1)));
+    Assert.assertTrue(producer.offer(frame(20, 2)));
+    RingBuffer consumer = new RingBuffer(region);
+    Assert.assertArrayEquals(frame(20, 1), consumer.poll());
+    Assert.assertArrayEquals(frame(20, 2), consumer.poll());
+    Assert.assertNull(consumer.poll());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFrameTooLarge() {
+    RingBuffer ring = newRingBuffer(64);
+    ring.offer(new byte[ring.maxFrameSize() + 1]);
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.shm;
+
+import io.soliton.protobuf.AbstractEndToEndTest;
+import io.soliton.protobuf.Client;
+import io.soliton.protobuf.ErrorCode;
+import io.soliton.protobuf.RpcException;
+import io.soliton.protobuf.Server;
+import io.soliton.protobuf.TimeServer;
+import io.soliton.protobuf.metrics.MethodMetrics;
+import io.soliton.protobuf.metrics.RpcMetrics;
+import io.soliton.protobuf.testing.TimeRequest;
+import io.soliton.protobuf.testing.TimeService;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end tests for the shared-memory client-server pair.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class SharedMemoryEndToEndTest extends AbstractEndToEndTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private SharedMemoryServer server;
+  private SharedMemoryClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    server = SharedMemoryServer.newServer(folder.newFile("piezo.shm"))
+        .setRingCapacity(1 << 16)
+        .build();
+    server.startAsync().awaitRunning();
+  }
+
+  @After
+  public void tearDown() {
+    if (client != null) {
+      client.close();
+    }
+    server.stopAsync().awaitTerminated();
+  }
+
+  @Override
+  protected Server server() {
+    return server;
+  }
+
+  @Override
+  protected Client client() throws IOException {
+    client = SharedMemoryClient.newClient(folder.getRoot().toPath().resolve("piezo.shm").toFile())
+        .setWaitStrategy(WaitStrategy.parking(100, TimeUnit.MICROSECONDS))
+        .build();
+    return client;
+  }
+
+  @Test
+  public void testUnknownService() throws Exception {
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    try {
+      TimeService.newStub(client()).getTime(request).get(5, TimeUnit.SECONDS);
+      Assert.fail();
+    } catch (ExecutionException ee) {
+      Assert.assertTrue(ee.getCause() instanceof RpcException);
+      Assert.assertEquals(ErrorCode.UNKNOWN_SERVICE, ((RpcException) ee.getCause()).code());
+    }
+  }
+
+  @Test
+  public void testMissingFile() {
+    try {
+      SharedMemoryClient.newClient(folder.getRoot().toPath().resolve("missing").toFile()).build();
+      Assert.fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    server.serviceGroup().addService(TimeService.newService(new TimeServer()));
+    TimeService.Interface stub = TimeService.newStub(client());
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    Assert.assertTrue(stub.getTime(request).get(5, TimeUnit.SECONDS).getTime() > 0);
+    client.close();
+    try {
+      stub.getTime(request).get(5, TimeUnit.SECONDS);
+      Assert.fail();
+    } catch (ExecutionException ee) {
+      Assert.assertTrue(ee.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void testSingleClient() throws Exception {
+    File file = folder.getRoot().toPath().resolve("piezo.shm").toFile();
+    SharedMemoryClient first = SharedMemoryClient.newClient(file).build();
+    try {
+      SharedMemoryClient.newClient(file).build();
+      Assert.fail();
+    } catch (IOException expected) {
+    }
+
+    // Another client may attach once the first one is closed
+    first.close();
+    client = SharedMemoryClient.newClient(file).build();
+  }
+
+  @Test
+  public void testRestart() throws Exception {
+    File file = folder.getRoot().toPath().resolve("piezo.shm").toFile();
+    SharedMemoryClient stale = SharedMemoryClient.newClient(file).build();
+    server.stopAsync().awaitTerminated();
+
+    // The file of the stale client is replaced rather than overwritten
+    server = SharedMemoryServer.newServer(file)
+        .setRingCapacity(1 << 16)
+        .build();
+    server.startAsync().awaitRunning();
+    server.serviceGroup().addService(TimeService.newService(new TimeServer()));
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    Assert.assertTrue(TimeService.newStub(client()).getTime(request)
+        .get(5, TimeUnit.SECONDS).getTime() > 0);
+    stale.close();
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    server.stopAsync().awaitTerminated();
+    RpcMetrics metrics = RpcMetrics.create();
+    server = SharedMemoryServer.newServer(folder.getRoot().toPath().resolve("piezo.shm").toFile())
+        .setRingCapacity(1 << 16)
+        .setMetrics(metrics)
+        .build();
+    server.startAsync().awaitRunning();
+    server.serviceGroup().addService(TimeService.newService(new TimeServer()));
+
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    TimeService.newStub(client()).getTime(request).get(5, TimeUnit.SECONDS);
+    MethodMetrics.Snapshot snapshot = metrics.forMethod("soliton.piezo.testing.TimeService",
+        "GetTime").snapshot();
+    Assert.assertEquals(1, snapshot.calls());
+    Assert.assertEquals(1, snapshot.successes());
+  }
+}
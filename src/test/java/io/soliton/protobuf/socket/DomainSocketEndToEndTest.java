@@ -0,0 +1,69 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.socket;
+
+import io.soliton.protobuf.AbstractEndToEndTest;
+import io.soliton.protobuf.Client;
+import io.soliton.protobuf.Server;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.unix.DomainSocketAddress;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * End-to-end tests for the socket-based client-server pair, communicating
+ * over a Unix domain socket.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class DomainSocketEndToEndTest extends AbstractEndToEndTest {
+
+  private static File socketFile;
+  private static RpcServer server;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    Assume.assumeTrue(Epoll.isAvailable());
+    socketFile = File.createTempFile("piezo", ".sock");
+    socketFile.delete();
+    server = RpcServer.newServer(new DomainSocketAddress(socketFile.getPath())).build();
+    server.startAsync().awaitRunning();
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    if (server != null) {
+      server.stopAsync().awaitTerminated();
+      socketFile.delete();
+    }
+  }
+
+  @Override
+  protected Server server() {
+    return server;
+  }
+
+  @Override
+  protected Client client() throws IOException {
+    return RpcClient.newClient(new DomainSocketAddress(socketFile.getPath())).build();
+  }
+}
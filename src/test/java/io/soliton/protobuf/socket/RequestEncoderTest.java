@@ -0,0 +1,90 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.socket;
+
+import io.soliton.protobuf.ClientMethod;
+import io.soliton.protobuf.Envelope;
+import io.soliton.protobuf.testing.TimeRequest;
+import io.soliton.protobuf.testing.TimeResponse;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Tests for {@link RequestEncoder}.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class RequestEncoderTest {
+
+  private static final TimeRequest REQUEST = TimeRequest.newBuilder()
+      .setTimezone("Europe/Paris")
+      .build();
+
+  private static ClientMethod<TimeResponse> mockMethod() {
+    ClientMethod<TimeResponse> method = Mockito.mock(ClientMethod.class);
+    Mockito.when(method.serviceName()).thenReturn("soliton.piezo.testing.TimeService");
+    Mockito.when(method.name()).thenReturn("GetTime");
+    return method;
+  }
+
+  private static byte[] encode(RequestEncoder encoder, long requestId,
+      ClientMethod<?> method, Integer methodId) {
+    ByteBuf buffer = encoder.encode(UnpooledByteBufAllocator.DEFAULT, requestId, method,
+        methodId, REQUEST);
+    try {
+      byte[] bytes = new byte[buffer.readableBytes()];
+      buffer.readBytes(bytes);
+      return bytes;
+    } finally {
+      buffer.release();
+    }
+  }
+
+  @Test
+  public void testEncodeByName() {
+    RequestEncoder encoder = new RequestEncoder();
+    ClientMethod<TimeResponse> method = mockMethod();
+    Envelope expected = Envelope.newBuilder()
+        .setRequestId(Long.MAX_VALUE)
+        .setService("soliton.piezo.testing.TimeService")
+        .setMethod("GetTime")
+        .setPayload(REQUEST.toByteString())
+        .build();
+    Assert.assertArrayEquals(expected.toByteArray(),
+        encode(encoder, Long.MAX_VALUE, method, null));
+
+    // The second request reuses the header encoded by the first
+    expected = expected.toBuilder().setRequestId(3).build();
+    Assert.assertArrayEquals(expected.toByteArray(), encode(encoder, 3, method, null));
+    Mockito.verify(method, Mockito.times(1)).name();
+  }
+
+  @Test
+  public void testEncodeByIdentifier() {
+    Envelope expected = Envelope.newBuilder()
+        .setRequestId(42)
+        .setPayload(REQUEST.toByteString())
+        .setMethodId(300)
+        .build();
+    Assert.assertArrayEquals(expected.toByteArray(),
+        encode(new RequestEncoder(), 42, mockMethod(), 300));
+  }
+}
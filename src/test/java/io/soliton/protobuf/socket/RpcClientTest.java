@@ -18,6 +18,7 @@ package io.soliton.protobuf.socket;
 
 import io.soliton.protobuf.ClientMethod;
 import io.soliton.protobuf.Envelope;
+import io.soliton.protobuf.MockChannels;
 import io.soliton.protobuf.NullClientLogger;
 import io.soliton.protobuf.testing.TimeRequest;
 import io.soliton.protobuf.testing.TimeResponse;
@@ -26,6 +27,8 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.DefaultChannelPromise;
@@ -36,6 +39,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -47,7 +51,7 @@ import java.util.concurrent.TimeUnit;
 public class RpcClientTest {
 
   @Test
-  public void testEncodeMethodCallSuccess() throws InvalidProtocolBufferException {
+  public void testEncodeMethodCallSuccess() throws IOException {
     Channel channel = Mockito.mock(Channel.class);
     ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
     ChannelFuture success = Mockito.mock(ChannelFuture.class);
@@ -55,7 +59,7 @@ public class RpcClientTest {
     Mockito.when(success.isSuccess()).thenReturn(true);
     Mockito.when(channel.writeAndFlush(captor.capture())).thenReturn(success);
     RpcClientHandler handler = new RpcClientHandler();
-    RpcClient client = new RpcClient(channel, handler, new NullClientLogger());
+    RpcClient client = new RpcClient(MockChannels.connectedManager(channel), handler, new NullClientLogger());
 
     ClientMethod<TimeResponse> method = Mockito.mock(ClientMethod.class);
     Mockito.when(method.serviceName()).thenReturn("TimeService");
@@ -67,8 +71,10 @@ public class RpcClientTest {
     Assert.assertEquals(1, handler.inFlightRequests().size());
 
     Object captured = captor.getValue();
-    Assert.assertTrue(captured instanceof Envelope);
-    Envelope request = (Envelope) captured;
+    Assert.assertTrue(captured instanceof ByteBuf);
+    Envelope request = Envelope.parseFrom(new ByteBufInputStream((ByteBuf) captured));
+    Assert.assertEquals("TimeService", request.getService());
+    Assert.assertEquals("GetTime", request.getMethod());
     Assert.assertTrue(request.hasPayload());
     TimeRequest timeRequest = TimeRequest.parseFrom(request.getPayload());
     Assert.assertEquals("UTC", timeRequest.getTimezone());
@@ -86,7 +92,7 @@ public class RpcClientTest {
     Mockito.when(channel.writeAndFlush(captor.capture())).thenReturn(failure);
 
     RpcClientHandler handler = new RpcClientHandler();
-    RpcClient client = new RpcClient(channel, handler, new NullClientLogger());
+    RpcClient client = new RpcClient(MockChannels.connectedManager(channel), handler, new NullClientLogger());
 
     ClientMethod<TimeResponse> method = Mockito.mock(ClientMethod.class);
     Mockito.when(method.serviceName()).thenReturn("TimeService");
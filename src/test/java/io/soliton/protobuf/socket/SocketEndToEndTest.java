@@ -18,13 +18,22 @@ package io.soliton.protobuf.socket;
 
 import io.soliton.protobuf.AbstractEndToEndTest;
 import io.soliton.protobuf.Client;
+import io.soliton.protobuf.KeepAlivePolicy;
 import io.soliton.protobuf.Server;
+import io.soliton.protobuf.TimeServer;
+import io.soliton.protobuf.metrics.MethodMetrics;
+import io.soliton.protobuf.metrics.RpcMetrics;
+import io.soliton.protobuf.testing.TimeRequest;
+import io.soliton.protobuf.testing.TimeService;
 
 import com.google.common.net.HostAndPort;
 import org.junit.AfterClass;
+import org.junit.Assert;
 import org.junit.BeforeClass;
+import org.junit.Test;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * End-to-end tests for the socket-based client-server pair.
@@ -55,4 +64,73 @@ public class SocketEndToEndTest extends AbstractEndToEndTest {
   protected Client client() throws IOException {
     return RpcClient.newClient(HostAndPort.fromParts("localhost", port)).build();
   }
+
+  @Test
+  public void testBuildAsync() throws Exception {
+    server.serviceGroup().addService(TimeService.newService(new TimeServer()));
+    RpcClient client = RpcClient.newClient(HostAndPort.fromParts("localhost", port))
+        .buildAsync()
+        .get(5, TimeUnit.SECONDS);
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    Assert.assertTrue(TimeService.newStub(client).getTime(request)
+        .get(5, TimeUnit.SECONDS).getTime() > 0);
+    client.close();
+  }
+
+  @Test
+  public void testLazyConnect() throws Exception {
+    server.serviceGroup().addService(TimeService.newService(new TimeServer()));
+    RpcClient client = RpcClient.newClient(HostAndPort.fromParts("localhost", port))
+        .setLazyConnect(true)
+        .build();
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    Assert.assertTrue(TimeService.newStub(client).getTime(request)
+        .get(5, TimeUnit.SECONDS).getTime() > 0);
+    client.close();
+  }
+
+  @Test
+  public void testKeepAlive() throws Exception {
+    RpcMetrics metrics = RpcMetrics.create();
+    RpcClient client = RpcClient.newClient(HostAndPort.fromParts("localhost", port))
+        .setKeepAlivePolicy(KeepAlivePolicy.newBuilder()
+            .setInterval(50, TimeUnit.MILLISECONDS)
+            .setTimeout(1, TimeUnit.SECONDS)
+            .build())
+        .setMetrics(metrics)
+        .build();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (client.roundTripNanos() < 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(client.roundTripNanos() >= 0);
+    Assert.assertTrue(metrics.snapshot().roundTripTime().count() > 0);
+    client.close();
+  }
+
+  @Test
+  public void testClientMetrics() throws Exception {
+    server.serviceGroup().addService(TimeService.newService(new TimeServer()));
+    RpcMetrics metrics = RpcMetrics.create();
+    RpcClient client = RpcClient.newClient(HostAndPort.fromParts("localhost", port))
+        .setMetrics(metrics)
+        .build();
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+    TimeService.newStub(client).getTime(request).get(5, TimeUnit.SECONDS);
+    client.close();
+
+    // Metrics are recorded by listeners which may run after the caller is notified
+    long deadline = System.currentTimeMillis() + 5000;
+    while (metrics.snapshot().methods().isEmpty()
+        || metrics.snapshot().methods().get(0).inFlight() > 0) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    MethodMetrics.Snapshot snapshot = metrics.snapshot().methods().get(0);
+    Assert.assertEquals("GetTime", snapshot.method());
+    Assert.assertEquals(1, snapshot.calls());
+    Assert.assertEquals(1, snapshot.latency().count());
+    Assert.assertEquals(request.getSerializedSize(), snapshot.requestBytes());
+    Assert.assertTrue(snapshot.responseBytes() > 0);
+  }
 }
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.socket;
+
+import io.soliton.protobuf.AbstractEndToEndTest;
+import io.soliton.protobuf.Client;
+import io.soliton.protobuf.Server;
+import io.soliton.protobuf.TimeServer;
+import io.soliton.protobuf.TlsConfig;
+
+import com.google.common.io.Resources;
+import com.google.common.net.HostAndPort;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+/**
+ * End-to-end tests for the encrypted link between a socket client and server.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class SslSocketEndToEndTest extends AbstractEndToEndTest {
+
+  private static RpcServer server;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    try (InputStream keyStoreStream = Resources.getResource(TimeServer.class, "server.p12")
+        .openStream()) {
+      keyStore.load(keyStoreStream, "password".toCharArray());
+    }
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+        KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, "password".toCharArray());
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+    server = RpcServer.newServer(findAvailablePort())
+        .setTlsConfig(TlsConfig.forServer(sslContext).setSessionCacheSize(1024).build())
+        .build();
+    server.startAsync().awaitRunning();
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    server.stopAsync().awaitTerminated();
+  }
+
+  @Override
+  protected Server server() {
+    return server;
+  }
+
+  @Override
+  protected Client client() throws Exception {
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, new TrustManager[]{new TrustfulTrustManager()}, null);
+    return RpcClient.newClient(HostAndPort.fromParts("localhost", port))
+        .setTlsConfig(TlsConfig.forClient(sslContext).build())
+        .build();
+  }
+
+  private static final class TrustfulTrustManager implements X509TrustManager {
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return new X509Certificate[0];
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) {
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) {
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2013 Julien Silland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.soliton.protobuf.unified;
+
+import io.soliton.protobuf.AbstractEndToEndTest;
+import io.soliton.protobuf.Client;
+import io.soliton.protobuf.Server;
+import io.soliton.protobuf.TimeServer;
+import io.soliton.protobuf.json.HttpJsonRpcClient;
+import io.soliton.protobuf.quartz.QuartzClient;
+import io.soliton.protobuf.socket.RpcClient;
+import io.soliton.protobuf.testing.TimeRequest;
+import io.soliton.protobuf.testing.TimeService;
+
+import com.google.common.net.HostAndPort;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end tests for the unified server, called by clients of all
+ * protocols.
+ *
+ * @author Julien Silland (julien@soliton.io)
+ */
+public class UnifiedEndToEndTest extends AbstractEndToEndTest {
+
+  private static UnifiedServer server;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    server = UnifiedServer.newServer(findAvailablePort()).build();
+    server.startAsync().awaitRunning();
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    server.stopAsync().awaitTerminated();
+  }
+
+  @Override
+  protected Server server() {
+    return server;
+  }
+
+  @Override
+  protected Client client() throws IOException {
+    return RpcClient.newClient(HostAndPort.fromParts("localhost", port)).build();
+  }
+
+  @Test
+  public void testAllProtocolsOnOnePort() throws Exception {
+    server.serviceGroup().addService(TimeService.newService(new TimeServer()));
+    HostAndPort address = HostAndPort.fromParts("localhost", port);
+    TimeRequest request = TimeRequest.newBuilder().setTimezone("UTC").build();
+
+    RpcClient rpcClient = RpcClient.newClient(address).build();
+    QuartzClient quartzClient = QuartzClient.newClient(address).build();
+    HttpJsonRpcClient jsonRpcClient = HttpJsonRpcClient.newClient(address).build();
+    for (Client client : new Client[] {rpcClient, quartzClient, jsonRpcClient}) {
+      Assert.assertTrue(TimeService.newStub(client).getTime(request)
+          .get(5, TimeUnit.SECONDS).getTime() > 0);
+    }
+    rpcClient.close();
+    quartzClient.close();
+    jsonRpcClient.close();
+  }
+}